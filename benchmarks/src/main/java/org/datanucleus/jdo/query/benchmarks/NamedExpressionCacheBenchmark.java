@@ -0,0 +1,134 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of creating named candidates from many threads at once, with the Q class caching them ("queryCacheSize")
+ * or not, on platform threads or virtual threads. Virtual threads need Java 21 or later.
+ * The time and allocation ("-prof gc") are per named candidate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NamedExpressionCacheBenchmark
+{
+    private static final int TASKS = 256;
+
+    private static final int CALLS_PER_TASK = 100;
+
+    private static final String[] NAMES = {"a", "b", "c", "d", "e", "f", "g", "h"};
+
+    @Param({"NONE", "CACHED"})
+    String cache;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    String threads;
+
+    @Param({"8"})
+    int platformThreads;
+
+    ExecutorService executor;
+
+    List<Callable<Object>> tasks;
+
+    @Setup
+    public void setUp()
+    throws Exception
+    {
+        if (threads.equals("VIRTUAL"))
+        {
+            try
+            {
+                executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new IllegalStateException("Virtual threads need Java 21 or later");
+            }
+        }
+        else
+        {
+            executor = Executors.newFixedThreadPool(platformThreads);
+        }
+
+        final boolean cached = cache.equals("CACHED");
+        tasks = new ArrayList<Callable<Object>>(TASKS);
+        for (int i = 0; i < TASKS; i++)
+        {
+            final int offset = i;
+            tasks.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    Object candidate = null;
+                    for (int j = 0; j < CALLS_PER_TASK; j++)
+                    {
+                        String name = NAMES[(offset + j) % NAMES.length];
+                        candidate = (cached ? org.datanucleus.jdo.query.benchmarks.cached.QProduct.candidate(name) :
+                            org.datanucleus.jdo.query.benchmarks.model.QProduct.candidate(name));
+                    }
+                    return candidate;
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS * CALLS_PER_TASK)
+    public void candidateNamed(Blackhole bh)
+    throws Exception
+    {
+        for (Future<Object> future : executor.invokeAll(tasks))
+        {
+            bh.consume(future.get());
+        }
+    }
+}
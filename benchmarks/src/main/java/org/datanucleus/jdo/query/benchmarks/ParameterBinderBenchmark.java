@@ -0,0 +1,104 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDOQLTypedQuery;
+
+import org.datanucleus.jdo.query.benchmarks.model.Product;
+import org.datanucleus.jdo.query.benchmarks.model.QProduct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of binding query parameters using the generated ParameterBinder ("queryParameterBinder") compared to calling
+ * setParameter on the query for each. The query is a proxy that ignores the calls, so any allocation of the proxy (its
+ * arguments array) is the same for each. Run with "-prof gc" for the bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ParameterBinderBenchmark
+{
+    JDOQLTypedQuery<Product> query;
+
+    QProduct.ParameterBinder binder;
+
+    String name = "Widget";
+
+    double price = 9.99;
+
+    int quantity = 10;
+
+    boolean active = true;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setUp()
+    {
+        query = (JDOQLTypedQuery<Product>)Proxy.newProxyInstance(JDOQLTypedQuery.class.getClassLoader(), new Class<?>[] {JDOQLTypedQuery.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return proxy;
+                }
+            });
+        binder = new QProduct.ParameterBinder();
+    }
+
+    @Benchmark
+    public JDOQLTypedQuery<Product> setParameter()
+    {
+        query.setParameter("name", name);
+        query.setParameter("price", Double.valueOf(price));
+        query.setParameter("quantity", Integer.valueOf(quantity));
+        query.setParameter("active", Boolean.valueOf(active));
+        return query;
+    }
+
+    @Benchmark
+    public JDOQLTypedQuery<Product> binder()
+    {
+        new QProduct.ParameterBinder().bindName(name).bindPrice(price).bindQuantity(quantity).bindActive(active).applyTo(query);
+        return query;
+    }
+
+    @Benchmark
+    public JDOQLTypedQuery<Product> reusedBinder()
+    {
+        binder.clear().bindName(name).bindPrice(price).bindQuantity(quantity).bindActive(active).applyTo(query);
+        return query;
+    }
+}
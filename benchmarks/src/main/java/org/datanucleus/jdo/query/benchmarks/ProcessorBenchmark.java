@@ -0,0 +1,264 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDOQLTypedQuery;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.datanucleus.api.jdo.query.PersistableExpressionImpl;
+import org.datanucleus.jdo.query.JDOQueryProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of running JDOQueryProcessor over each model (with "-proc:only", so the time is that of parsing and attributing
+ * the model and generating its Q classes, which are discarded). Needs to be run with a JDK.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorBenchmark
+{
+    private static final String[] BASIC_TYPES = {"String", "int", "long", "java.util.Date", "double", "boolean", "Integer", "java.math.BigDecimal"};
+
+    @Param({"FLAT", "WIDE", "DEEP", "CYCLIC"})
+    String model;
+
+    @Param({"FIELD", "LAZY_FIELD"})
+    String mode;
+
+    @Param({"40"})
+    int classes;
+
+    JavaCompiler compiler;
+
+    JavaFileManager fileManager;
+
+    List<String> options;
+
+    List<JavaFileObject> sources;
+
+    @Setup
+    public void setUp()
+    {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+        {
+            throw new IllegalStateException("Benchmark needs to be run with a JDK (no system Java compiler available)");
+        }
+        fileManager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+
+        Set<String> classpath = new LinkedHashSet<String>();
+        for (Class<?> cls : new Class<?>[] {JDOQLTypedQuery.class, PersistenceCapable.class, PersistableExpressionImpl.class, JDOQueryProcessor.class})
+        {
+            classpath.add(new File(cls.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath());
+        }
+        StringBuilder str = new StringBuilder();
+        for (String path : classpath)
+        {
+            str.append(str.length() > 0 ? File.pathSeparator : "").append(path);
+        }
+        options = Arrays.asList("-proc:only", "-classpath", str.toString(), "-AqueryMode=" + mode);
+
+        sources = new ArrayList<JavaFileObject>();
+        for (int i = 0; i < classes; i++)
+        {
+            sources.add(new SourceFile("bench.Entity" + i, getSource(i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    throws Exception
+    {
+        fileManager.close();
+    }
+
+    @Benchmark
+    public boolean process()
+    {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(new JDOQueryProcessor()));
+        if (!task.call())
+        {
+            throw new IllegalStateException("Processing of the " + model + " model failed : " + getErrors(diagnostics));
+        }
+        return true;
+    }
+
+    /**
+     * Method to return the source of a persistable class of the model.
+     * <ul>
+     * <li>FLAT : 10 basic members</li>
+     * <li>WIDE : 210 basic members</li>
+     * <li>DEEP : 3 basic members and a relation to the root class, each class extending the previous one</li>
+     * <li>CYCLIC : 4 basic members, relations to the next two classes (wrapping around) and a collection of its own class</li>
+     * </ul>
+     * @param number Number of the class
+     * @return The source
+     */
+    private String getSource(int number)
+    {
+        StringBuilder str = new StringBuilder();
+        str.append("package bench;\n");
+        str.append("@javax.jdo.annotations.PersistenceCapable\n");
+        str.append("public class Entity").append(number);
+        if (model.equals("DEEP") && number > 0)
+        {
+            str.append(" extends Entity").append(number - 1);
+        }
+        str.append("\n{\n");
+
+        int basicMembers = (model.equals("WIDE") ? 210 : model.equals("FLAT") ? 10 : model.equals("DEEP") ? 3 : 4);
+        for (int i = 0; i < basicMembers; i++)
+        {
+            str.append("    ").append(BASIC_TYPES[i % BASIC_TYPES.length]).append(" e").append(number).append("f").append(i).append(";\n");
+        }
+        if (model.equals("DEEP"))
+        {
+            str.append("    Entity0 e").append(number).append("root;\n");
+        }
+        else if (model.equals("CYCLIC"))
+        {
+            str.append("    Entity").append((number + 1) % classes).append(" e").append(number).append("next;\n");
+            str.append("    Entity").append((number + 2) % classes).append(" e").append(number).append("second;\n");
+            str.append("    java.util.Set<Entity").append(number).append("> e").append(number).append("children;\n");
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+
+    private static List<String> getErrors(DiagnosticCollector<JavaFileObject> diagnostics)
+    {
+        List<String> errors = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+        {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+            {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Source file of a persistable class, held in memory.
+     */
+    static class SourceFile extends SimpleJavaFileObject
+    {
+        private final String source;
+
+        SourceFile(String className, String source)
+        {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return source;
+        }
+    }
+
+    /**
+     * File manager that holds the files written in memory, so the benchmark doesn't measure writing them to disk.
+     */
+    static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        MemoryFileManager(StandardJavaFileManager fileManager)
+        {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        {
+            return new OutputFile(URI.create("mem:///" + location.getName() + "/" + className.replace('.', '/') + kind.extension), kind);
+        }
+
+        @Override
+        public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling)
+        {
+            return new OutputFile(URI.create("mem:///" + location.getName() + "/" + packageName.replace('.', '/') + "/" + relativeName), JavaFileObject.Kind.OTHER);
+        }
+    }
+
+    /**
+     * File written by the compilation, held in memory (generated sources being read again in the next round).
+     */
+    static class OutputFile extends SimpleJavaFileObject
+    {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        OutputFile(URI uri, Kind kind)
+        {
+            super(uri, kind);
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            content.reset();
+            return content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.query.BooleanExpression;
+import javax.jdo.query.PersistableExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the static methods of the generated Q classes, and of building a typed filter using them, for each model.
+ * Run with "-prof gc" for the bytes allocated per operation ("gc.alloc.rate.norm").
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class QueryClassBenchmark
+{
+    @Param({"FLAT", "WIDE", "DEEP", "CYCLIC", "CYCLIC_LAZY"})
+    QueryModel model;
+
+    @Benchmark
+    public PersistableExpression<?> candidate()
+    {
+        return model.candidate();
+    }
+
+    @Benchmark
+    public PersistableExpression<?> candidateNamed()
+    {
+        return model.candidate("c");
+    }
+
+    @Benchmark
+    public PersistableExpression<?> parameter()
+    {
+        return model.parameter("p");
+    }
+
+    @Benchmark
+    public PersistableExpression<?> variable()
+    {
+        return model.variable("v");
+    }
+
+    @Benchmark
+    public BooleanExpression filter()
+    {
+        return model.filter();
+    }
+}
@@ -0,0 +1,196 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks;
+
+import javax.jdo.query.BooleanExpression;
+import javax.jdo.query.PersistableExpression;
+
+import org.datanucleus.jdo.query.benchmarks.model.QCustomer;
+import org.datanucleus.jdo.query.benchmarks.model.QDeep7;
+import org.datanucleus.jdo.query.benchmarks.model.QProduct;
+import org.datanucleus.jdo.query.benchmarks.model.QWide;
+
+/**
+ * The models benchmarked, with the calls to the static methods of the Q class of each. Only one model is used in a fork
+ * (being a benchmark parameter), so each call site only sees one Q class.
+ */
+public enum QueryModel
+{
+    /** Persistable class with 10 basic members. */
+    FLAT
+    {
+        public PersistableExpression<?> candidate()
+        {
+            return QProduct.candidate();
+        }
+        public PersistableExpression<?> candidate(String name)
+        {
+            return QProduct.candidate(name);
+        }
+        public PersistableExpression<?> parameter(String name)
+        {
+            return QProduct.parameter(name);
+        }
+        public PersistableExpression<?> variable(String name)
+        {
+            return QProduct.variable(name);
+        }
+        public BooleanExpression filter()
+        {
+            QProduct cand = QProduct.candidate();
+            return cand.name.startsWith("A").and(cand.price.lt(10.0)).and(cand.active.eq(true));
+        }
+    },
+
+    /** Persistable class with 210 basic members. */
+    WIDE
+    {
+        public PersistableExpression<?> candidate()
+        {
+            return QWide.candidate();
+        }
+        public PersistableExpression<?> candidate(String name)
+        {
+            return QWide.candidate(name);
+        }
+        public PersistableExpression<?> parameter(String name)
+        {
+            return QWide.parameter(name);
+        }
+        public PersistableExpression<?> variable(String name)
+        {
+            return QWide.variable(name);
+        }
+        public BooleanExpression filter()
+        {
+            QWide cand = QWide.candidate();
+            return cand.field0.startsWith("A").and(cand.field1.lt(10)).and(cand.field209.eq(3));
+        }
+    },
+
+    /** Leaf of an inheritance hierarchy of 8 persistable classes, each adding a relation. */
+    DEEP
+    {
+        public PersistableExpression<?> candidate()
+        {
+            return QDeep7.candidate();
+        }
+        public PersistableExpression<?> candidate(String name)
+        {
+            return QDeep7.candidate(name);
+        }
+        public PersistableExpression<?> parameter(String name)
+        {
+            return QDeep7.parameter(name);
+        }
+        public PersistableExpression<?> variable(String name)
+        {
+            return QDeep7.variable(name);
+        }
+        public BooleanExpression filter()
+        {
+            QDeep7 cand = QDeep7.candidate();
+            return cand.name0.startsWith("A").and(cand.count7.lt(10)).and(cand.product7.price.lt(10.0));
+        }
+    },
+
+    /** Persistable classes with cyclic relations, generated in FIELD mode. */
+    CYCLIC
+    {
+        public PersistableExpression<?> candidate()
+        {
+            return QCustomer.candidate();
+        }
+        public PersistableExpression<?> candidate(String name)
+        {
+            return QCustomer.candidate(name);
+        }
+        public PersistableExpression<?> parameter(String name)
+        {
+            return QCustomer.parameter(name);
+        }
+        public PersistableExpression<?> variable(String name)
+        {
+            return QCustomer.variable(name);
+        }
+        public BooleanExpression filter()
+        {
+            QCustomer cand = QCustomer.candidate();
+            return cand.name.startsWith("A").and(cand.address.city.eq("London")).and(cand.referrer.rating.gt(3));
+        }
+    },
+
+    /** The cyclic model, generated in LAZY_FIELD mode. */
+    CYCLIC_LAZY
+    {
+        public PersistableExpression<?> candidate()
+        {
+            return org.datanucleus.jdo.query.benchmarks.lazy.QCustomer.candidate();
+        }
+        public PersistableExpression<?> candidate(String name)
+        {
+            return org.datanucleus.jdo.query.benchmarks.lazy.QCustomer.candidate(name);
+        }
+        public PersistableExpression<?> parameter(String name)
+        {
+            return org.datanucleus.jdo.query.benchmarks.lazy.QCustomer.parameter(name);
+        }
+        public PersistableExpression<?> variable(String name)
+        {
+            return org.datanucleus.jdo.query.benchmarks.lazy.QCustomer.variable(name);
+        }
+        public BooleanExpression filter()
+        {
+            org.datanucleus.jdo.query.benchmarks.lazy.QCustomer cand = org.datanucleus.jdo.query.benchmarks.lazy.QCustomer.candidate();
+            return cand.name.startsWith("A").and(cand.address().city.eq("London")).and(cand.referrer().rating.gt(3));
+        }
+    };
+
+    /**
+     * Accessor for the candidate of the Q class ("QA.candidate()").
+     * @return The candidate
+     */
+    public abstract PersistableExpression<?> candidate();
+
+    /**
+     * Method to create a named candidate of the Q class ("QA.candidate(name)").
+     * @param name The name
+     * @return The candidate
+     */
+    public abstract PersistableExpression<?> candidate(String name);
+
+    /**
+     * Method to create a parameter of the type of the Q class ("QA.parameter(name)").
+     * @param name The name
+     * @return The parameter
+     */
+    public abstract PersistableExpression<?> parameter(String name);
+
+    /**
+     * Method to create a variable of the type of the Q class ("QA.variable(name)").
+     * @param name The name
+     * @return The variable
+     */
+    public abstract PersistableExpression<?> variable(String name);
+
+    /**
+     * Method to build a typed filter over three members of the candidate, including a relation where the model has one.
+     * @return The filter
+     */
+    public abstract BooleanExpression filter();
+}
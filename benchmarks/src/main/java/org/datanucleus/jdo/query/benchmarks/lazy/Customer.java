@@ -0,0 +1,46 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks.lazy;
+
+import java.util.Set;
+
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Cyclic model generated with queryMode=LAZY_FIELD : a customer refers to another customer, its address (referring back to a customer), and its orders
+ * (referring back to the customer and an address).
+ */
+@PersistenceCapable
+public class Customer
+{
+    @PrimaryKey
+    long id;
+
+    @Index
+    String name;
+
+    int rating;
+
+    Address address;
+
+    Customer referrer;
+
+    Set<PurchaseOrder> orders;
+}
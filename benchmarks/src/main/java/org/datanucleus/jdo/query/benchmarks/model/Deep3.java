@@ -0,0 +1,33 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks.model;
+
+import javax.jdo.annotations.PersistenceCapable;
+
+/**
+ * Deep model : level 3 of the inheritance hierarchy.
+ */
+@PersistenceCapable
+public class Deep3 extends Deep2
+{
+    String name3;
+
+    int count3;
+
+    Product product3;
+}
@@ -0,0 +1,54 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks.model;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Flat model : a persistable class with basic members only.
+ */
+@PersistenceCapable
+public class Product
+{
+    @PrimaryKey
+    long id;
+
+    @Index
+    String name;
+
+    String description;
+
+    String sku;
+
+    String category;
+
+    double price;
+
+    int quantity;
+
+    boolean active;
+
+    Date created;
+
+    BigDecimal weight;
+}
@@ -0,0 +1,454 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query.benchmarks.model;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Wide model : a persistable class with 210 basic members.
+ */
+@PersistenceCapable
+public class Wide
+{
+    @PrimaryKey
+    long id;
+
+    String field0;
+
+    int field1;
+
+    long field2;
+
+    Date field3;
+
+    double field4;
+
+    boolean field5;
+
+    Integer field6;
+
+    BigDecimal field7;
+
+    String field8;
+
+    int field9;
+
+    long field10;
+
+    Date field11;
+
+    double field12;
+
+    boolean field13;
+
+    Integer field14;
+
+    BigDecimal field15;
+
+    String field16;
+
+    int field17;
+
+    long field18;
+
+    Date field19;
+
+    double field20;
+
+    boolean field21;
+
+    Integer field22;
+
+    BigDecimal field23;
+
+    String field24;
+
+    int field25;
+
+    long field26;
+
+    Date field27;
+
+    double field28;
+
+    boolean field29;
+
+    Integer field30;
+
+    BigDecimal field31;
+
+    String field32;
+
+    int field33;
+
+    long field34;
+
+    Date field35;
+
+    double field36;
+
+    boolean field37;
+
+    Integer field38;
+
+    BigDecimal field39;
+
+    String field40;
+
+    int field41;
+
+    long field42;
+
+    Date field43;
+
+    double field44;
+
+    boolean field45;
+
+    Integer field46;
+
+    BigDecimal field47;
+
+    String field48;
+
+    int field49;
+
+    long field50;
+
+    Date field51;
+
+    double field52;
+
+    boolean field53;
+
+    Integer field54;
+
+    BigDecimal field55;
+
+    String field56;
+
+    int field57;
+
+    long field58;
+
+    Date field59;
+
+    double field60;
+
+    boolean field61;
+
+    Integer field62;
+
+    BigDecimal field63;
+
+    String field64;
+
+    int field65;
+
+    long field66;
+
+    Date field67;
+
+    double field68;
+
+    boolean field69;
+
+    Integer field70;
+
+    BigDecimal field71;
+
+    String field72;
+
+    int field73;
+
+    long field74;
+
+    Date field75;
+
+    double field76;
+
+    boolean field77;
+
+    Integer field78;
+
+    BigDecimal field79;
+
+    String field80;
+
+    int field81;
+
+    long field82;
+
+    Date field83;
+
+    double field84;
+
+    boolean field85;
+
+    Integer field86;
+
+    BigDecimal field87;
+
+    String field88;
+
+    int field89;
+
+    long field90;
+
+    Date field91;
+
+    double field92;
+
+    boolean field93;
+
+    Integer field94;
+
+    BigDecimal field95;
+
+    String field96;
+
+    int field97;
+
+    long field98;
+
+    Date field99;
+
+    double field100;
+
+    boolean field101;
+
+    Integer field102;
+
+    BigDecimal field103;
+
+    String field104;
+
+    int field105;
+
+    long field106;
+
+    Date field107;
+
+    double field108;
+
+    boolean field109;
+
+    Integer field110;
+
+    BigDecimal field111;
+
+    String field112;
+
+    int field113;
+
+    long field114;
+
+    Date field115;
+
+    double field116;
+
+    boolean field117;
+
+    Integer field118;
+
+    BigDecimal field119;
+
+    String field120;
+
+    int field121;
+
+    long field122;
+
+    Date field123;
+
+    double field124;
+
+    boolean field125;
+
+    Integer field126;
+
+    BigDecimal field127;
+
+    String field128;
+
+    int field129;
+
+    long field130;
+
+    Date field131;
+
+    double field132;
+
+    boolean field133;
+
+    Integer field134;
+
+    BigDecimal field135;
+
+    String field136;
+
+    int field137;
+
+    long field138;
+
+    Date field139;
+
+    double field140;
+
+    boolean field141;
+
+    Integer field142;
+
+    BigDecimal field143;
+
+    String field144;
+
+    int field145;
+
+    long field146;
+
+    Date field147;
+
+    double field148;
+
+    boolean field149;
+
+    Integer field150;
+
+    BigDecimal field151;
+
+    String field152;
+
+    int field153;
+
+    long field154;
+
+    Date field155;
+
+    double field156;
+
+    boolean field157;
+
+    Integer field158;
+
+    BigDecimal field159;
+
+    String field160;
+
+    int field161;
+
+    long field162;
+
+    Date field163;
+
+    double field164;
+
+    boolean field165;
+
+    Integer field166;
+
+    BigDecimal field167;
+
+    String field168;
+
+    int field169;
+
+    long field170;
+
+    Date field171;
+
+    double field172;
+
+    boolean field173;
+
+    Integer field174;
+
+    BigDecimal field175;
+
+    String field176;
+
+    int field177;
+
+    long field178;
+
+    Date field179;
+
+    double field180;
+
+    boolean field181;
+
+    Integer field182;
+
+    BigDecimal field183;
+
+    String field184;
+
+    int field185;
+
+    long field186;
+
+    Date field187;
+
+    double field188;
+
+    boolean field189;
+
+    Integer field190;
+
+    BigDecimal field191;
+
+    String field192;
+
+    int field193;
+
+    long field194;
+
+    Date field195;
+
+    double field196;
+
+    boolean field197;
+
+    Integer field198;
+
+    BigDecimal field199;
+
+    String field200;
+
+    int field201;
+
+    long field202;
+
+    Date field203;
+
+    double field204;
+
+    boolean field205;
+
+    Integer field206;
+
+    BigDecimal field207;
+
+    String field208;
+
+    int field209;
+}
@@ -0,0 +1,256 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.datanucleus.jdo.query.QueryClassModel.Member;
+
+/**
+ * Analysis of the graph of Q classes generated in a compilation, computing how many query expression objects are
+ * instantiated when creating a candidate (e.g "QA.candidate(name)") or parameter/variable of each Q class. In FIELD mode
+ * every persistable member is instantiated in the constructor to the depth of its class, so this grows with the fan-out
+ * of relations to the power of the depth. The counts follow the constructors generated by {@link QueryClassRenderer}, and saturate at Long.MAX_VALUE.
+ * A cyclic member (see "queryCycleCutoff") is not counted when it is already being expanded further up the path.
+ * A Q class that is not part of the compilation (e.g in a dependency) is counted as a single expression.
+ */
+public class FanoutAnalysis
+{
+    private final int queryMode;
+
+    /** Models of the Q classes, keyed by the (canonical) name of the Q class. */
+    private final Map<String, QueryClassModel> modelByQClassName = new LinkedHashMap<String, QueryClassModel>();
+
+    /** Number of expressions instantiated for a member of a Q class, keyed by "{qclassName}#{depth}" (plus any cyclic members being expanded). */
+    private final Map<String, Long> memberExpressionsByKey = new HashMap<String, Long>();
+
+    public FanoutAnalysis(int queryMode)
+    {
+        this.queryMode = queryMode;
+    }
+
+    /**
+     * Method to add the model of a Q class (and those of its inner Q classes) to the graph.
+     * @param model Model of the Q class
+     */
+    public void add(QueryClassModel model)
+    {
+        modelByQClassName.put(model.getQClassNameFull().replace('$', '.'), model);
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            add(innerModel);
+        }
+    }
+
+    /**
+     * Accessor for the models of all Q classes in the graph, in the order added.
+     * @return The models
+     */
+    public Collection<QueryClassModel> getModels()
+    {
+        return modelByQClassName.values();
+    }
+
+    /**
+     * Accessor for the number of expressions instantiated when creating a candidate of the specified Q class
+     * (using "candidate(name)"), in the query mode of this compilation.
+     * @param model Model of the Q class
+     * @return Number of expressions (including the candidate itself)
+     */
+    public long getCandidateExpressions(QueryClassModel model)
+    {
+        if (queryMode == JDOQueryProcessor.MODE_FIELD)
+        {
+            return getExpressionsForQueryClass(model.getQClassNameFull().replace('$', '.'), model.getDepth(), Collections.<String>emptySortedSet());
+        }
+        return add(1, getNonPersistableMembers(model));
+    }
+
+    /**
+     * Accessor for the number of expressions instantiated when creating a parameter or variable of the specified Q class,
+     * in the query mode of this compilation. These expand persistable members to one level more than a candidate.
+     * @param model Model of the Q class
+     * @return Number of expressions (including the parameter itself)
+     */
+    public long getParameterExpressions(QueryClassModel model)
+    {
+        if (queryMode != JDOQueryProcessor.MODE_FIELD)
+        {
+            return add(1, getNonPersistableMembers(model));
+        }
+
+        long count = 1;
+        for (QueryClassModel m = model; m != null; m = modelByQClassName.get(m.getSuperQClassName()))
+        {
+            // Each Q class in the hierarchy instantiates its own members to the depth of its class
+            for (Member member : m.getMembers())
+            {
+                count = add(count, getExpressionsForMember(m, member, m.getDepth()+1, Collections.<String>emptySortedSet()));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Accessor for the persistable members of the specified Q class (and its supertypes) that instantiate the most
+     * expressions when creating a candidate in FIELD mode, in descending order.
+     * @param model Model of the Q class
+     * @param max Maximum number of members to return
+     * @return "{member} ({number})" for each member
+     */
+    public List<String> getLargestRelations(QueryClassModel model, int max)
+    {
+        List<Member> relations = new ArrayList<Member>();
+        List<Long> counts = new ArrayList<Long>();
+        for (QueryClassModel m = model; m != null; m = modelByQClassName.get(m.getSuperQClassName()))
+        {
+            for (Member member : m.getMembers())
+            {
+                if (member.isPersistable())
+                {
+                    // Insertion sort, since there are only a few relations in a class
+                    long count = getExpressionsForMember(m, member, model.getDepth(), Collections.<String>emptySortedSet());
+                    int pos = 0;
+                    while (pos < counts.size() && counts.get(pos) >= count)
+                    {
+                        pos++;
+                    }
+                    relations.add(pos, member);
+                    counts.add(pos, count);
+                }
+            }
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (int i=0;i<relations.size() && i<max;i++)
+        {
+            names.add(relations.get(i).getName() + " (" + counts.get(i) + ")");
+        }
+        return names;
+    }
+
+    /**
+     * Method to return the number of members of the specified Q class (and its supertypes) that aren't persistable,
+     * so those instantiated by the constructors when persistable members are only instantiated on first access.
+     * @param model Model of the Q class
+     * @return Number of members
+     */
+    private long getNonPersistableMembers(QueryClassModel model)
+    {
+        if (queryMode == JDOQueryProcessor.MODE_PROPERTY)
+        {
+            // Members are only instantiated when accessed
+            return 0;
+        }
+
+        long count = 0;
+        for (QueryClassModel m = model; m != null; m = modelByQClassName.get(m.getSuperQClassName()))
+        {
+            for (Member member : m.getMembers())
+            {
+                count += (member.isPersistable() ? 0 : 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to return the number of expressions instantiated for a member by the constructor taking in
+     * (PersistableExpression parent, String name, int depth), in FIELD mode.
+     * @param model Model of the Q class declaring the member
+     * @param member The member
+     * @param depth The depth passed to the constructor
+     * @param expanding The cyclic members being expanded further up the path, as "{qclassName}#{memberName}"
+     * @return Number of expressions
+     */
+    private long getExpressionsForMember(QueryClassModel model, Member member, int depth, SortedSet<String> expanding)
+    {
+        if (!member.isPersistable())
+        {
+            return 1;
+        }
+
+        int maxDepth = member.getMaxDepth();
+        if (depth <= 0 || maxDepth == 0)
+        {
+            return 0;
+        }
+
+        SortedSet<String> memberExpanding = expanding;
+        if (member.isCyclic())
+        {
+            String memberKey = model.getQClassNameFull().replace('$', '.') + "#" + member.getName();
+            if (expanding.contains(memberKey))
+            {
+                return 0;
+            }
+            memberExpanding = new TreeSet<String>(expanding);
+            memberExpanding.add(memberKey);
+        }
+        return getExpressionsForQueryClass(member.getExpressionImplClassName(), maxDepth > 0 ? Math.min(depth-1, maxDepth-1) : depth-1, memberExpanding);
+    }
+
+    /**
+     * Method to return the number of expressions instantiated by the constructor taking in (PersistableExpression parent,
+     * String name, int depth), in FIELD mode.
+     * @param qclassName Name of the Q class
+     * @param depth The depth passed to the constructor
+     * @param expanding The cyclic members being expanded further up the path, as "{qclassName}#{memberName}"
+     * @return Number of expressions (including the expression itself)
+     */
+    private long getExpressionsForQueryClass(String qclassName, int depth, SortedSet<String> expanding)
+    {
+        QueryClassModel model = modelByQClassName.get(qclassName);
+        if (model == null)
+        {
+            return 1;
+        }
+
+        String key = qclassName + "#" + depth + (expanding.isEmpty() ? "" : expanding.toString());
+        Long memberCount = memberExpressionsByKey.get(key);
+        if (memberCount == null)
+        {
+            long count = 0;
+            for (QueryClassModel m = model; m != null; m = modelByQClassName.get(m.getSuperQClassName()))
+            {
+                // The depth is passed up through the constructors of the supertypes
+                for (Member member : m.getMembers())
+                {
+                    count = add(count, getExpressionsForMember(m, member, depth, expanding));
+                }
+            }
+            memberCount = count;
+            memberExpressionsByKey.put(key, memberCount);
+        }
+        return add(1, memberCount);
+    }
+
+    private static long add(long a, long b)
+    {
+        long sum = a + b;
+        return (sum < 0 ? Long.MAX_VALUE : sum);
+    }
+}
@@ -0,0 +1,219 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Store of the fingerprints of the inputs used to generate each Q class, persisted between builds in a properties file
+ * keyed by the Q class name. Allows the generation of a Q class to be skipped when nothing it is generated from has changed.
+ */
+public class FingerprintStore
+{
+    private final File file;
+
+    private final Properties fingerprints = new Properties();
+
+    private boolean dirty = false;
+
+    /**
+     * Constructor for a store persisted in the specified file, loading any fingerprints from a previous build.
+     * @param file The file
+     * @throws IOException Thrown if the file exists but cannot be read
+     */
+    public FingerprintStore(File file)
+    throws IOException
+    {
+        this.file = file;
+        if (file.exists())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                fingerprints.load(in);
+            }
+        }
+    }
+
+    /**
+     * Accessor for the file that this store is persisted in.
+     * @return The file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Accessor for whether the fingerprint for the specified Q class is unchanged from the previous build.
+     * @param qclassName Name of the Q class
+     * @param fingerprint Fingerprint of its inputs for this build
+     * @return Whether it matches
+     */
+    public boolean matches(String qclassName, String fingerprint)
+    {
+        return fingerprint.equals(fingerprints.getProperty(qclassName));
+    }
+
+    /**
+     * Method to register the fingerprint of the inputs for a Q class that has been generated.
+     * @param qclassName Name of the Q class
+     * @param fingerprint Fingerprint of its inputs
+     */
+    public void put(String qclassName, String fingerprint)
+    {
+        Object oldFingerprint = fingerprints.setProperty(qclassName, fingerprint);
+        if (!fingerprint.equals(oldFingerprint))
+        {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Method to persist the fingerprints, if any have changed.
+     * @throws IOException Thrown if an error occurs on writing the file
+     */
+    public void save()
+    throws IOException
+    {
+        if (!dirty)
+        {
+            return;
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists())
+        {
+            dir.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            fingerprints.store(out, "DataNucleus JDOQLTypedQuery Q class fingerprints");
+        }
+        dirty = false;
+    }
+
+    /**
+     * Convenience method to return the (hex) SHA-256 digest of the specified generation inputs.
+     * @param inputs The inputs
+     * @return The fingerprint
+     */
+    public static String getFingerprint(CharSequence inputs)
+    {
+        return toHex(getDigest().digest(inputs.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Convenience method to return the (hex) SHA-256 digest of the code of the specified class, namely of the jar it is loaded
+     * from, or of the files in the directory of its package when loaded from a directory (e.g a snapshot build in an IDE).
+     * @param cls The class
+     * @return The fingerprint, or null if the code of the class is not available as a local file
+     * @throws IOException Thrown if an error occurs on reading the code
+     */
+    public static String getCodeFingerprint(Class<?> cls)
+    throws IOException
+    {
+        CodeSource codeSource = cls.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null || !"file".equals(codeSource.getLocation().getProtocol()))
+        {
+            return null;
+        }
+
+        File location = null;
+        try
+        {
+            location = new File(codeSource.getLocation().toURI());
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        MessageDigest digest = getDigest();
+        if (location.isFile())
+        {
+            addFileToDigest(digest, location);
+        }
+        else
+        {
+            File[] files = new File(location, cls.getPackage().getName().replace('.', File.separatorChar)).listFiles();
+            if (files == null)
+            {
+                return null;
+            }
+            Arrays.sort(files);
+            for (File file : files)
+            {
+                if (file.isFile())
+                {
+                    digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+                    addFileToDigest(digest, file);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void addFileToDigest(MessageDigest digest, File file)
+    throws IOException
+    {
+        try (InputStream in = new FileInputStream(file))
+        {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, length);
+            }
+        }
+    }
+
+    private static MessageDigest getDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // SHA-256 is required to be supported by every JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder str = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+        {
+            str.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return str.toString();
+    }
+}
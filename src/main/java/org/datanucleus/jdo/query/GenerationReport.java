@@ -0,0 +1,404 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record of the cost of generating the Q classes in a compilation, per round and per class, so that it can be summarised
+ * and written as a (JSON) report. Times are recorded in nanoseconds and reported in microseconds.
+ */
+public class GenerationReport
+{
+    /**
+     * Record of the generation of a Q class.
+     */
+    public static class ClassEntry
+    {
+        private final String className;
+        private final String qclassName;
+        private final int numberOfMembers;
+        private boolean skipped = false;
+        private long inspectionNanos = 0;
+        private long typeResolutionNanos = 0;
+        private long renderNanos = 0;
+        private long writeNanos = 0;
+        private long bytesWritten = 0;
+        private long candidateExpressions = 0;
+        private long parameterExpressions = 0;
+
+        ClassEntry(String className, String qclassName, int numberOfMembers)
+        {
+            this.className = className;
+            this.qclassName = qclassName;
+            this.numberOfMembers = numberOfMembers;
+        }
+
+        /**
+         * Method to record the time spent extracting the model of the Q class.
+         * @param inspectionNanos Time inspecting the persistable class (including resolving the types of its members)
+         * @param typeResolutionNanos Time resolving the types of its members
+         */
+        public void setInspection(long inspectionNanos, long typeResolutionNanos)
+        {
+            this.inspectionNanos = inspectionNanos;
+            this.typeResolutionNanos = typeResolutionNanos;
+        }
+
+        /**
+         * Method to record the number of query expressions instantiated by the Q class, in the query mode used.
+         * @param candidateExpressions Number instantiated when creating a candidate of the Q class
+         * @param parameterExpressions Number instantiated when creating a parameter or variable of the Q class
+         */
+        public void setExpressions(long candidateExpressions, long parameterExpressions)
+        {
+            this.candidateExpressions = candidateExpressions;
+            this.parameterExpressions = parameterExpressions;
+        }
+
+        public void setSkipped()
+        {
+            this.skipped = true;
+        }
+
+        public void setRenderNanos(long renderNanos)
+        {
+            this.renderNanos = renderNanos;
+        }
+
+        /**
+         * Method to record the writing of the source of the Q class.
+         * @param writeNanos Time writing the source
+         * @param source The source
+         */
+        public void setWritten(long writeNanos, String source)
+        {
+            this.writeNanos = writeNanos;
+            this.bytesWritten = getUTF8Length(source);
+        }
+    }
+
+    /**
+     * Record of a processing round. Phase times are elapsed times for the whole round, so rendering in parallel takes
+     * less time than the sum of the render times of its classes.
+     */
+    public static class RoundEntry
+    {
+        private final int round;
+        private final List<ClassEntry> classes = new ArrayList<ClassEntry>();
+        private long inspectionNanos = 0;
+        private long renderNanos = 0;
+        private long writeNanos = 0;
+
+        RoundEntry(int round)
+        {
+            this.round = round;
+        }
+
+        /**
+         * Method to add the record of a Q class in this round.
+         * @param className Name of the persistable class
+         * @param qclassName Name of the Q class
+         * @param numberOfMembers Number of members in the Q class (including those of any inner Q classes)
+         * @return The record
+         */
+        public ClassEntry addClass(String className, String qclassName, int numberOfMembers)
+        {
+            ClassEntry entry = new ClassEntry(className, qclassName, numberOfMembers);
+            classes.add(entry);
+            return entry;
+        }
+
+        /**
+         * Method to record the elapsed time of each phase of this round.
+         * @param inspectionNanos Time extracting the models
+         * @param renderNanos Time rendering the sources
+         * @param writeNanos Time writing the sources
+         */
+        public void setPhases(long inspectionNanos, long renderNanos, long writeNanos)
+        {
+            this.inspectionNanos = inspectionNanos;
+            this.renderNanos = renderNanos;
+            this.writeNanos = writeNanos;
+        }
+    }
+
+    /**
+     * Record of the use of a member with no index in the filter or ordering of a query.
+     */
+    public static class UnindexedUseEntry
+    {
+        private final String className;
+        private final String memberName;
+        private final String clause;
+        private final String sourceName;
+        private final long lineNumber;
+
+        UnindexedUseEntry(String className, String memberName, String clause, String sourceName, long lineNumber)
+        {
+            this.className = className;
+            this.memberName = memberName;
+            this.clause = clause;
+            this.sourceName = sourceName;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    private final List<RoundEntry> rounds = new ArrayList<RoundEntry>();
+
+    private final List<UnindexedUseEntry> unindexedUses = new ArrayList<UnindexedUseEntry>();
+
+    /**
+     * Method to start the record of the next processing round.
+     * @return The record
+     */
+    public RoundEntry startRound()
+    {
+        RoundEntry round = new RoundEntry(rounds.size() + 1);
+        rounds.add(round);
+        return round;
+    }
+
+    /**
+     * Method to record the use of a member with no index in the filter or ordering of a query.
+     * @param className Name of the persistable class of the member
+     * @param memberName Name of the member
+     * @param clause Clause of the query using it (e.g "filter")
+     * @param sourceName Name of the source file of the query
+     * @param lineNumber Line of the use in the source file
+     */
+    public void addUnindexedUse(String className, String memberName, String clause, String sourceName, long lineNumber)
+    {
+        unindexedUses.add(new UnindexedUseEntry(className, memberName, clause, sourceName, lineNumber));
+    }
+
+    /**
+     * Accessor for a one-line summary of the generation across all rounds.
+     * @return The summary
+     */
+    public String getSummary()
+    {
+        int numGenerated = 0;
+        int numSkipped = 0;
+        long inspectionNanos = 0;
+        long typeResolutionNanos = 0;
+        long renderNanos = 0;
+        long writeNanos = 0;
+        long bytesWritten = 0;
+        ClassEntry largestEntry = null;
+        for (RoundEntry round : rounds)
+        {
+            inspectionNanos += round.inspectionNanos;
+            renderNanos += round.renderNanos;
+            writeNanos += round.writeNanos;
+            for (ClassEntry entry : round.classes)
+            {
+                if (entry.skipped)
+                {
+                    numSkipped++;
+                }
+                else
+                {
+                    numGenerated++;
+                }
+                typeResolutionNanos += entry.typeResolutionNanos;
+                bytesWritten += entry.bytesWritten;
+                if (largestEntry == null || entry.candidateExpressions > largestEntry.candidateExpressions)
+                {
+                    largestEntry = entry;
+                }
+            }
+        }
+
+        return numGenerated + " Q class(es) generated" + (numSkipped > 0 ? " (" + numSkipped + " unchanged)" : "") + " in " + rounds.size() + " round(s) : " +
+            "inspection " + (inspectionNanos / 1000000) + " ms (type resolution " + (typeResolutionNanos / 1000000) + " ms), " +
+            "rendering " + (renderNanos / 1000000) + " ms, writing " + (writeNanos / 1000000) + " ms, " + bytesWritten + " bytes" +
+            (largestEntry != null && largestEntry.candidateExpressions > 0 ?
+                ", largest candidate " + largestEntry.candidateExpressions + " expressions (" + largestEntry.qclassName + ")" : "");
+    }
+
+    /**
+     * Accessor for whether any Q classes have been recorded.
+     * @return Whether there are any
+     */
+    public boolean isEmpty()
+    {
+        for (RoundEntry round : rounds)
+        {
+            if (!round.classes.isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to write the report as JSON to the specified file.
+     * @param file The file
+     * @param settings Generation settings to include in the report (as JSON name/value pairs, without the braces)
+     * @throws IOException Thrown if an error occurs on writing the file
+     */
+    public void save(File file, String settings)
+    throws IOException
+    {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists())
+        {
+            dir.mkdirs();
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+        {
+            w.write(toJSON(settings));
+        }
+    }
+
+    /**
+     * Method to return the report as JSON.
+     * @param settings Generation settings to include in the report (as JSON name/value pairs, without the braces)
+     * @return The JSON
+     */
+    public String toJSON(String settings)
+    {
+        StringBuilder str = new StringBuilder(256 + 256 * rounds.size());
+        str.append("{\n");
+        str.append("  \"settings\": {").append(settings).append("},\n");
+        str.append("  \"rounds\": [");
+        for (int i=0;i<rounds.size();i++)
+        {
+            RoundEntry round = rounds.get(i);
+            str.append(i > 0 ? ",\n    {" : "\n    {");
+            str.append("\"round\": ").append(round.round);
+            str.append(", \"inspectionMicros\": ").append(round.inspectionNanos / 1000);
+            str.append(", \"renderMicros\": ").append(round.renderNanos / 1000);
+            str.append(", \"writeMicros\": ").append(round.writeNanos / 1000);
+            str.append(", \"classes\": [");
+            for (int j=0;j<round.classes.size();j++)
+            {
+                ClassEntry entry = round.classes.get(j);
+                str.append(j > 0 ? ",\n      {" : "\n      {");
+                str.append("\"class\": ");
+                appendJSONString(str, entry.className);
+                str.append(", \"qclass\": ");
+                appendJSONString(str, entry.qclassName);
+                str.append(", \"members\": ").append(entry.numberOfMembers);
+                str.append(", \"skipped\": ").append(entry.skipped);
+                str.append(", \"inspectionMicros\": ").append(entry.inspectionNanos / 1000);
+                str.append(", \"typeResolutionMicros\": ").append(entry.typeResolutionNanos / 1000);
+                str.append(", \"renderMicros\": ").append(entry.renderNanos / 1000);
+                str.append(", \"writeMicros\": ").append(entry.writeNanos / 1000);
+                str.append(", \"bytes\": ").append(entry.bytesWritten);
+                str.append(", \"candidateExpressions\": ").append(entry.candidateExpressions);
+                str.append(", \"parameterExpressions\": ").append(entry.parameterExpressions);
+                str.append("}");
+            }
+            str.append(round.classes.isEmpty() ? "]}" : "\n    ]}");
+        }
+        str.append(rounds.isEmpty() ? "]" : "\n  ]");
+        if (!unindexedUses.isEmpty())
+        {
+            str.append(",\n  \"unindexedMembers\": [");
+            for (int i=0;i<unindexedUses.size();i++)
+            {
+                UnindexedUseEntry use = unindexedUses.get(i);
+                str.append(i > 0 ? ",\n    {" : "\n    {");
+                str.append("\"class\": ");
+                appendJSONString(str, use.className);
+                str.append(", \"member\": ");
+                appendJSONString(str, use.memberName);
+                str.append(", \"clause\": ");
+                appendJSONString(str, use.clause);
+                str.append(", \"source\": ");
+                appendJSONString(str, use.sourceName);
+                str.append(", \"line\": ").append(use.lineNumber);
+                str.append("}");
+            }
+            str.append("\n  ]");
+        }
+        str.append("\n");
+        str.append("}\n");
+        return str.toString();
+    }
+
+    /**
+     * Convenience method to append a string as a (quoted, escaped) JSON string.
+     * @param str The buffer
+     * @param value The string
+     */
+    static void appendJSONString(StringBuilder str, String value)
+    {
+        str.append('"');
+        for (int i=0;i<value.length();i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                str.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                str.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                str.append(c);
+            }
+        }
+        str.append('"');
+    }
+
+    /**
+     * Convenience method to return the number of bytes that a string takes when encoded in UTF-8, without encoding it.
+     * @param str The string
+     * @return The number of bytes
+     */
+    static long getUTF8Length(String str)
+    {
+        long length = 0;
+        for (int i=0;i<str.length();i++)
+        {
+            char c = str.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                // Surrogate pair is a single 4 byte character
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,188 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Index of the persistable classes (and their members whose persistence is specified) declared in JDO XML metadata,
+ * so "package.jdo" and "*.orm" files, as well as the classes listed in "persistence.xml".
+ * Each file is streamed once (using StAX), and the index is then consulted in constant time.
+ * Class names are held in their canonical form (e.g "mydomain.Order.Line" for "mydomain.Order$Line").
+ */
+public class JDOMetadataIndex
+{
+    private final XMLInputFactory inputFactory;
+
+    /** Persistence of the members specified for each persistable class (true=persistent), keyed by class name. */
+    private final Map<String, Map<String, Boolean>> memberPersistenceByClassName = new HashMap<String, Map<String, Boolean>>();
+
+    public JDOMetadataIndex()
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        // Only the structure of the metadata is needed, so don't load any DTD or external entities
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /**
+     * Method to add the classes declared in a metadata file to the index.
+     * For a "persistence.xml" file this adds the classes it lists, and returns the mapping files it refers to.
+     * @param in Stream of the metadata file
+     * @return Names of mapping files referred to by the file (relative to the root of the persistence unit)
+     * @throws XMLStreamException Thrown if the file is not valid XML
+     */
+    public List<String> load(InputStream in)
+    throws XMLStreamException
+    {
+        List<String> mappingFiles = new ArrayList<String>();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+        try
+        {
+            boolean persistenceFile = false;
+            String packageName = "";
+            Map<String, Boolean> memberPersistence = null;
+            boolean rootElement = true;
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String elementName = reader.getLocalName();
+                    if (rootElement)
+                    {
+                        persistenceFile = elementName.equals("persistence");
+                        rootElement = false;
+                    }
+                    else if (persistenceFile)
+                    {
+                        // persistence.xml : <class>mydomain.A</class>, <mapping-file>META-INF/mydomain.jdo</mapping-file>
+                        if (elementName.equals("class"))
+                        {
+                            addClass(reader.getElementText().trim());
+                        }
+                        else if (elementName.equals("mapping-file"))
+                        {
+                            mappingFiles.add(reader.getElementText().trim());
+                        }
+                    }
+                    else if (elementName.equals("package"))
+                    {
+                        packageName = getAttribute(reader, "name", "");
+                    }
+                    else if (elementName.equals("class"))
+                    {
+                        String className = getAttribute(reader, "name", "");
+                        String modifier = getAttribute(reader, "persistence-modifier", "persistence-capable");
+                        memberPersistence = null;
+                        if (!className.isEmpty() && modifier.equals("persistence-capable"))
+                        {
+                            memberPersistence = addClass(packageName.isEmpty() ? className : packageName + "." + className);
+                        }
+                    }
+                    else if (memberPersistence != null && (elementName.equals("field") || elementName.equals("property")))
+                    {
+                        // Only members of this class, not "{superclass}.{member}" overrides
+                        String memberName = getAttribute(reader, "name", "");
+                        String modifier = getAttribute(reader, "persistence-modifier", null);
+                        if (modifier != null && !memberName.isEmpty() && memberName.indexOf('.') < 0)
+                        {
+                            memberPersistence.put(memberName, modifier.equals("persistent"));
+                        }
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    String elementName = reader.getLocalName();
+                    if (!persistenceFile && elementName.equals("class"))
+                    {
+                        memberPersistence = null;
+                    }
+                    else if (!persistenceFile && elementName.equals("package"))
+                    {
+                        packageName = "";
+                    }
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return mappingFiles;
+    }
+
+    private Map<String, Boolean> addClass(String className)
+    {
+        String name = className.replace('$', '.');
+        Map<String, Boolean> memberPersistence = memberPersistenceByClassName.get(name);
+        if (memberPersistence == null)
+        {
+            memberPersistence = new HashMap<String, Boolean>();
+            memberPersistenceByClassName.put(name, memberPersistence);
+        }
+        return memberPersistence;
+    }
+
+    private static String getAttribute(XMLStreamReader reader, String name, String defaultValue)
+    {
+        String value = reader.getAttributeValue(null, name);
+        return (value != null ? value.trim() : defaultValue);
+    }
+
+    /**
+     * Accessor for whether the specified class is declared as persistable in the metadata.
+     * @param className Canonical name of the class
+     * @return Whether it is persistable
+     */
+    public boolean isPersistable(String className)
+    {
+        return memberPersistenceByClassName.containsKey(className);
+    }
+
+    /**
+     * Accessor for the persistence of a member as specified in the metadata.
+     * @param className Canonical name of the class
+     * @param memberName Name of the member
+     * @return Whether the member is persistent, or null if not specified
+     */
+    public Boolean isPersistent(String className, String memberName)
+    {
+        Map<String, Boolean> memberPersistence = memberPersistenceByClassName.get(className);
+        return (memberPersistence != null ? memberPersistence.get(memberName) : null);
+    }
+
+    /**
+     * Accessor for the number of persistable classes in the index.
+     * @return The number of classes
+     */
+    public int size()
+    {
+        return memberPersistenceByClassName.size();
+    }
+}
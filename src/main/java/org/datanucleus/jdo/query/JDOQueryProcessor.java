@@ -17,26 +17,52 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.jdo.query;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.jdo.annotations.NotPersistent;
 import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
@@ -44,12 +70,18 @@ import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
 import javax.lang.model.util.Elements;
 import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.xml.stream.XMLStreamException;
 
 import org.datanucleus.jdo.query.AnnotationProcessorUtils.TypeCategory;
 
@@ -67,7 +99,6 @@ import javax.jdo.query.MapExpression;
 import javax.jdo.query.NumericExpression;
 import javax.jdo.query.ObjectExpression;
 import javax.jdo.query.OptionalExpression;
-import javax.jdo.query.PersistableExpression;
 import javax.jdo.query.StringExpression;
 import javax.jdo.query.TimeExpression;
 import javax.jdo.JDOQLTypedQuery;
@@ -82,26 +113,227 @@ import javax.jdo.JDOQLTypedQuery;
  * </ul>
  * 
  * <p>
- * This processor can generate classes in two modes.
+ * This processor can generate classes in three modes.
  * <ul>
  * <li>Property access - so users type in "field1()", "field1().field2()" etc. 
  * Specify the compiler argument "queryMode" as "PROPERTY" to get this</li>
  * <li>Field access - so users type in "field1", "field1.field2". This is the default.</li>
+ * <li>Lazy field access - so users type in "field1" for basic members, but "field1()", "field1().field2" for
+ * persistable members, which are only instantiated when first accessed. Specify the compiler argument "queryMode"
+ * as "LAZY_FIELD" to get this</li>
  * </ul>
+ *
+ * <p>
+ * The other compiler arguments (the OPTION_* constants) are described in the README.
  */
 @SupportedAnnotationTypes({"javax.jdo.annotations.PersistenceCapable"})
+@SupportedOptions({JDOQueryProcessor.OPTION_MODE, JDOQueryProcessor.OPTION_DEPTH, JDOQueryProcessor.OPTION_DEPTH_OVERRIDES, JDOQueryProcessor.OPTION_CYCLE_CUTOFF,
+    JDOQueryProcessor.OPTION_FINGERPRINTS, JDOQueryProcessor.OPTION_REPORT, JDOQueryProcessor.OPTION_METADATA, JDOQueryProcessor.OPTION_REGISTRY,
+    JDOQueryProcessor.OPTION_FANOUT_WARNING, JDOQueryProcessor.OPTION_FANOUT_ERROR, JDOQueryProcessor.OPTION_CACHE_SIZE,
+    JDOQueryProcessor.OPTION_NATIVE_IMAGE, JDOQueryProcessor.OPTION_CANDIDATE_FIELD, JDOQueryProcessor.OPTION_FETCH_PLANS,
+    JDOQueryProcessor.OPTION_CLASS_INDEX, JDOQueryProcessor.OPTION_KEYSET, JDOQueryProcessor.OPTION_BULK, JDOQueryProcessor.OPTION_INDEX_CHECK,
+    JDOQueryProcessor.OPTION_PARAMETER_BINDER, JDOQueryProcessor.OPTION_VERBOSE})
 public class JDOQueryProcessor extends AbstractProcessor
 {
     // use "javac -AqueryMode=FIELD" to use fields
     public final static String OPTION_MODE = "queryMode";
 
-    private final static int MODE_FIELD = 1;
-    private final static int MODE_PROPERTY = 2;
+    // use "javac -AqueryDepth=3" to expand persistable members to 3 levels
+    public final static String OPTION_DEPTH = "queryDepth";
+
+    // use "javac -AqueryDepthOverrides=mydomain.A=2,mydomain.B#c=1" to set the depth for particular classes/members
+    public final static String OPTION_DEPTH_OVERRIDES = "queryDepthOverrides";
+
+    // use "javac -AqueryCycleCutoff=false" to expand a cyclic relation even when already being expanded further up the path
+    public final static String OPTION_CYCLE_CUTOFF = "queryCycleCutoff";
+
+    // use "javac -AqueryFingerprints=true" to skip rewriting Q classes whose inputs are unchanged since the last build
+    public final static String OPTION_FINGERPRINTS = "queryFingerprints";
+
+    // use "javac -AqueryReport=true" to write a JSON report of the cost of generating the Q classes
+    public final static String OPTION_REPORT = "queryReport";
+
+    // use "javac -AqueryMetadata=true" to also generate Q classes for classes declared persistable in JDO XML metadata
+    public final static String OPTION_METADATA = "queryMetadata";
+
+    // use "javac -AqueryRegistry=true" to generate a registry of the Q classes in each package
+    public final static String OPTION_REGISTRY = "queryRegistry";
+
+    // use "javac -AqueryFanoutWarning=5000" to warn when a candidate instantiates more than 5000 query expressions
+    public final static String OPTION_FANOUT_WARNING = "queryFanoutWarning";
+
+    // use "javac -AqueryFanoutError=50000" to fail when a candidate instantiates more than 50000 query expressions
+    public final static String OPTION_FANOUT_ERROR = "queryFanoutError";
+
+    // use "javac -AqueryCacheSize=100" to cache up to 100 named candidates (and parameters, and variables) in each Q class
+    public final static String OPTION_CACHE_SIZE = "queryCacheSize";
+
+    // use "javac -AqueryNativeImage=mygroup/myartifact" to generate GraalVM native-image configuration in META-INF/native-image/mygroup/myartifact
+    public final static String OPTION_NATIVE_IMAGE = "queryNativeImage";
+
+    // use "javac -AqueryCandidateField=true" to create the candidate in the static field "jdoCandidate" rather than on first use
+    public final static String OPTION_CANDIDATE_FIELD = "queryCandidateField";
+
+    // use "javac -AqueryFetchPlans=true" to generate a typed fetch plan builder in each Q class
+    public final static String OPTION_FETCH_PLANS = "queryFetchPlans";
+
+    // use "javac -AqueryClassIndex=true" to write an index of the persistable classes to META-INF/datanucleus/persistable-classes.idx
+    public final static String OPTION_CLASS_INDEX = "queryClassIndex";
+
+    // use "javac -AqueryKeyset=true" to generate a class for iterating in batches of primary key order in each Q class
+    public final static String OPTION_KEYSET = "queryKeyset";
+
+    // use "javac -AqueryBulk=true" to generate a builder of bulk updates and deletes in each Q class
+    public final static String OPTION_BULK = "queryBulk";
 
-    private final static String CODE_INDENT = "    ";
+    // use "javac -AqueryParameterBinder=true" to generate a typed binder of parameters named after the members in each Q class
+    public final static String OPTION_PARAMETER_BINDER = "queryParameterBinder";
+
+    // use "javac -AqueryIndexCheck=warning" to warn about query filters and orderings on members with no index
+    public final static String OPTION_INDEX_CHECK = "queryIndexCheck";
+
+    // use "javac -AqueryVerbose=true" to output a summary of the Q class generation at the end of the compilation
+    public final static String OPTION_VERBOSE = "queryVerbose";
+
+    private final static String NATIVE_IMAGE_DIR = "jdo-query";
+
+    private final static String FINGERPRINTS_FILENAME = "datanucleus-jdo-query-fingerprints.properties";
+
+    private final static String REPORT_FILENAME = "datanucleus-jdo-query-report.json";
+
+    /**
+     * Types of primary key that keyset iteration supports, being those with a comparable expression in the Q class and as a query parameter.
+     * Wrapper types and java.sql.Timestamp have an ObjectExpression, so can't be ordered or compared.
+     */
+    private final static Set<String> KEYSET_KEY_TYPES = new HashSet<String>(Arrays.asList("byte", "short", "int", "long", "float", "double", "char",
+        String.class.getName(), Date.class.getName(), java.sql.Date.class.getName(), java.sql.Time.class.getName()));
+
+    final static int MODE_FIELD = 1;
+    final static int MODE_PROPERTY = 2;
+    final static int MODE_LAZY_FIELD = 3;
+
+    /** Simple name of the registry class generated in each package. */
+    final static String REGISTRY_CLASS_NAME = "JDOQueryClassRegistry";
+
+    /** Package of the DataNucleus implementations of the query expressions. */
+    private final static String API_QUERY_PACKAGE = "org.datanucleus.api.jdo.query.";
+
+    /** Packages of the implementations of the query expressions held by the Q classes. */
+    private final static String[] EXPRESSION_IMPL_PACKAGES = {"org.datanucleus.api.jdo.query", "org.datanucleus.query.expression"};
+
+    /** Minimum number of Q classes in a round before their source is rendered in parallel. */
+    private final static int PARALLEL_RENDER_THRESHOLD = 8;
 
     public int queryMode = MODE_FIELD;
     public int fieldDepth = 5;
+    public boolean cycleCutoff = true;
+
+    /** Depth to use for particular classes, keyed by the class name. */
+    private Map<String, Integer> classDepths = new HashMap<String, Integer>();
+
+    /** Depth to use for particular members, keyed by "{className}#{memberName}". */
+    private Map<String, Integer> memberDepths = new HashMap<String, Integer>();
+
+    /**
+     * Persistable types related to each persistable type (directly, or via its persistent supertypes), keyed by class name.
+     * Like all caches of elements this is cleared at the end of each round, since elements are not to be used across rounds.
+     */
+    private Map<String, List<TypeElement>> relatedTypesByClassName = new HashMap<String, List<TypeElement>>();
+
+    /** Whether each persistable member is part of a cycle of relations, keyed by "{className}#{memberName}". */
+    private Map<String, Boolean> cyclicByMember = new HashMap<String, Boolean>();
+
+    /** Next persistent supertype of each class (null if none), keyed by class name. Cleared at the end of each round. */
+    private Map<String, TypeElement> persistentSupertypeByClassName = new HashMap<String, TypeElement>();
+
+    /** Persistable classes whose Q class is deferred to a later round, with the unresolved type each refers to, keyed by class name. */
+    private Map<String, String> deferredClassNames = new LinkedHashMap<String, String>();
+
+    /** Fingerprints of the inputs of each Q class from the previous build (when enabled). */
+    private FingerprintStore fingerprintStore = null;
+
+    /** Version of the processor and fingerprint of its code, included in the Q class fingerprints. */
+    private String processorFingerprint = null;
+
+    /** Query expression names for each (resolved) member type, keyed by the canonical type name. */
+    private Map<String, ExpressionTypeNames> expressionTypeNamesByType = new HashMap<String, ExpressionTypeNames>();
+
+    /** Number of lookups of query expression names for a member type, and how many were found in the cache. */
+    private int typeLookups = 0;
+    private int typeLookupHits = 0;
+
+    /** Total time spent resolving the query expression names for member types. */
+    private long typeResolutionNanos = 0;
+
+    /** Record of the cost of generating the Q classes in this compilation. */
+    private GenerationReport report = new GenerationReport();
+
+    /** File to write the JSON generation report to (if enabled). */
+    private File reportFile = null;
+
+    /** Whether to output a summary of the Q class generation at the end of the compilation. */
+    private boolean verbose = false;
+
+    /** Whether to generate a registry of the Q classes in each package. */
+    private boolean generateRegistry = false;
+
+    /** Models of the Q classes still to be written to the registry of their package, keyed by package name. */
+    private Map<String, List<QueryClassModel>> registryModelsByPackage = new TreeMap<String, List<QueryClassModel>>();
+
+    /** Names of the registry classes written, and the names of the persistable classes they were generated from. */
+    private Map<String, List<String>> registryClassNames = new TreeMap<String, List<String>>();
+
+    /** Number of query expressions instantiated by a candidate above which to warn (0 to not warn). */
+    private long fanoutWarning = 0;
+
+    /** Number of query expressions instantiated by a candidate above which to fail (0 to not fail). */
+    private long fanoutError = 0;
+
+    /** Maximum number of named candidates (and parameters, and variables) to cache in each Q class (0 to not cache). */
+    private int cacheSize = 0;
+
+    /** Whether to create the candidate of each Q class in a static field when the Q class is initialised, rather than on first use. */
+    private boolean candidateField = false;
+
+    /** Whether to generate a fetch plan builder in each Q class. */
+    private boolean generateFetchPlans = false;
+
+    /** Whether to generate a class for keyset paginated iteration in each Q class (with a suitable primary key). */
+    private boolean generateKeyset = false;
+
+    /** Whether to generate a builder of bulk updates and deletes in each Q class. */
+    private boolean generateBulk = false;
+
+    /** Whether to generate a typed binder of parameters named after the members in each Q class. */
+    private boolean generateParameterBinder = false;
+
+    /** Value of the query index check argument, and the analysis of the source for it (or null if not checked). */
+    private String indexCheck = null;
+    private QueryIndexAnalysis indexAnalysis = null;
+
+    /** Names of the Q classes written, whose source needn't be analysed. */
+    private Set<String> writtenQueryClassNames = new HashSet<String>();
+
+    /** Graph of the Q classes of this compilation, for computing the number of expressions they instantiate. */
+    private FanoutAnalysis fanoutAnalysis;
+
+    /** Report entries of the (top-level) Q classes, for recording their number of expressions. */
+    private Map<QueryClassModel, GenerationReport.ClassEntry> reportEntryByModel = new HashMap<QueryClassModel, GenerationReport.ClassEntry>();
+
+    /** Directory under "META-INF/native-image" to generate native image configuration in (or null if not generated). */
+    private String nativeImageDir = null;
+
+    /** Models of all Q classes of this compilation (when generating native image configuration). */
+    private List<QueryClassModel> nativeImageModels = new ArrayList<QueryClassModel>();
+
+    /** Index of the persistable classes of this compilation (or null if not generated). */
+    private PersistableClassIndex classIndex = null;
+
+    /** Names of the persistable classes in the index of this compilation. */
+    private List<String> classIndexClassNames = new ArrayList<String>();
+
+    /** Index of the classes declared persistable in XML metadata (if enabled). */
+    private JDOMetadataIndex metadataIndex = null;
 
     @Override
     public synchronized void init(ProcessingEnvironment pe)
@@ -112,13 +344,233 @@ public class JDOQueryProcessor extends AbstractProcessor
 
         // Get the query mode
         String queryMode = pe.getOptions().get(OPTION_MODE);
-        if (queryMode != null && queryMode.equalsIgnoreCase("FIELD"))
+        if (queryMode != null)
+        {
+            if (queryMode.equalsIgnoreCase("FIELD"))
+            {
+                this.queryMode = MODE_FIELD;
+            }
+            else if (queryMode.equalsIgnoreCase("PROPERTY"))
+            {
+                this.queryMode = MODE_PROPERTY;
+            }
+            else if (queryMode.equalsIgnoreCase("LAZY_FIELD"))
+            {
+                this.queryMode = MODE_LAZY_FIELD;
+            }
+            else
+            {
+                pe.getMessager().printMessage(Kind.WARNING, "DataNucleus : queryMode=" + queryMode + " not supported, so using FIELD");
+            }
+        }
+
+        // Get the query depth
+        String queryDepth = pe.getOptions().get(OPTION_DEPTH);
+        if (queryDepth != null)
+        {
+            try
+            {
+                this.fieldDepth = Integer.parseInt(queryDepth.trim());
+            }
+            catch (NumberFormatException nfe)
+            {
+                pe.getMessager().printMessage(Kind.WARNING, "DataNucleus : queryDepth=" + queryDepth + " is not a valid depth, so using " + fieldDepth);
+            }
+        }
+
+        // Get any class/member specific depths
+        String depthOverrides = pe.getOptions().get(OPTION_DEPTH_OVERRIDES);
+        if (depthOverrides != null)
+        {
+            for (String depthOverride : depthOverrides.split(","))
+            {
+                depthOverride = depthOverride.trim();
+                if (depthOverride.isEmpty())
+                {
+                    continue;
+                }
+
+                int sepPos = depthOverride.indexOf('=');
+                try
+                {
+                    if (sepPos < 1)
+                    {
+                        throw new NumberFormatException();
+                    }
+                    String name = depthOverride.substring(0, sepPos).trim();
+                    int depth = Integer.parseInt(depthOverride.substring(sepPos+1).trim());
+                    if (name.indexOf('#') > 0)
+                    {
+                        memberDepths.put(name, depth);
+                    }
+                    else
+                    {
+                        classDepths.put(name, depth);
+                    }
+                }
+                catch (NumberFormatException nfe)
+                {
+                    pe.getMessager().printMessage(Kind.WARNING, "DataNucleus : queryDepthOverrides entry \"" + depthOverride + "\" is not of the form {name}={depth} so is ignored");
+                }
+            }
+        }
+
+        String cycleCutoff = pe.getOptions().get(OPTION_CYCLE_CUTOFF);
+        if (cycleCutoff != null)
+        {
+            this.cycleCutoff = Boolean.parseBoolean(cycleCutoff.trim());
+        }
+
+        String fingerprints = pe.getOptions().get(OPTION_FINGERPRINTS);
+        if (fingerprints != null && !fingerprints.equalsIgnoreCase("false"))
+        {
+            initialiseFingerprintStore(fingerprints.equalsIgnoreCase("true") ? null : fingerprints);
+        }
+
+        String reportFileName = pe.getOptions().get(OPTION_REPORT);
+        if (reportFileName != null && !reportFileName.equalsIgnoreCase("false"))
+        {
+            reportFile = reportFileName.equalsIgnoreCase("true") ? getFileAlongsideClassOutput(REPORT_FILENAME) : new File(reportFileName);
+            if (reportFile == null)
+            {
+                pe.getMessager().printMessage(Kind.WARNING, "DataNucleus : class output is not a directory so the Q class generation report cannot be written. " +
+                    "Specify the file with -A" + OPTION_REPORT + "={file}");
+            }
+        }
+
+        String verbose = pe.getOptions().get(OPTION_VERBOSE);
+        if (verbose != null)
+        {
+            this.verbose = Boolean.parseBoolean(verbose.trim());
+        }
+
+        String registry = pe.getOptions().get(OPTION_REGISTRY);
+        if (registry != null)
+        {
+            this.generateRegistry = Boolean.parseBoolean(registry.trim());
+        }
+
+        String nativeImage = pe.getOptions().get(OPTION_NATIVE_IMAGE);
+        if (nativeImage != null && !nativeImage.equalsIgnoreCase("false"))
+        {
+            this.nativeImageDir = nativeImage.equalsIgnoreCase("true") ? NATIVE_IMAGE_DIR : nativeImage.trim().replace('\\', '/');
+        }
+
+        String candidateFieldValue = pe.getOptions().get(OPTION_CANDIDATE_FIELD);
+        if (candidateFieldValue != null)
+        {
+            this.candidateField = Boolean.parseBoolean(candidateFieldValue.trim());
+        }
+
+        String classIndexValue = pe.getOptions().get(OPTION_CLASS_INDEX);
+        if (classIndexValue != null && Boolean.parseBoolean(classIndexValue.trim()))
+        {
+            this.classIndex = new PersistableClassIndex();
+        }
+
+        String keyset = pe.getOptions().get(OPTION_KEYSET);
+        if (keyset != null)
+        {
+            this.generateKeyset = Boolean.parseBoolean(keyset.trim());
+        }
+
+        String bulk = pe.getOptions().get(OPTION_BULK);
+        if (bulk != null)
+        {
+            this.generateBulk = Boolean.parseBoolean(bulk.trim());
+        }
+
+        String parameterBinder = pe.getOptions().get(OPTION_PARAMETER_BINDER);
+        if (parameterBinder != null)
+        {
+            this.generateParameterBinder = Boolean.parseBoolean(parameterBinder.trim());
+        }
+
+        String fetchPlans = pe.getOptions().get(OPTION_FETCH_PLANS);
+        if (fetchPlans != null)
+        {
+            this.generateFetchPlans = Boolean.parseBoolean(fetchPlans.trim());
+        }
+
+        String indexCheckValue = pe.getOptions().get(OPTION_INDEX_CHECK);
+        if (indexCheckValue != null && !indexCheckValue.equalsIgnoreCase("false"))
+        {
+            initialiseIndexAnalysis(indexCheckValue.trim().toLowerCase());
+        }
+
+        cacheSize = (int)Math.min(getLongOption(OPTION_CACHE_SIZE, cacheSize), Integer.MAX_VALUE);
+        fanoutWarning = getLongOption(OPTION_FANOUT_WARNING, fanoutWarning);
+        fanoutError = getLongOption(OPTION_FANOUT_ERROR, fanoutError);
+        fanoutAnalysis = new FanoutAnalysis(this.queryMode);
+
+        String metadataFiles = pe.getOptions().get(OPTION_METADATA);
+        if (metadataFiles != null && !metadataFiles.equalsIgnoreCase("false"))
+        {
+            initialiseMetadataIndex(metadataFiles.equalsIgnoreCase("true") ? null : metadataFiles);
+        }
+    }
+
+    /**
+     * Convenience accessor for a (non-negative) numeric compiler argument.
+     * @param name Name of the argument
+     * @param defaultValue Value to use when not specified or not valid
+     * @return The value
+     */
+    private long getLongOption(String name, long defaultValue)
+    {
+        String value = processingEnv.getOptions().get(name);
+        if (value != null)
         {
-            this.queryMode = MODE_FIELD;
+            try
+            {
+                long longValue = Long.parseLong(value.trim());
+                if (longValue >= 0)
+                {
+                    return longValue;
+                }
+            }
+            catch (NumberFormatException nfe)
+            {
+                // Warned below
+            }
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : " + name + "=" + value + " is not a valid number, so using " + defaultValue);
         }
+        return defaultValue;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions()
+    {
+        Set<String> options = new HashSet<String>(super.getSupportedOptions());
+        // Gradle incremental processing category, since registered as "dynamic"
+        options.add(isAggregating() ? "org.gradle.annotation.processing.aggregating" : "org.gradle.annotation.processing.isolating");
+        return options;
+    }
+
+    /**
+     * Accessor for whether this processor writes files from several persistable classes (registries, native image configuration
+     * or the class index), so is "aggregating" for Gradle incremental builds rather than "isolating".
+     * @return Whether aggregating
+     */
+    private boolean isAggregating()
+    {
+        return generateRegistry || nativeImageDir != null || classIndex != null;
+    }
 
-        // TODO Parse persistence.xml and extract names of classes that are persistable
-//        pe.getElementUtils().getTypeElement(fullyQualifiedClassName);
+    @Override
+    public Set<String> getSupportedAnnotationTypes()
+    {
+        if (metadataIndex != null && metadataIndex.size() > 0)
+        {
+            // Classes declared in XML needn't have any annotations, so process all classes
+            return Collections.singleton("*");
+        }
+        if (indexAnalysis != null)
+        {
+            // Queries can be in any class, so process all classes
+            return Collections.singleton("*");
+        }
+        return super.getSupportedAnnotationTypes();
     }
 
     /* (non-Javadoc)
@@ -129,510 +581,1539 @@ public class JDOQueryProcessor extends AbstractProcessor
     {
         if (roundEnv.processingOver())
         {
-            return false;
+            if (fingerprintStore != null)
+            {
+                try
+                {
+                    fingerprintStore.save();
+                }
+                catch (IOException ioe)
+                {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to save Q class fingerprints to " + fingerprintStore.getFile() + " : " + ioe.getMessage());
+                }
+            }
+            if (isVerbose() && typeLookups > 0)
+            {
+                processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : member type resolution " + typeLookups + " lookups, " +
+                    (100L * typeLookupHits / typeLookups) + "% cache hits (" + expressionTypeNamesByType.size() + " types)");
+            }
+            if (!registryModelsByPackage.isEmpty())
+            {
+                // Only when persistable classes were deferred until the end
+                writeQueryClassRegistries();
+            }
+            if (!registryClassNames.isEmpty())
+            {
+                writeQueryClassRegistryServices();
+            }
+            if (nativeImageDir != null && !nativeImageModels.isEmpty())
+            {
+                writeNativeImageConfiguration();
+            }
+            if (classIndex != null && !classIndexClassNames.isEmpty())
+            {
+                writePersistableClassIndex();
+            }
+            for (Map.Entry<String, String> deferredEntry : deferredClassNames.entrySet())
+            {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : Q class for " + deferredEntry.getKey() + " not generated since it refers to " +
+                    "unresolved type " + deferredEntry.getValue(), processingEnv.getElementUtils().getTypeElement(deferredEntry.getKey()));
+            }
+            analyseFanout();
+            if (indexAnalysis != null && !indexAnalysis.getUnindexedUses().isEmpty())
+            {
+                for (QueryIndexAnalysis.UnindexedUse use : indexAnalysis.getUnindexedUses())
+                {
+                    report.addUnindexedUse(use.getClassName(), use.getMemberName(), use.getClause(), use.getSourceName(), use.getLineNumber());
+                }
+                if (isVerbose())
+                {
+                    processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : " + indexAnalysis.getUnindexedUses().size() +
+                        " use(s) of members with no index in JDOQLTypedQuery filters/orderings");
+                }
+            }
+            if (isVerbose() && !report.isEmpty())
+            {
+                processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : JDOQLTypedQuery " + report.getSummary());
+            }
+            if (reportFile != null)
+            {
+                try
+                {
+                    report.save(reportFile, getReportSettings());
+                }
+                catch (IOException ioe)
+                {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to write Q class generation report to " + reportFile + " : " + ioe.getMessage());
+                }
+            }
+            return false;
+        }
+
+        if (indexAnalysis != null)
+        {
+            analyseQueryIndexes(roundEnv);
+        }
+
+        // Extract the models of all Q classes on the processor thread, since javax.lang.model is not thread-safe
+        GenerationReport.RoundEntry round = report.startRound();
+        long startTime = System.nanoTime();
+        List<QueryClassModel> models = new ArrayList<QueryClassModel>();
+        List<GenerationReport.ClassEntry> entries = new ArrayList<GenerationReport.ClassEntry>();
+        List<TypeElement> persistableTypes = getPersistableTypesForRound(roundEnv);
+        for (TypeElement el : persistableTypes)
+        {
+            TypeMirror unresolvedType = getUnresolvedType(el);
+            if (unresolvedType != null)
+            {
+                // Type may be generated (e.g by another processor) in this round, so try again in the next round
+                deferredClassNames.put(el.getQualifiedName().toString(), unresolvedType.toString());
+                continue;
+            }
+
+            long classStartTime = System.nanoTime();
+            long classTypeResolutionNanos = typeResolutionNanos;
+            QueryClassModel model = createQueryClassModel(el);
+            if (model != null)
+            {
+                GenerationReport.ClassEntry entry = round.addClass(model.getClassNameFull(), model.getQClassNameFull(), getNumberOfMembers(model));
+                if (generateRegistry)
+                {
+                    addToQueryClassRegistry(model);
+                }
+                if (nativeImageDir != null)
+                {
+                    nativeImageModels.add(model);
+                }
+                if (classIndex != null)
+                {
+                    addToPersistableClassIndex(model);
+                }
+                fanoutAnalysis.add(model);
+                reportEntryByModel.put(model, entry);
+                boolean unchanged = false;
+                if (fingerprintStore != null)
+                {
+                    String fingerprint = getFingerprintForModel(model);
+                    if (fingerprintStore.matches(model.getQClassNameFull(), fingerprint) &&
+                        processingEnv.getElementUtils().getTypeElement(model.getQClassNameFull()) != null && isQueryClassSourceAvailable(model))
+                    {
+                        // Same inputs as the Q class that is already available to this compilation (and in the generated sources)
+                        unchanged = true;
+                    }
+                    else
+                    {
+                        fingerprintStore.put(model.getQClassNameFull(), fingerprint);
+                    }
+                }
+                entry.setInspection(System.nanoTime() - classStartTime, typeResolutionNanos - classTypeResolutionNanos);
+                if (unchanged)
+                {
+                    entry.setSkipped();
+                    continue;
+                }
+                models.add(model);
+                entries.add(entry);
+            }
+        }
+        long renderStartTime = System.nanoTime();
+
+        // Render their source (in parallel), then write them in order through the Filer
+        List<String> sources = renderQueryClasses(models, entries);
+        long writeStartTime = System.nanoTime();
+        for (int i=0;i<models.size();i++)
+        {
+            long classStartTime = System.nanoTime();
+            writeQueryClass(models.get(i), sources.get(i));
+            entries.get(i).setWritten(System.nanoTime() - classStartTime, sources.get(i));
+        }
+        if (!registryModelsByPackage.isEmpty() && persistableTypes.isEmpty() && deferredClassNames.isEmpty())
+        {
+            // Write the registries once a round has no more persistable classes (e.g generated by other processors), so they have
+            // all Q classes of their package. This isn't the last round (since writing them starts another), so they are compiled
+            writeQueryClassRegistries();
+        }
+        round.setPhases(renderStartTime - startTime, writeStartTime - renderStartTime, System.nanoTime() - writeStartTime);
+
+        // Elements are not to be used in a later round, so are looked up again there
+        relatedTypesByClassName.clear();
+        persistentSupertypeByClassName.clear();
+        return false;
+    }
+
+    /**
+     * Method to return the element of the persistable class of a Q class in the current round. Models kept for a later round
+     * (e.g for the registries or native image configuration) have the element of the round they were created in, which the
+     * compiler needn't keep valid, so it is looked up again by name.
+     * @param model Model of the Q class
+     * @return The element of the persistable class
+     */
+    private TypeElement getOriginatingElementForRound(QueryClassModel model)
+    {
+        TypeElement el = processingEnv.getElementUtils().getTypeElement(model.getClassNameFull().replace('$', '.'));
+        return (el != null ? el : model.getOriginatingElement());
+    }
+
+    /**
+     * Method to compute the number of query expressions instantiated when creating a candidate or parameter of each Q class
+     * of this compilation, recording them in the report and warning about (or failing on) those above the thresholds.
+     * Must be called once all Q classes have been added to the graph.
+     */
+    protected void analyseFanout()
+    {
+        for (QueryClassModel model : fanoutAnalysis.getModels())
+        {
+            long candidateExpressions = fanoutAnalysis.getCandidateExpressions(model);
+            long parameterExpressions = fanoutAnalysis.getParameterExpressions(model);
+            GenerationReport.ClassEntry entry = reportEntryByModel.get(model);
+            if (entry != null)
+            {
+                entry.setExpressions(candidateExpressions, parameterExpressions);
+            }
+
+            // Thresholds are against the candidate, which every query of the class creates. A parameter/variable expands one level
+            // more, so is only in the message
+            Kind kind = null;
+            long threshold = 0;
+            if (fanoutError > 0 && candidateExpressions > fanoutError)
+            {
+                kind = Kind.ERROR;
+                threshold = fanoutError;
+            }
+            else if (fanoutWarning > 0 && candidateExpressions > fanoutWarning)
+            {
+                kind = Kind.WARNING;
+                threshold = fanoutWarning;
+            }
+            if (kind != null)
+            {
+                processingEnv.getMessager().printMessage(kind, "DataNucleus : " + model.getQClassNameFull().replace('$', '.') + " instantiates " +
+                    candidateExpressions + " query expressions for a candidate (more than " + threshold + ") and " + parameterExpressions +
+                    " for a parameter/variable, largest relations " + fanoutAnalysis.getLargestRelations(model, 3) + ". Reduce the depth using " + OPTION_DEPTH + "/" + OPTION_DEPTH_OVERRIDES +
+                    ", or use " + OPTION_MODE + "=LAZY_FIELD", getOriginatingElementForRound(model));
+            }
+        }
+    }
+
+    /**
+     * Method to start the analysis of the source of the compilation for query filters and orderings on members with no index.
+     * This needs the javac Trees API, so isn't done where that isn't available (e.g another compiler).
+     * @param value Value of the argument, so the kind of diagnostic to output for each use
+     */
+    protected void initialiseIndexAnalysis(String value)
+    {
+        Kind kind = Kind.WARNING;
+        if (value.equals("note"))
+        {
+            kind = Kind.NOTE;
+        }
+        else if (value.equals("error"))
+        {
+            kind = Kind.ERROR;
+        }
+        else if (value.equals("report"))
+        {
+            kind = null;
+        }
+        else if (!value.equals("warning") && !value.equals("true"))
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : " + OPTION_INDEX_CHECK + "=" + value + " not supported, so using warning");
+            value = "warning";
+        }
+
+        try
+        {
+            indexAnalysis = new QueryIndexAnalysis(processingEnv, this, kind);
+            indexCheck = value;
+        }
+        catch (IllegalArgumentException | LinkageError e)
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : " + OPTION_INDEX_CHECK + " needs the javac Trees API, which is not available " +
+                "in this compiler, so queries are not checked");
+        }
+    }
+
+    /**
+     * Method to analyse the source of the root classes of a round (other than the Q classes written) for query filters
+     * and orderings on members with no index.
+     * @param roundEnv The round environment
+     */
+    protected void analyseQueryIndexes(RoundEnvironment roundEnv)
+    {
+        Set<Element> elements = new LinkedHashSet<Element>();
+        for (Element e : roundEnv.getRootElements())
+        {
+            if (!(e instanceof TypeElement) || !writtenQueryClassNames.contains(((TypeElement) e).getQualifiedName().toString()))
+            {
+                elements.add(e);
+            }
+        }
+        indexAnalysis.analyse(elements);
+    }
+
+    /**
+     * Method to add the Q class for the specified model to the registry of its package.
+     * @param model Model of the Q class
+     */
+    protected void addToQueryClassRegistry(QueryClassModel model)
+    {
+        String registryClassName = model.getPackageName() + "." + REGISTRY_CLASS_NAME;
+        if (registryClassNames.containsKey(registryClassName))
+        {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "DataNucleus : Q class for " + model.getClassNameFull() + " cannot be added to " + registryClassName +
+                " since that was generated in an earlier round with no persistable classes", model.getOriginatingElement());
+            return;
+        }
+
+        List<QueryClassModel> models = registryModelsByPackage.get(model.getPackageName());
+        if (models == null)
+        {
+            models = new ArrayList<QueryClassModel>();
+            registryModelsByPackage.put(model.getPackageName(), models);
+        }
+        models.add(model);
+    }
+
+    /**
+     * Method to write the registries of the Q classes for all packages with Q classes not yet in a registry.
+     * Must be called on the processor thread.
+     */
+    protected void writeQueryClassRegistries()
+    {
+        QueryClassRenderer renderer = new QueryClassRenderer(queryMode, cacheSize, candidateField, generateFetchPlans, generateBulk, generateParameterBinder);
+        for (Map.Entry<String, List<QueryClassModel>> registryEntry : registryModelsByPackage.entrySet())
+        {
+            String registryClassName = registryEntry.getKey() + "." + REGISTRY_CLASS_NAME;
+            List<Element> originatingElements = new ArrayList<Element>();
+            List<String> originatingClassNames = new ArrayList<String>();
+            for (QueryClassModel model : registryEntry.getValue())
+            {
+                originatingElements.add(getOriginatingElementForRound(model));
+                originatingClassNames.add(model.getClassNameFull());
+            }
+
+            try
+            {
+                JavaFileObject javaFile = processingEnv.getFiler().createSourceFile(registryClassName, originatingElements.toArray(new Element[originatingElements.size()]));
+                try (Writer w = javaFile.openWriter())
+                {
+                    w.write(renderer.renderRegistry(registryEntry.getKey(), registryEntry.getValue()));
+                }
+                registryClassNames.put(registryClassName, originatingClassNames);
+            }
+            catch (IOException e)
+            {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "DataNucleus : unable to write " + registryClassName + " : " + e.getMessage());
+            }
+        }
+        registryModelsByPackage.clear();
+    }
+
+    /**
+     * Method to register all registries written as services, so they can be found using ServiceLoader.
+     */
+    protected void writeQueryClassRegistryServices()
+    {
+        List<Element> originatingElements = new ArrayList<Element>();
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, List<String>> registryEntry : registryClassNames.entrySet())
+        {
+            str.append(registryEntry.getKey()).append('\n');
+            originatingElements.addAll(getElementsForRound(registryEntry.getValue()));
+        }
+        writeResource("META-INF/services/" + QueryClassRegistry.class.getName(), str.toString(), originatingElements);
+    }
+
+    /**
+     * Method to write the GraalVM native image configuration for all Q classes of this compilation, registering them
+     * (and their persistable classes) for reflection, and initialising the Q classes at build time.
+     */
+    protected void writeNativeImageConfiguration()
+    {
+        List<Element> originatingElements = new ArrayList<Element>();
+        List<String> qclassNames = new ArrayList<String>();
+        StringBuilder reflectConfig = new StringBuilder();
+        reflectConfig.append("[");
+        for (QueryClassModel model : nativeImageModels)
+        {
+            originatingElements.add(getOriginatingElementForRound(model));
+            addNativeImageReflectConfig(reflectConfig, model, qclassNames);
+        }
+        for (String registryClassName : registryClassNames.keySet())
+        {
+            // Instantiated by ServiceLoader
+            reflectConfig.append(reflectConfig.length() > 1 ? ",\n" : "\n").append("  {\"name\": ");
+            GenerationReport.appendJSONString(reflectConfig, registryClassName);
+            reflectConfig.append(", \"allDeclaredConstructors\": true, \"allPublicMethods\": true}");
+        }
+        reflectConfig.append("\n]\n");
+
+        // Args = --initialize-at-build-time=org.datanucleus.api.jdo.query,org.datanucleus.query.expression,mydomain.QA,mydomain.QB
+        // The expressions of the candidates are in the image heap, so the packages of their implementations are initialised at build time too
+        StringBuilder properties = new StringBuilder();
+        properties.append("Args = --initialize-at-build-time=");
+        List<String> buildTimeNames = new ArrayList<String>(Arrays.asList(EXPRESSION_IMPL_PACKAGES));
+        buildTimeNames.addAll(qclassNames);
+        for (int i=0;i<buildTimeNames.size();i++)
+        {
+            properties.append(i > 0 ? "," : "").append(buildTimeNames.get(i));
+        }
+        properties.append('\n');
+
+        String dir = "META-INF/native-image/" + nativeImageDir + "/";
+        writeResource(dir + "reflect-config.json", reflectConfig.toString(), originatingElements);
+        writeResource(dir + "native-image.properties", properties.toString(), originatingElements);
+    }
+
+    /**
+     * Method to add the reflection configuration for the Q class of the specified model, and that of any inner Q classes.
+     * @param str The reflection configuration (JSON array) being built
+     * @param model Model of the Q class
+     * @param qclassNames Binary names of the Q classes configured, to add to
+     */
+    private void addNativeImageReflectConfig(StringBuilder str, QueryClassModel model, List<String> qclassNames)
+    {
+        // {"name": "mydomain.QA", "allDeclaredConstructors": true, "allPublicMethods": true, "allPublicFields": true}
+        str.append(str.length() > 1 ? ",\n" : "\n").append("  {\"name\": ");
+        GenerationReport.appendJSONString(str, model.getQClassNameFull());
+        str.append(", \"allDeclaredConstructors\": true, \"allPublicMethods\": true, \"allPublicFields\": true}");
+
+        // {"name": "mydomain.A", "allDeclaredConstructors": true, "allDeclaredMethods": true, "allDeclaredFields": true}
+        str.append(",\n  {\"name\": ");
+        GenerationReport.appendJSONString(str, model.getClassNameFull());
+        str.append(", \"allDeclaredConstructors\": true, \"allDeclaredMethods\": true, \"allDeclaredFields\": true}");
+
+        qclassNames.add(model.getQClassNameFull());
+        if (!candidateField)
+        {
+            qclassNames.add(model.getQClassNameFull() + "$" + QueryClassRenderer.CANDIDATE_HOLDER);
+        }
+        if (!model.getCyclicMembers().isEmpty())
+        {
+            qclassNames.add(model.getQClassNameFull() + "$" + QueryClassRenderer.EXPANDING_HOLDER);
+        }
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            addNativeImageReflectConfig(str, innerModel, qclassNames);
+        }
+    }
+
+    /**
+     * Method to add the persistable class of the specified model (and those of any inner Q classes) to the index of persistable classes.
+     * @param model Model of the Q class
+     */
+    private void addToPersistableClassIndex(QueryClassModel model)
+    {
+        TypeElement el = model.getOriginatingElement();
+        TypeElement superEl = getPersistentSupertype(el);
+        classIndex.add(new PersistableClassIndex.Entry(model.getClassNameFull(),
+            superEl != null ? processingEnv.getElementUtils().getBinaryName(superEl).toString() : null, model.getQClassNameFull()));
+        classIndexClassNames.add(model.getClassNameFull());
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            addToPersistableClassIndex(innerModel);
+        }
+    }
+
+    /**
+     * Method to write the index of persistable classes, merged with the index of any previous build in the class output.
+     * Entries of the previous index are kept for classes not in this compilation that are still available and persistable.
+     */
+    protected void writePersistableClassIndex()
+    {
+        PersistableClassIndex previousIndex = new PersistableClassIndex();
+        try (InputStream in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", PersistableClassIndex.RESOURCE_NAME).openInputStream())
+        {
+            previousIndex.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        catch (FileNotFoundException | NoSuchFileException e)
+        {
+            // No previous build
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to read previous index " + PersistableClassIndex.RESOURCE_NAME +
+                " so only including the classes of this compilation : " + e.getMessage());
+        }
+
+        for (PersistableClassIndex.Entry entry : previousIndex.getEntries())
+        {
+            if (classIndex.getEntry(entry.getClassName()) == null)
+            {
+                TypeElement el = processingEnv.getElementUtils().getTypeElement(entry.getClassName().replace('$', '.'));
+                if (el != null && isPersistableType(el))
+                {
+                    classIndex.add(entry);
+                }
+            }
+        }
+
+        writeResource(PersistableClassIndex.RESOURCE_NAME, classIndex.getContent(), getElementsForRound(classIndexClassNames));
+    }
+
+    /**
+     * Method to look up the elements of the specified classes in the current round, for classes recorded in an earlier round.
+     * @param classNames Names of the classes
+     * @return The elements (of those still available)
+     */
+    private List<Element> getElementsForRound(List<String> classNames)
+    {
+        List<Element> elements = new ArrayList<Element>();
+        for (String className : classNames)
+        {
+            TypeElement el = processingEnv.getElementUtils().getTypeElement(className.replace('$', '.'));
+            if (el != null)
+            {
+                elements.add(el);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Method to write a resource to the class output.
+     * @param name Name of the resource (relative to the class output)
+     * @param content Content of the resource
+     * @param originatingElements The persistable classes that the resource is generated from
+     */
+    private void writeResource(String name, String content, List<Element> originatingElements)
+    {
+        try
+        {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", name,
+                originatingElements.toArray(new Element[originatingElements.size()]));
+            try (Writer w = file.openWriter())
+            {
+                w.write(content);
+            }
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "DataNucleus : unable to write " + name + " : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() 
+    {
+        return SourceVersion.latest();
+    }
+
+    /**
+     * Method to return the persistable classes to generate Q classes for in this round, ordered so that persistent supertypes
+     * come before their subtypes. These are the (top-level) classes of this round that are annotated as persistable or declared
+     * persistable in XML metadata, together with any deferred from previous rounds. Persistable nested classes have their Q class
+     * generated inside that of their enclosing class.
+     * @param roundEnv The round environment
+     * @return The persistable classes
+     */
+    protected List<TypeElement> getPersistableTypesForRound(RoundEnvironment roundEnv)
+    {
+        Set<TypeElement> types = new LinkedHashSet<TypeElement>();
+        for (String className : deferredClassNames.keySet())
+        {
+            TypeElement el = processingEnv.getElementUtils().getTypeElement(className);
+            if (el != null)
+            {
+                types.add(el);
+            }
+        }
+        deferredClassNames.clear();
+
+        for (Element e : roundEnv.getElementsAnnotatedWith(PersistenceCapable.class))
+        {
+            if (e instanceof TypeElement && e.getEnclosingElement().getKind() == ElementKind.PACKAGE)
+            {
+                types.add((TypeElement) e);
+            }
+        }
+        if (metadataIndex != null && metadataIndex.size() > 0)
+        {
+            for (Element e : roundEnv.getRootElements())
+            {
+                if (e instanceof TypeElement && metadataIndex.isPersistable(((TypeElement) e).getQualifiedName().toString()))
+                {
+                    types.add((TypeElement) e);
+                }
+            }
+        }
+
+        // Stable sort on the number of persistent supertypes, so supertypes come first
+        List<TypeElement> orderedTypes = new ArrayList<TypeElement>(types);
+        Map<TypeElement, Integer> depthByType = new HashMap<TypeElement, Integer>();
+        for (TypeElement el : orderedTypes)
+        {
+            int depth = 0;
+            for (TypeElement superEl = getPersistentSupertype(el); superEl != null; superEl = getPersistentSupertype(superEl))
+            {
+                depth++;
+            }
+            depthByType.put(el, depth);
+        }
+        orderedTypes.sort(Comparator.comparing(depthByType::get));
+        return orderedTypes;
+    }
+
+    /**
+     * Method to return any unresolved (error) type that the Q class for the specified class would depend on, so in its
+     * superclasses or the types of its persistent members (or those of any persistable nested classes).
+     * @param el The class
+     * @return The first unresolved type, or null if all are resolved
+     */
+    protected TypeMirror getUnresolvedType(TypeElement el)
+    {
+        TypeMirror superType = el.getSuperclass();
+        while (superType != null && superType.getKind() != TypeKind.NONE)
+        {
+            if (superType.getKind() == TypeKind.ERROR)
+            {
+                return superType;
+            }
+            TypeElement superEl = (TypeElement) processingEnv.getTypeUtils().asElement(superType);
+            superType = (superEl != null ? superEl.getSuperclass() : null);
+        }
+
+        List<? extends Element> members = getPersistentMembers(el);
+        if (members != null)
+        {
+            for (Element member : members)
+            {
+                TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
+                if (type != null && isUnresolved(type))
+                {
+                    return type;
+                }
+            }
+        }
+
+        for (Element encEl : el.getEnclosedElements())
+        {
+            if (encEl instanceof TypeElement && isPersistableType((TypeElement) encEl))
+            {
+                TypeMirror unresolvedType = getUnresolvedType((TypeElement) encEl);
+                if (unresolvedType != null)
+                {
+                    return unresolvedType;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUnresolved(TypeMirror type)
+    {
+        if (type.getKind() == TypeKind.ERROR)
+        {
+            return true;
+        }
+        else if (type.getKind() == TypeKind.ARRAY)
+        {
+            return isUnresolved(((ArrayType) type).getComponentType());
+        }
+        else if (type.getKind() == TypeKind.DECLARED)
+        {
+            for (TypeMirror typeArg : ((DeclaredType) type).getTypeArguments())
+            {
+                if (isUnresolved(typeArg))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to extract the model of the Q class for a JDO annotated class (so the criteria class stub).
+     * Must be called on the processor thread.
+     * @param el The class element
+     * @return The model, or null if the class is not persistable
+     */
+    protected QueryClassModel createQueryClassModel(TypeElement el)
+    {
+        if (el == null || !isPersistableType(el))
+        {
+            return null;
+        }
+
+        Elements elementUtils = processingEnv.getElementUtils();
+
+        // TODO Support specification of the location for writing the class source files
+        String classNameFull = elementUtils.getBinaryName(el).toString();
+        String pkgName = classNameFull.substring(0, classNameFull.lastIndexOf('.'));
+        String classNameSimple = classNameFull.substring(classNameFull.lastIndexOf('.') + 1);
+        String qclassNameSimple = getQueryClassNameForClassName(classNameSimple);
+        String qclassNameFull = pkgName + "." + qclassNameSimple;
+
+        Map<String, TypeMirror> genericLookups = getGenericLookups(el);
+
+        List<QueryClassModel> innerModels = new ArrayList<QueryClassModel>();
+        List<? extends Element> encElems = el.getEnclosedElements();
+        if (encElems != null)
+        {
+            for (Element encE : encElems)
+            {
+                if (encE instanceof TypeElement)
+                {
+                    TypeElement encEl = (TypeElement)encE;
+                    if (isPersistableType(encEl))
+                    {
+                        // Static inner class that is persistable, so needing own Qclass inlined here
+                        // TODO Support static inner persistable classes
+                        String innerclassNameFull = elementUtils.getBinaryName(encEl).toString();
+                        String innerclassNameSimple = innerclassNameFull.substring(innerclassNameFull.lastIndexOf('.') + 1);
+                        String innerclassNameSimpleShort = innerclassNameSimple.substring(innerclassNameSimple.indexOf("$")+1);
+                        String qinnerclassNameSimpleShort = getQueryClassNameForClassName(innerclassNameSimpleShort);
+                        String qinnerclassNameFull = pkgName + "." + qclassNameSimple + "$" + qinnerclassNameSimpleShort;
+
+                        List<QueryClassModel.Member> innerMembers = getMembersForQueryClass(encEl, genericLookups);
+                        innerModels.add(new QueryClassModel(encEl, encEl.getQualifiedName().toString(), innerclassNameFull, pkgName, innerclassNameSimpleShort,
+                            qinnerclassNameSimpleShort, qinnerclassNameFull, getSuperQueryClassName(encEl), getDepthForClass(encEl),
+                            innerMembers, needsInheritedMembers() ? getInheritedMembers(encEl) : Collections.<QueryClassModel.Member>emptyList(),
+                            new ArrayList<QueryClassModel>(), getProjectionsForQueryClass(encEl, qinnerclassNameSimpleShort, innerMembers),
+                            generateKeyset ? getKeyMember(encEl, innerMembers) : null, getReferencedTypeNames(encEl, genericLookups)));
+                    }
+                }
+            }
+        }
+
+        List<QueryClassModel.Member> members = getMembersForQueryClass(el, genericLookups);
+        return new QueryClassModel(el, el.getQualifiedName().toString(), classNameFull, pkgName, classNameSimple, qclassNameSimple, qclassNameFull,
+            getSuperQueryClassName(el), getDepthForClass(el), members, needsInheritedMembers() ? getInheritedMembers(el) : Collections.<QueryClassModel.Member>emptyList(),
+            innerModels, getProjectionsForQueryClass(el, qclassNameSimple, members), generateKeyset ? getKeyMember(el, members) : null,
+            getReferencedTypeNames(el, genericLookups));
+    }
+
+    /**
+     * Method to return the canonical names of the top-level types that the Q class for the specified class refers to, so
+     * the class and its persistent supertypes, the types of their persistent members (including any type arguments), and the
+     * Q classes of those that are persistable.
+     * @param el The class element
+     * @param genericLookups Types of the type variables of the class
+     * @return The type names
+     */
+    private Set<String> getReferencedTypeNames(TypeElement el, Map<String, TypeMirror> genericLookups)
+    {
+        Set<String> typeNames = new HashSet<String>();
+        for (TypeElement typeEl = el; typeEl != null; typeEl = getPersistentSupertype(typeEl))
+        {
+            addTypeNames(typeEl.asType(), typeNames);
+            List<? extends Element> members = getPersistentMembers(typeEl);
+            if (members != null)
+            {
+                for (Element member : members)
+                {
+                    addTypeNames(AnnotationProcessorUtils.getDeclaredType(member), typeNames);
+                }
+            }
+        }
+        if (genericLookups != null)
+        {
+            for (TypeMirror type : genericLookups.values())
+            {
+                addTypeNames(type, typeNames);
+            }
+        }
+        return typeNames;
+    }
+
+    private void addTypeNames(TypeMirror type, Set<String> typeNames)
+    {
+        if (type.getKind() == TypeKind.ARRAY)
+        {
+            addTypeNames(((ArrayType) type).getComponentType(), typeNames);
+        }
+        else if (type.getKind() == TypeKind.WILDCARD)
+        {
+            WildcardType wildcardType = (WildcardType) type;
+            if (wildcardType.getExtendsBound() != null)
+            {
+                addTypeNames(wildcardType.getExtendsBound(), typeNames);
+            }
+            if (wildcardType.getSuperBound() != null)
+            {
+                addTypeNames(wildcardType.getSuperBound(), typeNames);
+            }
+        }
+        else if (type.getKind() == TypeKind.DECLARED)
+        {
+            TypeElement typeEl = (TypeElement) processingEnv.getTypeUtils().asElement(type);
+            TypeElement topLevelEl = typeEl;
+            while (topLevelEl.getEnclosingElement() instanceof TypeElement)
+            {
+                topLevelEl = (TypeElement) topLevelEl.getEnclosingElement();
+            }
+            typeNames.add(topLevelEl.getQualifiedName().toString());
+            if (isPersistableType(typeEl))
+            {
+                // Q class of an inner class is inside the Q class of the top-level class
+                String pkgName = processingEnv.getElementUtils().getPackageOf(typeEl).getQualifiedName().toString();
+                String qclassName = getQueryClassNameForType(typeEl);
+                int qclassEnd = qclassName.indexOf('.', pkgName.isEmpty() ? 0 : pkgName.length()+1);
+                typeNames.add(qclassEnd < 0 ? qclassName : qclassName.substring(0, qclassEnd));
+            }
+            for (TypeMirror typeArg : ((DeclaredType) type).getTypeArguments())
+            {
+                addTypeNames(typeArg, typeNames);
+            }
+        }
+    }
+
+    /**
+     * Method to return the bounds of the type parameters of the specified class, for use as the types of members declared
+     * with a type parameter.
+     * @param el The class element
+     * @return The bound of each type parameter keyed by its name, or null if none are bounded
+     */
+    private Map<String, TypeMirror> getGenericLookups(TypeElement el)
+    {
+        Map<String, TypeMirror> genericLookups = null;
+        List<? extends TypeParameterElement> elTypeParams = el.getTypeParameters();
+        for (TypeParameterElement elTypeParam : elTypeParams)
+        {
+            List<? extends TypeMirror> elTypeBounds = elTypeParam.getBounds();
+            if (elTypeBounds != null && !elTypeBounds.isEmpty())
+            {
+                genericLookups = new HashMap<String, TypeMirror>();
+                genericLookups.put(elTypeParam.toString(), elTypeBounds.get(0));
+            }
+        }
+        return genericLookups;
+    }
+
+    private boolean needsInheritedMembers()
+    {
+        // Fetch plan builders, bulk builders and parameter binders include the members of persistent supertypes
+        return generateFetchPlans || generateBulk || generateParameterBinder;
+    }
+
+    /**
+     * Method to return the persistent members of the persistent supertypes of the specified class, those of the nearest
+     * supertype first, omitting any with the same name as a member of a nearer supertype.
+     * @param el The class element
+     * @return The inherited members
+     */
+    private List<QueryClassModel.Member> getInheritedMembers(TypeElement el)
+    {
+        List<QueryClassModel.Member> inheritedMembers = new ArrayList<QueryClassModel.Member>();
+        Set<String> memberNames = new HashSet<String>();
+        for (TypeElement superEl = getPersistentSupertype(el); superEl != null; superEl = getPersistentSupertype(superEl))
+        {
+            for (QueryClassModel.Member member : getMembersForQueryClass(superEl, getGenericLookups(superEl)))
+            {
+                if (memberNames.add(member.getName()))
+                {
+                    inheritedMembers.add(member);
+                }
+            }
+        }
+        return inheritedMembers;
+    }
+
+    /**
+     * Method to return the primary key member to iterate over the instances of the specified class in order of. This is only
+     * where the class (including its persistent supertypes) has a single primary key member, of a type that can be compared
+     * with a query parameter.
+     * @param el The class element
+     * @param members Persistent members of the class
+     * @return The primary key member, or null if not suitable
+     */
+    private QueryClassModel.Member getKeyMember(TypeElement el, List<QueryClassModel.Member> members)
+    {
+        List<String> keyNames = new ArrayList<String>();
+        for (TypeElement typeEl = el; typeEl != null; typeEl = getPersistentSupertype(typeEl))
+        {
+            List<? extends Element> typeMembers = getPersistentMembers(typeEl);
+            if (typeMembers != null)
+            {
+                for (Element member : typeMembers)
+                {
+                    if (member.getAnnotation(PrimaryKey.class) != null ||
+                        "true".equals(AnnotationProcessorUtils.getValueForAnnotationAttribute(member, Persistent.class, "primaryKey")))
+                    {
+                        keyNames.add(AnnotationProcessorUtils.getMemberName(member));
+                    }
+                }
+            }
+        }
+        if (keyNames.size() != 1)
+        {
+            if (keyNames.size() > 1)
+            {
+                processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : keyset iteration not generated for " + el.getQualifiedName() +
+                    " since it has a composite primary key " + keyNames, el);
+            }
+            return null;
+        }
+
+        List<QueryClassModel.Member> keyCandidates = new ArrayList<QueryClassModel.Member>(members);
+        keyCandidates.addAll(getInheritedMembers(el));
+        for (QueryClassModel.Member member : keyCandidates)
+        {
+            if (member.getName().equals(keyNames.get(0)))
+            {
+                if (!KEYSET_KEY_TYPES.contains(member.getTypeName()))
+                {
+                    processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : keyset iteration not generated for " + el.getQualifiedName() +
+                        " since its primary key " + member.getName() + " is of type " + member.getTypeName() + " which can't be compared in a query parameter", el);
+                    return null;
+                }
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return the projections specified for the specified class using {@link Projection}. Any projection that is not
+     * valid is reported as an error and omitted.
+     * @param el The class element
+     * @param qclassNameSimple Simple name of the Q class of the class (that the projection classes are nested in)
+     * @param members Persistent members of the class
+     * @return The projections
+     */
+    private List<QueryClassModel.ProjectionClass> getProjectionsForQueryClass(TypeElement el, String qclassNameSimple, List<QueryClassModel.Member> members)
+    {
+        Projection[] projectionAnns = el.getAnnotationsByType(Projection.class);
+        if (projectionAnns.length == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        // Members that can be projected, so those of this class and its persistent supertypes
+        Map<String, QueryClassModel.Member> memberByName = new HashMap<String, QueryClassModel.Member>();
+        for (QueryClassModel.Member member : getInheritedMembers(el))
+        {
+            memberByName.put(member.getName(), member);
+        }
+        for (QueryClassModel.Member member : members)
+        {
+            memberByName.put(member.getName(), member);
+        }
+
+        // Names of the classes nested in the Q class already
+        Set<String> nestedNames = new HashSet<String>();
+        nestedNames.add(qclassNameSimple);
+        nestedNames.add(QueryClassRenderer.PARAMETER_BINDER);
+        nestedNames.add(QueryClassRenderer.CANDIDATE_HOLDER);
+        nestedNames.add(QueryClassRenderer.FETCH_PLAN_BUILDER);
+        nestedNames.add(QueryClassRenderer.KEYSET_ITERATOR);
+        nestedNames.add(QueryClassRenderer.BULK_BUILDER);
+        for (Element encE : el.getEnclosedElements())
+        {
+            if (encE instanceof TypeElement && isPersistableType((TypeElement)encE))
+            {
+                nestedNames.add(getQueryClassNameForClassName(encE.getSimpleName().toString()));
+            }
+        }
+
+        List<QueryClassModel.ProjectionClass> projections = new ArrayList<QueryClassModel.ProjectionClass>();
+        for (Projection projectionAnn : projectionAnns)
+        {
+            String name = projectionAnn.name();
+            String error = null;
+            List<QueryClassModel.Member> projectionMembers = new ArrayList<QueryClassModel.Member>();
+            if (!SourceVersion.isName(name) || name.indexOf('.') >= 0)
+            {
+                error = "name \"" + name + "\" is not a valid class name";
+            }
+            else if (!nestedNames.add(name))
+            {
+                error = "name \"" + name + "\" is already used in " + qclassNameSimple;
+            }
+            else if (projectionAnn.members().length == 0)
+            {
+                error = "it has no members";
+            }
+            for (String memberName : projectionAnn.members())
+            {
+                if (error != null)
+                {
+                    break;
+                }
+
+                QueryClassModel.Member member = memberByName.get(memberName);
+                if (member == null)
+                {
+                    error = "member \"" + memberName + "\" is not a persistent member of " + el.getQualifiedName();
+                }
+                else if (projectionMembers.contains(member))
+                {
+                    error = "member \"" + memberName + "\" is specified more than once";
+                }
+                else if (member.isPersistable() && queryMode != MODE_PROPERTY && (member.getMaxDepth() == 0 || getDepthForClass(el) == 0))
+                {
+                    error = "member \"" + memberName + "\" is a relation that is not expanded in " + qclassNameSimple;
+                }
+                projectionMembers.add(member);
+            }
+
+            if (error != null)
+            {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "DataNucleus : projection " + name + " of " + el.getQualifiedName() + " not generated since " + error, el);
+                continue;
+            }
+            projections.add(new QueryClassModel.ProjectionClass(name, projectionMembers));
+        }
+        return projections;
+    }
+
+    /**
+     * Method to return the name of the Q class to extend for the specified class, so that of its persistent supertype.
+     * @param el The class element
+     * @return Name of the Q class of the persistent supertype, or null if there is none
+     */
+    private String getSuperQueryClassName(TypeElement el)
+    {
+        TypeElement superEl = getPersistentSupertype(el);
+        if (superEl == null)
+        {
+            return null;
+        }
+
+        // "public class QASub extends QA"
+        return getQueryClassNameForType(superEl);
+    }
+
+    /**
+     * Method to return the (canonical) name of the Q class for the specified persistable type.
+     * A Q class for a static inner class is generated inside the Q class of its enclosing class, so "mydomain.A.B"
+     * becomes "mydomain.QA.QB".
+     * @param el The persistable type
+     * @return The Q class name
+     */
+    private String getQueryClassNameForType(TypeElement el)
+    {
+        Element enclosingEl = el.getEnclosingElement();
+        String prefix;
+        if (enclosingEl instanceof TypeElement)
+        {
+            prefix = getQueryClassNameForType((TypeElement) enclosingEl) + ".";
+        }
+        else
+        {
+            String pkgName = processingEnv.getElementUtils().getPackageOf(el).getQualifiedName().toString();
+            prefix = pkgName.isEmpty() ? "" : pkgName + ".";
+        }
+        return prefix + getQueryClassNameForClassName(el.getSimpleName().toString());
+    }
+
+    /**
+     * Method to return the models of the members to have in the Q class for the specified class.
+     * @param el The class element
+     * @param genericLookups Lookup for TypeVariables
+     * @return The member models
+     */
+    private List<QueryClassModel.Member> getMembersForQueryClass(TypeElement el, Map<String, TypeMirror> genericLookups)
+    {
+        List<QueryClassModel.Member> memberModels = new ArrayList<QueryClassModel.Member>();
+        List<? extends Element> members = getPersistentMembers(el);
+        if (members != null)
+        {
+            Iterator<? extends Element> iter = members.iterator();
+            while (iter.hasNext())
+            {
+                Element member = iter.next();
+                if (member.getKind() == ElementKind.FIELD ||
+                    (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
+                {
+                    TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
+                    if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
+                    {
+                        type = genericLookups.get(type.toString());
+                    }
+                    ExpressionTypeNames typeNames = getExpressionTypeNames(type);
+                    boolean persistable = typeNames.persistable;
+                    memberModels.add(new QueryClassModel.Member(AnnotationProcessorUtils.getMemberName(member), type.toString(),
+                        typeNames.interfaceName, typeNames.implClassName, persistable, persistable ? getMaxDepthForMember(member) : -1,
+                        persistable && cycleCutoff && queryMode == MODE_FIELD && isCyclicMember(member, type)));
+                }
+            }
+        }
+        return memberModels;
+    }
+
+    /**
+     * Method to render the source of the Q classes for the specified models, in parallel when there are several.
+     * Doesn't use javax.lang.model, so is safe to run off the processor thread.
+     * @param models Models of the Q classes
+     * @param entries Records of the Q classes in the generation report, in the same order as the models
+     * @return The sources, in the same order as the models
+     */
+    protected List<String> renderQueryClasses(List<QueryClassModel> models, List<GenerationReport.ClassEntry> entries)
+    {
+        final QueryClassRenderer renderer = new QueryClassRenderer(queryMode, cacheSize, candidateField, generateFetchPlans, generateBulk, generateParameterBinder);
+        if (models.size() < PARALLEL_RENDER_THRESHOLD)
+        {
+            List<String> sources = new ArrayList<String>(models.size());
+            for (int i=0;i<models.size();i++)
+            {
+                sources.add(renderQueryClass(renderer, models.get(i), entries.get(i)));
+            }
+            return sources;
+        }
+
+        try
+        {
+            // Each task only records into its own entry, and get() makes the records visible to this thread
+            return ForkJoinPool.commonPool().submit(() -> IntStream.range(0, models.size()).parallel()
+                .mapToObj(i -> renderQueryClass(renderer, models.get(i), entries.get(i))).collect(Collectors.toList())).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted rendering Q classes", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Error rendering Q classes", e.getCause());
+        }
+    }
+
+    private static String renderQueryClass(QueryClassRenderer renderer, QueryClassModel model, GenerationReport.ClassEntry entry)
+    {
+        long startTime = System.nanoTime();
+        String source = renderer.render(model);
+        entry.setRenderNanos(System.nanoTime() - startTime);
+        return source;
+    }
+
+    /**
+     * Method to write the source of a Q class through the Filer. Must be called on the processor thread.
+     * @param model Model of the Q class
+     * @param source The source
+     */
+    protected void writeQueryClass(QueryClassModel model, String source)
+    {
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : persistable (static) inner class " + innerModel.getClassNameFull() +
+                " really should be in own file. Generating its Q class inlined in " + model.getQClassNameFull(), innerModel.getOriginatingElement());
+        }
+
+        try
+        {
+            JavaFileObject javaFile = processingEnv.getFiler().createSourceFile(model.getQClassNameFull(), getOriginatingElements(model));
+            writtenQueryClassNames.add(model.getQClassNameFull());
+            Writer w = javaFile.openWriter();
+            try
+            {
+                w.write(source);
+            }
+            finally
+            {
+                w.close();
+            }
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "DataNucleus : unable to write " + model.getQClassNameFull() + " : " + e.getMessage(),
+                model.getOriginatingElement());
+        }
+    }
+
+    /**
+     * Method to return the originating elements of a Q class, so incremental builds can tie the Q class to them.
+     * This is the persistable class and, when aggregating, its persistent supertypes whose members the Q class inherits.
+     * An isolating processor (for Gradle) must have exactly one originating element, but there a change to a supertype
+     * recompiles its subclasses, so their Q classes are regenerated anyway.
+     * @param model Model of the Q class
+     * @return The originating elements
+     */
+    private Element[] getOriginatingElements(QueryClassModel model)
+    {
+        TypeElement el = model.getOriginatingElement();
+        if (!isAggregating())
+        {
+            return new Element[] {el};
+        }
+
+        List<Element> originatingElements = new ArrayList<Element>();
+        originatingElements.add(el);
+        for (TypeElement superEl = getPersistentSupertype(el); superEl != null; superEl = getPersistentSupertype(superEl))
+        {
+            originatingElements.add(superEl);
+        }
+        return originatingElements.toArray(new Element[originatingElements.size()]);
+    }
+
+    /**
+     * Method to return whether the source of a Q class is in the source output, so not writing it again still leaves it there.
+     * The Q class can be visible to the compilation when its source is not (e.g only its class is left from an earlier build).
+     * @param model Model of the Q class
+     * @return Whether the source is available
+     */
+    private boolean isQueryClassSourceAvailable(QueryClassModel model)
+    {
+        try
+        {
+            FileObject sourceFile = processingEnv.getFiler().getResource(StandardLocation.SOURCE_OUTPUT, model.getPackageName(),
+                model.getQClassNameSimple() + ".java");
+            sourceFile.openInputStream().close();
+            return true;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            // Not available
+            return false;
+        }
+    }
+
+    /**
+     * Method to return a file alongside the class output directory, so it isn't packaged with the classes.
+     * @param fileName Name of the file
+     * @return The file, or null if the class output is not a directory
+     */
+    private File getFileAlongsideClassOutput(String fileName)
+    {
+        try
+        {
+            FileObject classOutput = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", fileName);
+            URI uri = classOutput.toUri();
+            if ("file".equals(uri.getScheme()))
+            {
+                // Put it in the parent of the class output directory
+                File classOutputDir = new File(uri).getParentFile();
+                return new File(classOutputDir.getParentFile() != null ? classOutputDir.getParentFile() : classOutputDir, fileName);
+            }
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            // Not available
+        }
+        return null;
+    }
+
+    /**
+     * Method to set up the index of classes declared persistable in XML metadata.
+     * @param fileNames Comma-separated names of the metadata files, or null to read them from the class output
+     */
+    protected void initialiseMetadataIndex(String fileNames)
+    {
+        metadataIndex = new JDOMetadataIndex();
+        Set<String> loaded = new HashSet<String>();
+        if (fileNames == null)
+        {
+            loadMetadataResource("META-INF/persistence.xml", loaded);
+            loadMetadataResource("META-INF/package.jdo", loaded);
+        }
+        else
+        {
+            for (String fileName : fileNames.split(","))
+            {
+                if (!fileName.trim().isEmpty())
+                {
+                    loadMetadataFile(new File(fileName.trim()), loaded);
+                }
+            }
+        }
+        if (isVerbose())
+        {
+            processingEnv.getMessager().printMessage(Kind.NOTE, "DataNucleus : " + metadataIndex.size() + " persistable class(es) declared in XML metadata");
+        }
+    }
+
+    /**
+     * Method to add the classes in a metadata file in the class output to the metadata index, as well as those in any mapping files it refers to.
+     * @param name Name of the file relative to the class output
+     * @param loaded Names of the metadata files already loaded
+     */
+    private void loadMetadataResource(String name, Set<String> loaded)
+    {
+        if (!loaded.add(name))
+        {
+            return;
+        }
+
+        List<String> mappingFiles;
+        try (InputStream in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", name).openInputStream())
+        {
+            mappingFiles = metadataIndex.load(in);
+        }
+        catch (FileNotFoundException | NoSuchFileException e)
+        {
+            // Not present
+            return;
+        }
+        catch (IOException | IllegalArgumentException | XMLStreamException e)
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to read JDO metadata " + name + " : " + e.getMessage());
+            return;
+        }
+
+        for (String mappingFile : mappingFiles)
+        {
+            loadMetadataResource(mappingFile, loaded);
+        }
+    }
+
+    /**
+     * Method to add the classes in a metadata file to the metadata index, as well as those in any mapping files it refers to.
+     * @param file The file
+     * @param loaded Paths of the metadata files already loaded
+     */
+    private void loadMetadataFile(File file, Set<String> loaded)
+    {
+        if (!loaded.add(file.getAbsolutePath()))
+        {
+            return;
+        }
+
+        List<String> mappingFiles;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+        {
+            mappingFiles = metadataIndex.load(in);
+        }
+        catch (IOException | XMLStreamException e)
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to read JDO metadata " + file + " : " + e.getMessage());
+            return;
         }
 
-        Set<? extends Element> elements = roundEnv.getRootElements();
-        for (Element e : elements)
+        if (!mappingFiles.isEmpty())
         {
-            if (e instanceof TypeElement)
+            // Mapping files are relative to the root of the persistence unit, so the parent of "META-INF"
+            File rootDir = file.getAbsoluteFile().getParentFile();
+            if (rootDir != null && rootDir.getName().equals("META-INF") && rootDir.getParentFile() != null)
+            {
+                rootDir = rootDir.getParentFile();
+            }
+            for (String mappingFile : mappingFiles)
             {
-                processClass((TypeElement)e);
+                loadMetadataFile(new File(rootDir, mappingFile), loaded);
             }
         }
-        return false;
-    }
-
-    @Override
-    public SourceVersion getSupportedSourceVersion() 
-    {
-        return SourceVersion.latest();
     }
 
     /**
-     * Handler for processing a JDO annotated class to create the criteria class stub.
-     * @param el The class element
+     * Method to set up the store of Q class fingerprints.
+     * @param fileName Name of the file to persist them in, or null to put them alongside the class output directory
      */
-    protected void processClass(TypeElement el)
+    protected void initialiseFingerprintStore(String fileName)
     {
-        if (el == null || !isPersistableType(el))
+        File file = null;
+        if (fileName != null)
         {
-            return;
+            file = new File(fileName);
         }
-
-        Elements elementUtils = processingEnv.getElementUtils();
-
-        // TODO Support specification of the location for writing the class source files
-        // TODO Set references to other classes to be the class name and put the package in the imports
-        String classNameFull = elementUtils.getBinaryName(el).toString();
-        String pkgName = classNameFull.substring(0, classNameFull.lastIndexOf('.'));
-        String classNameSimple = classNameFull.substring(classNameFull.lastIndexOf('.') + 1);
-        String qclassNameSimple = getQueryClassNameForClassName(classNameSimple);
-        String qclassNameFull = pkgName + "." + qclassNameSimple;
-        System.out.println("DataNucleus : JDOQLTypedQuery Q class generation : " + classNameFull + " -> " + qclassNameFull);
-
-        Map<String, TypeMirror> genericLookups = null;
-        List<? extends TypeParameterElement> elTypeParams = el.getTypeParameters();
-        for (TypeParameterElement elTypeParam : elTypeParams)
+        else
         {
-            List<? extends TypeMirror> elTypeBounds = elTypeParam.getBounds();
-            if (elTypeBounds != null && !elTypeBounds.isEmpty())
+            file = getFileAlongsideClassOutput(FINGERPRINTS_FILENAME);
+            if (file == null)
             {
-                genericLookups = new HashMap<String, TypeMirror>();
-                genericLookups.put(elTypeParam.toString(), elTypeBounds.get(0));
+                processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : class output is not a directory so Q class fingerprints cannot be stored. " +
+                    "Specify the file with -A" + OPTION_FINGERPRINTS + "={file}");
+                return;
             }
         }
 
+        // Fingerprint the processor itself, since its version is not known (or is a snapshot) when not run from a released jar
+        String version = JDOQueryProcessor.class.getPackage().getImplementationVersion();
+        String codeFingerprint = null;
         try
         {
-            JavaFileObject javaFile = processingEnv.getFiler().createSourceFile(qclassNameFull);
-            Writer w = javaFile.openWriter();
-            try
-            {
-                // Package declaration and imports
-                w.append("package " + pkgName + ";\n");
-                w.append("\n");
-                w.append("import javax.jdo.query.*;\n");
-                w.append("import org.datanucleus.api.jdo.query.*;\n");
-                List<? extends Element> encElems = el.getEnclosedElements();
-                if (encElems != null)
-                {
-                    for (Element encE : encElems)
-                    {
-                        if (encE instanceof TypeElement)
-                        {
-                            TypeElement encEl = (TypeElement)encE;
-                            if (isPersistableType(encEl))
-                            {
-                                String innerclassNameFull = elementUtils.getBinaryName(encEl).toString();
-                                String innerclassNameSimple = innerclassNameFull.substring(innerclassNameFull.lastIndexOf('.') + 1);
-                                String innerclassNameSimpleShort = innerclassNameSimple.substring(innerclassNameSimple.indexOf("$")+1);
-                                w.append("import " + classNameFull + "." + innerclassNameSimpleShort + ";\n");
-                            }
-                        }
-                    }
-                }
-                w.append("\n");
-
-                // Class declaration
-                w.append("public class " + qclassNameSimple);
-                TypeElement superEl = getPersistentSupertype(el);
-                if (superEl != null)
-                {
-                    // "public class QASub extends QA"
-                    String superClassName = elementUtils.getBinaryName(superEl).toString();
-                    w.append(" extends ").append(superClassName.substring(0, superClassName.lastIndexOf('.')+1));
-                    w.append(getQueryClassNameForClassName(superClassName.substring(superClassName.lastIndexOf('.')+1)));
-                }
-                else
-                {
-                    // "public class QA extends PersistableExpressionImpl<A> implements PersistableExpression<A>"
-                    w.append(" extends ").append("PersistableExpressionImpl").append("<" + classNameSimple + ">");
-                    w.append(" implements ").append(PersistableExpression.class.getSimpleName() + "<" + classNameSimple + ">");
-                }
-                w.append("\n");
-                w.append("{\n");
-
-                String indent = "    ";
-
-                // Add static accessor for the candidate of this type
-                addStaticMethodAccessors(w, indent, qclassNameSimple, classNameSimple);
-                w.append("\n");
-
-                // Add fields for persistable members
-                List<? extends Element> members = getPersistentMembers(el);
-                if (members != null)
-                {
-                    Iterator<? extends Element> iter = members.iterator();
-                    while (iter.hasNext())
-                    {
-                        Element member = iter.next();
-                        if (member.getKind() == ElementKind.FIELD ||
-                            (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
-                        {
-                            TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
-                            if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
-                            {
-                                type = genericLookups.get(type.toString());
-                            }
-                            String memberName = AnnotationProcessorUtils.getMemberName(member);
-                            String intfName = getExpressionInterfaceNameForType(type);
-
-                            if (intfName.startsWith(classNameFull + "."))
-                            {
-                                // TODO If intfName is an inner class of this class then omit this class name
-                                intfName = intfName.substring(classNameFull.length()+1);
-                            }
-                            if (queryMode == MODE_FIELD)
-                            {
-                                w.append(indent).append("public final ").append(intfName);
-                                w.append(" ").append(memberName).append(";\n");
-                            }
-                            else
-                            {
-                                w.append(indent).append("private ").append(intfName);
-                                w.append(" ").append(memberName).append(";\n");
-                            }
-                        }
-                    }
-                }
-
-                // ========== Constructor(PersistableExpression parent, String name, int depth) ==========
-                w.append("\n");
-                addConstructorWithPersistableExpression(w, indent, qclassNameSimple, superEl, members, classNameFull, genericLookups);
-
-                // ========== Constructor(Class type, String name, ExpressionType exprType) ==========
-                w.append("\n");
-                addConstructorWithType(w, indent, qclassNameSimple, members, classNameFull, genericLookups);
-
-                // Property accessors
-                if (queryMode == MODE_PROPERTY && members != null)
-                {
-                    Iterator<? extends Element> iter = members.iterator();
-                    while (iter.hasNext())
-                    {
-                        Element member = iter.next();
-                        if (member.getKind() == ElementKind.FIELD ||
-                            (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
-                        {
-                            w.append("\n");
-                            addPropertyAccessorMethod(w, indent, member, classNameFull, genericLookups);
-                        }
-                    }
-                }
-
-                if (encElems != null)
-                {
-                    for (Element encE : encElems)
-                    {
-                        if (encE instanceof TypeElement)
-                        {
-                            String indentInner = "        ";
-                            TypeElement encEl = (TypeElement)encE;
-                            if (isPersistableType(encEl))
-                            {
-                                // Static inner class that is persistable, so needing own Qclass inlined here
-                                w.append("\n");
-                                System.out.println("Persistable (static) inner class " + elementUtils.getBinaryName(encEl).toString() + " really should be in own file. " +
-                                    "Trying to generate Q class inlined!");
-
-                                // TODO Support static inner persistable classes
-                                String innerclassNameFull = elementUtils.getBinaryName(encEl).toString();
-                                String innerclassNameSimple = innerclassNameFull.substring(innerclassNameFull.lastIndexOf('.') + 1);
-                                String innerclassNameSimpleShort = innerclassNameSimple.substring(innerclassNameSimple.indexOf("$")+1);
-                                String qinnerclassNameSimpleShort = getQueryClassNameForClassName(innerclassNameSimpleShort);
-                                String qinnerclassNameFull = pkgName + "." + qclassNameSimple + "$" + qinnerclassNameSimpleShort;
-                                System.out.println("DataNucleus : JDOQLTypedQuery Q class generation : " + innerclassNameFull + " -> " + qinnerclassNameFull);
-
-                                // Class declaration
-                                w.append(indent).append("public static class " + qinnerclassNameSimpleShort);
-                                TypeElement innerSuperEl = getPersistentSupertype(encEl);
-                                if (innerSuperEl != null)
-                                {
-                                    // "public class QASub extends QA"
-                                    String superClassName = elementUtils.getBinaryName(innerSuperEl).toString();
-                                    w.append(" extends ").append(superClassName.substring(0, superClassName.lastIndexOf('.')+1));
-                                    w.append(getQueryClassNameForClassName(superClassName.substring(superClassName.lastIndexOf('.')+1)));
-                                }
-                                else
-                                {
-                                    // "public class QA extends PersistableExpressionImpl<A> implements PersistableExpression<A>"
-                                    w.append(" extends ").append("PersistableExpressionImpl").append("<" + innerclassNameSimpleShort + ">");
-                                    w.append(" implements ").append(PersistableExpression.class.getSimpleName() + "<" + innerclassNameSimpleShort + ">");
-                                }
-                                w.append("\n");
-                                w.append(indent).append("{\n");
-
-                                // Add static accessor for the candidate of this type
-                                addStaticMethodAccessors(w, indentInner, qinnerclassNameSimpleShort, innerclassNameSimpleShort);
-                                w.append("\n");
-
-                                // Add fields for persistable members
-                                List<? extends Element> innerMembers = getPersistentMembers(encEl);
-                                if (members != null)
-                                {
-                                    Iterator<? extends Element> iter = innerMembers.iterator();
-                                    while (iter.hasNext())
-                                    {
-                                        Element member = iter.next();
-                                        if (member.getKind() == ElementKind.FIELD ||
-                                            (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
-                                        {
-                                            TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
-                                            if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
-                                            {
-                                                type = genericLookups.get(type.toString());
-                                            }
-                                            String memberName = AnnotationProcessorUtils.getMemberName(member);
-                                            String intfName = getExpressionInterfaceNameForType(type);
-
-                                            if (queryMode == MODE_FIELD)
-                                            {
-                                                w.append(indentInner).append("public final ").append(intfName).append(" ").append(memberName).append(";\n");
-                                            }
-                                            else
-                                            {
-                                                w.append(indentInner).append("private ").append(intfName).append(" ").append(memberName).append(";\n");
-                                            }
-                                        }
-                                    }
-                                }
-
-                                // ========== Constructor(PersistableExpression parent, String name, int depth) ==========
-                                w.append("\n");
-                                addConstructorWithPersistableExpression(w, indentInner, qinnerclassNameSimpleShort, innerSuperEl, innerMembers, classNameFull, genericLookups);
-
-                                // ========== Constructor(Class type, String name, ExpressionType exprType) ==========
-                                w.append("\n");
-                                addConstructorWithType(w, indentInner, qinnerclassNameSimpleShort, innerMembers, classNameFull, genericLookups);
-
-                                // Property accessors
-                                if (queryMode == MODE_PROPERTY && members != null)
-                                {
-                                    Iterator<? extends Element> iter = members.iterator();
-                                    while (iter.hasNext())
-                                    {
-                                        Element member = iter.next();
-                                        if (member.getKind() == ElementKind.FIELD ||
-                                            (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
-                                        {
-                                            w.append("\n");
-                                            addPropertyAccessorMethod(w, indentInner, member, classNameFull, genericLookups);
-                                        }
-                                    }
-                                }
-
-                                w.append(indent).append("}\n");
-                            }
-                        }
-                    }
-                }
+            codeFingerprint = FingerprintStore.getCodeFingerprint(JDOQueryProcessor.class);
+        }
+        catch (IOException | SecurityException e)
+        {
+            // Handled below
+        }
+        if (codeFingerprint == null && (version == null || version.endsWith("-SNAPSHOT")))
+        {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : the version of the processor is not known, so Q class fingerprints are not used");
+            return;
+        }
+        processorFingerprint = version + ":" + codeFingerprint;
 
-                w.append("}\n");
-                w.flush();
-            }
-            finally
-            {
-                w.close();
-            }
+        try
+        {
+            fingerprintStore = new FingerprintStore(file);
         }
-        catch (IOException e)
+        catch (IOException ioe)
         {
-            e.printStackTrace();
+            processingEnv.getMessager().printMessage(Kind.WARNING, "DataNucleus : unable to read Q class fingerprints from " + file + " : " + ioe.getMessage());
         }
     }
 
     /**
-     * Method to add the code for static method accessors needed by this QClass.
-     * @param w The writer
-     * @param indent Indent to apply to the code
-     * @param qclassNameSimple Simple name of the QClass that this is constructing
-     * @param classNameSimple Simple name of this persistable class
-     * @throws IOException Thrown if an error occurs on writing this code
+     * Accessor for the number of members in the Q class for the specified model, including those of any inner Q classes.
+     * @param model Model of the Q class
+     * @return The number of members
      */
-    protected void addStaticMethodAccessors(Writer w, String indent, String qclassNameSimple, String classNameSimple)
-    throws IOException
+    private static int getNumberOfMembers(QueryClassModel model)
     {
-        // Add static accessor for the candidate of this type
-        w.append(indent).append("public static final ").append(qclassNameSimple).append(" jdoCandidate").append(" = candidate(\"this\");\n");
-        w.append("\n");
-
-        // Add static method to generate candidate of this type with a particular name
-        w.append(indent).append("public static " + qclassNameSimple + " candidate(String name)\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("return new ").append(qclassNameSimple).append("(null, name, " + fieldDepth + ");\n");
-        w.append(indent).append("}\n");
-        w.append("\n");
-
-        // Add static method to generate candidate of this type for default name ("this")
-        w.append(indent).append("public static " + qclassNameSimple + " candidate()\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("return jdoCandidate;\n");
-        w.append(indent).append("}\n");
-        w.append("\n");
-
-        // Add static method to generate parameter of this type
-        w.append(indent).append("public static " + qclassNameSimple + " parameter(String name)\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("return new ").append(qclassNameSimple).append("(" + classNameSimple + ".class, name, ExpressionType.PARAMETER);\n");
-        w.append(indent).append("}\n");
-        w.append("\n");
+        int numberOfMembers = model.getMembers().size();
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            numberOfMembers += getNumberOfMembers(innerModel);
+        }
+        return numberOfMembers;
+    }
 
-        // Add static method to generate variable of this type
-        w.append(indent).append("public static " + qclassNameSimple + " variable(String name)\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("return new ").append(qclassNameSimple).append("(" + classNameSimple + ".class, name, ExpressionType.VARIABLE);\n");
-        w.append(indent).append("}\n");
+    /**
+     * Accessor for whether to output the summary notes of the Q class generation, namely when verbose or writing a report.
+     * @return Whether to output the summary notes
+     */
+    private boolean isVerbose()
+    {
+        return verbose || reportFile != null;
     }
 
     /**
-     * Method to add the code for a constructor taking in (PersistableExpression parent, String name, int depth).
-     * @param w The writer
-     * @param indent Indent to apply to the code
-     * @param qclassNameSimple Simple name of the QClass that this is constructing
-     * @param superEl Any super element
-     * @param members Members for this QClass that need initialising
-     * @param classNameFull Fully qualified class name
-     * @param genericLookups Lookup for TypeVariables
-     * @throws IOException Thrown if an error occurs on writing this code
+     * Accessor for the settings that the Q classes are generated with, as JSON name/value pairs for the generation report.
+     * @return The settings
      */
-    protected void addConstructorWithPersistableExpression(Writer w, String indent, String qclassNameSimple, TypeElement superEl, List<? extends Element> members, String classNameFull,
-            Map<String, TypeMirror> genericLookups)
-    throws IOException
+    private String getReportSettings()
     {
-        w.append(indent).append("public " + qclassNameSimple).append("(").append(PersistableExpression.class.getSimpleName() + " parent, String name, int depth)\n");
-        w.append(indent).append("{\n");
-        if (superEl != null)
+        StringBuilder str = new StringBuilder();
+        str.append("\"version\": ");
+        String version = JDOQueryProcessor.class.getPackage().getImplementationVersion();
+        if (version != null)
         {
-            w.append(indent).append(CODE_INDENT).append("super(parent, name, depth);\n");
+            GenerationReport.appendJSONString(str, version);
         }
         else
         {
-            w.append(indent).append(CODE_INDENT).append("super(parent, name);\n");
+            str.append("null");
         }
-        if (queryMode == MODE_FIELD && members != null)
+        str.append(", \"queryMode\": \"").append(queryMode == MODE_PROPERTY ? "PROPERTY" : (queryMode == MODE_LAZY_FIELD ? "LAZY_FIELD" : "FIELD")).append('"');
+        str.append(", \"queryDepth\": ").append(fieldDepth);
+        str.append(", \"cycleCutoff\": ").append(cycleCutoff);
+        str.append(", \"cacheSize\": ").append(cacheSize);
+        str.append(", \"candidateField\": ").append(candidateField);
+        str.append(", \"fetchPlans\": ").append(generateFetchPlans);
+        str.append(", \"keyset\": ").append(generateKeyset);
+        str.append(", \"bulk\": ").append(generateBulk);
+        str.append(", \"parameterBinder\": ").append(generateParameterBinder);
+        str.append(", \"indexCheck\": ");
+        if (indexCheck != null)
         {
-            // Initialise all fields
-            Iterator<? extends Element> iter = members.iterator();
-            while (iter.hasNext())
-            {
-                Element member = iter.next();
-                if (member.getKind() == ElementKind.FIELD ||
-                    (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
-                {
-                    TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
-                    if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
-                    {
-                        type = genericLookups.get(type.toString());
-                    }
-                    String memberName = AnnotationProcessorUtils.getMemberName(member);
-                    String implClassName = getExpressionImplClassNameForType(type);
-                    if (implClassName.startsWith(classNameFull + "."))
-                    {
-                        // TODO If intfName is an inner class of this class then omit this class name
-                        implClassName = implClassName.substring(classNameFull.length()+1);
-                    }
-                    if (isPersistableType(type))
-                    {
-                        // if (depth > 0)
-                        // {
-                        //     this.{field} = new {ImplType}(this, memberName, depth-1);
-                        // }
-                        // else
-                        // {
-                        //     this.{field} = null;
-                        // }
-                        w.append(indent).append(CODE_INDENT).append("if (depth > 0)\n");
-                        w.append(indent).append(CODE_INDENT).append("{\n");
-                        w.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = new ").append(implClassName)
-                            .append("(this, \"" + memberName + "\", depth-1);\n");
-                        w.append(indent).append(CODE_INDENT).append("}\n");
-                        w.append(indent).append(CODE_INDENT).append("else\n");
-                        w.append(indent).append(CODE_INDENT).append("{\n");
-                        w.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = null;\n");
-                        w.append(indent).append(CODE_INDENT).append("}\n");
-                    }
-                    else
-                    {
-                        // this.{field} = new {ImplType}(this, memberName);
-                        w.append(indent).append(CODE_INDENT).append("this.").append(memberName);
-                        w.append(" = new ").append(implClassName).append("(this, \"" + memberName + "\");\n");
-                    }
-                }
-            }
+            GenerationReport.appendJSONString(str, indexCheck);
+        }
+        else
+        {
+            str.append("null");
         }
-        w.append(indent).append("}\n");
+        str.append(", \"fingerprints\": ").append(fingerprintStore != null);
+        str.append(", \"fanoutWarning\": ").append(fanoutWarning);
+        str.append(", \"fanoutError\": ").append(fanoutError);
+        str.append(", \"typeLookups\": ").append(typeLookups);
+        str.append(", \"typeLookupHits\": ").append(typeLookupHits);
+        return str.toString();
     }
 
     /**
-     * Method to add the code for a constructor taking in (Class type, String name, ExpressionType exprType).
-     * @param w The writer
-     * @param indent Indent to apply to the code
-     * @param qclassNameSimple Simple name of the QClass that this is constructing
-     * @param members Members for this QClass that need initialising
-     * @param classNameFull Fully qualified class name
-     * @param genericLookups Lookup for TypeVariables
-     * @throws IOException Thrown if an error occurs on writing this code
+     * Method to return the fingerprint of everything that a Q class is generated from, so the generation settings
+     * and its model (including those of any persistable inner classes).
+     * @param model Model of the Q class
+     * @return The fingerprint
      */
-    protected void addConstructorWithType(Writer w, String indent, String qclassNameSimple, List<? extends Element> members, String classNameFull, Map<String, TypeMirror> genericLookups)
-    throws IOException
+    protected String getFingerprintForModel(QueryClassModel model)
+    {
+        StringBuilder str = new StringBuilder();
+        str.append(processorFingerprint).append('\n');
+        str.append("mode=").append(queryMode).append('\n');
+        str.append("cacheSize=").append(cacheSize).append('\n');
+        str.append("candidateField=").append(candidateField).append('\n');
+        str.append("fetchPlans=").append(generateFetchPlans).append('\n');
+        str.append("keyset=").append(generateKeyset).append('\n');
+        str.append("bulk=").append(generateBulk).append('\n');
+        str.append("parameterBinder=").append(generateParameterBinder).append('\n');
+        addFingerprintInputsForModel(str, model);
+        return FingerprintStore.getFingerprint(str);
+    }
+
+    private void addFingerprintInputsForModel(StringBuilder str, QueryClassModel model)
     {
-        w.append(indent).append("public " + qclassNameSimple).append("(").append(Class.class.getSimpleName() + " type, String name, ExpressionType exprType)\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("super(type, name, exprType);\n");
-        if (queryMode == MODE_FIELD && members != null)
+        str.append("class=").append(model.getClassNameFull()).append(",depth=").append(model.getDepth());
+        str.append(",super=").append(model.getSuperQClassName()).append('\n');
+        for (QueryClassModel.Member member : model.getMembers())
         {
-            // Initialise all fields
-            Iterator<? extends Element> iter = members.iterator();
-            while (iter.hasNext())
+            str.append(member.getName()).append(':').append(member.getTypeName());
+            str.append(':').append(member.getExpressionInterfaceName()).append(':').append(member.getExpressionImplClassName());
+            if (member.isPersistable())
             {
-                Element member = iter.next();
-                if (member.getKind() == ElementKind.FIELD ||
-                    (member.getKind() == ElementKind.METHOD && AnnotationProcessorUtils.isJavaBeanGetter((ExecutableElement) member)))
+                str.append(":depth=").append(member.getMaxDepth());
+                if (member.isCyclic())
                 {
-                    TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
-                    if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
-                    {
-                        type = genericLookups.get(type.toString());
-                    }
-                    String memberName = AnnotationProcessorUtils.getMemberName(member);
-                    String implClassName = getExpressionImplClassNameForType(type);
-                    if (implClassName.startsWith(classNameFull + "."))
-                    {
-                        // TODO If intfName is an inner class of this class then omit this class name
-                        implClassName = implClassName.substring(classNameFull.length()+1);
-                    }
-                    if (isPersistableType(type))
-                    {
-                        // this.{field} = new {ImplType}(this, memberName, fieldDepth);
-                        w.append(indent).append(CODE_INDENT).append("this.").append(memberName).append(" = new ").append(implClassName)
-                            .append("(this, \"" + memberName + "\", " + fieldDepth + ");\n");
-                    }
-                    else
-                    {
-                        // this.{field} = new {ImplType}(this, memberName);
-                        w.append(indent).append(CODE_INDENT).append("this.").append(memberName).append(" = new ").append(implClassName)
-                            .append("(this, \"" + memberName + "\");\n");
-                    }
+                    str.append(":cyclic");
                 }
             }
+            str.append('\n');
+        }
+        for (QueryClassModel.Member member : model.getInheritedMembers())
+        {
+            str.append("inherited=").append(member.getName()).append(':').append(member.getTypeName());
+            str.append(':').append(member.getExpressionImplClassName()).append('\n');
+        }
+        for (QueryClassModel.ProjectionClass projection : model.getProjections())
+        {
+            str.append("projection=").append(projection.getName());
+            for (QueryClassModel.Member member : projection.getMembers())
+            {
+                str.append(':').append(member.getName()).append(':').append(member.getTypeName());
+            }
+            str.append('\n');
+        }
+        if (model.getKeyMember() != null)
+        {
+            str.append("key=").append(model.getKeyMember().getName()).append(':').append(model.getKeyMember().getTypeName()).append('\n');
+        }
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            addFingerprintInputsForModel(str, innerModel);
+        }
+    }
+
+    /**
+     * Query expression interface and implementation names to use for a member type.
+     */
+    static class ExpressionTypeNames
+    {
+        final String interfaceName;
+        final String implClassName;
+        final boolean persistable;
+
+        ExpressionTypeNames(String interfaceName, String implClassName, boolean persistable)
+        {
+            this.interfaceName = interfaceName;
+            this.implClassName = implClassName;
+            this.persistable = persistable;
         }
-        w.append(indent).append("}\n");
     }
 
-    protected void addPropertyAccessorMethod(Writer w, String indent, Element member, String classNameFull, Map<String, TypeMirror> genericLookups)
-    throws IOException
+    /**
+     * Method to return the query expression names to use for a member type, resolving them only once per type
+     * in a compilation.
+     * @param type The (resolved) type
+     * @return The query expression names to use
+     */
+    protected ExpressionTypeNames getExpressionTypeNames(TypeMirror type)
     {
-        // public {type} {memberName}()
-        // {
-        //     if (memberVar == null)
-        //     {
-        //         this.memberVar = new {implClassName}(this, \"memberName\");
-        //     }
-        //     return this.memberVar;
-        // }
-        TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
-        if (type instanceof TypeVariable && genericLookups != null && genericLookups.containsKey(type.toString()))
+        long startTime = System.nanoTime();
+        try
         {
-            type = genericLookups.get(type.toString());
+            typeLookups++;
+            String typeKey = type.toString();
+            ExpressionTypeNames typeNames = expressionTypeNamesByType.get(typeKey);
+            if (typeNames != null)
+            {
+                typeLookupHits++;
+                return typeNames;
+            }
+
+            typeNames = new ExpressionTypeNames(getExpressionInterfaceNameForType(type), getExpressionImplClassNameForType(type), isPersistableType(type));
+            if (type.getKind() != TypeKind.ERROR)
+            {
+                // Don't cache unresolved types since they may resolve in a later round
+                expressionTypeNamesByType.put(typeKey, typeNames);
+            }
+            return typeNames;
         }
-        String memberName = AnnotationProcessorUtils.getMemberName(member);
-        String implClassName = getExpressionImplClassNameForType(type);
-        if (implClassName.startsWith(classNameFull + "."))
+        finally
         {
-            // TODO If intfName is an inner class of this class then omit this class name
-            implClassName = implClassName.substring(classNameFull.length()+1);
+            typeResolutionNanos += System.nanoTime() - startTime;
         }
-        String intfName = getExpressionInterfaceNameForType(type);
-
-        w.append(indent).append("public ").append(intfName).append(" ").append(memberName).append("()\n");
-        w.append(indent).append("{\n");
-        w.append(indent).append(CODE_INDENT).append("if (this.").append(memberName).append(" == null)\n");
-        w.append(indent).append(CODE_INDENT).append("{\n");
-        w.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this." + memberName).append(" = new ").append(implClassName).append("(this, \"" + memberName + "\");\n");
-        w.append(indent).append(CODE_INDENT).append("}\n");
-        w.append(indent).append(CODE_INDENT).append("return this.").append(memberName).append(";\n");
-        w.append(indent).append("}\n");
     }
 
     /**
@@ -644,90 +2125,90 @@ public class JDOQueryProcessor extends AbstractProcessor
     {
         if (type.getKind() == TypeKind.BOOLEAN)
         {
-            return BooleanExpression.class.getSimpleName();
+            return BooleanExpression.class.getName();
         }
         else if (type.getKind() == TypeKind.BYTE)
         {
-            return ByteExpression.class.getSimpleName();
+            return ByteExpression.class.getName();
         }
         else if (type.getKind() == TypeKind.CHAR)
         {
-            return CharacterExpression.class.getSimpleName();
+            return CharacterExpression.class.getName();
         }
         else if (type.getKind() == TypeKind.DOUBLE)
         {
-            return NumericExpression.class.getSimpleName() + "<Double>";
+            return NumericExpression.class.getName() + "<java.lang.Double>";
         }
         else if (type.getKind() == TypeKind.FLOAT)
         {
-            return NumericExpression.class.getSimpleName() + "<Float>";
+            return NumericExpression.class.getName() + "<java.lang.Float>";
         }
         else if (type.getKind() == TypeKind.INT)
         {
-            return NumericExpression.class.getSimpleName() + "<Integer>";
+            return NumericExpression.class.getName() + "<java.lang.Integer>";
         }
         else if (type.getKind() == TypeKind.LONG)
         {
-            return NumericExpression.class.getSimpleName() + "<Long>";
+            return NumericExpression.class.getName() + "<java.lang.Long>";
         }
         else if (type.getKind() == TypeKind.SHORT)
         {
-            return NumericExpression.class.getSimpleName() + "<Short>";
+            return NumericExpression.class.getName() + "<java.lang.Short>";
         }
         else if (type.toString().equals(BigInteger.class.getName()))
         {
-            return NumericExpression.class.getSimpleName() + "<java.math.BigInteger>";
+            return NumericExpression.class.getName() + "<java.math.BigInteger>";
         }
         else if (type.toString().equals(BigDecimal.class.getName()))
         {
-            return NumericExpression.class.getSimpleName() + "<java.math.BigDecimal>";
+            return NumericExpression.class.getName() + "<java.math.BigDecimal>";
         }
         else if (type.toString().equals(String.class.getName()))
         {
-            return StringExpression.class.getSimpleName();
+            return StringExpression.class.getName();
         }
         else if (type.toString().equals(Date.class.getName()))
         {
-            return DateTimeExpression.class.getSimpleName();
+            return DateTimeExpression.class.getName();
         }
         else if (type.toString().equals(java.sql.Date.class.getName()))
         {
-            return DateExpression.class.getSimpleName();
+            return DateExpression.class.getName();
         }
         else if (type.toString().equals(java.sql.Time.class.getName()))
         {
-            return TimeExpression.class.getSimpleName();
+            return TimeExpression.class.getName();
         }
         else if (type.toString().equals(LocalDate.class.getName()))
         {
-            return LocalDateExpression.class.getSimpleName();
+            return LocalDateExpression.class.getName();
         }
         else if (type.toString().equals(LocalTime.class.getName()))
         {
-            return LocalTimeExpression.class.getSimpleName();
+            return LocalTimeExpression.class.getName();
         }
         else if (type.toString().equals(LocalDateTime.class.getName()))
         {
-            return LocalDateTimeExpression.class.getSimpleName();
+            return LocalDateTimeExpression.class.getName();
         }
         else if (type.toString().equals(java.util.Optional.class.getName()))
         {
-            return OptionalExpression.class.getSimpleName();
+            return OptionalExpression.class.getName();
         }
 
         String typeName = AnnotationProcessorUtils.getDeclaredTypeName(processingEnv, type, true);
         TypeCategory cat = AnnotationProcessorUtils.getTypeCategoryForTypeMirror(typeName);
         if (cat == TypeCategory.MAP)
         {
-            return MapExpression.class.getSimpleName();
+            return MapExpression.class.getName();
         }
         else if (cat == TypeCategory.LIST)
         {
-            return ListExpression.class.getSimpleName();
+            return ListExpression.class.getName();
         }
         else if (cat == TypeCategory.COLLECTION || cat == TypeCategory.SET)
         {
-            return CollectionExpression.class.getSimpleName();
+            return CollectionExpression.class.getName();
         }
         else
         {
@@ -735,11 +2216,11 @@ public class JDOQueryProcessor extends AbstractProcessor
             if (typeElement != null && isPersistableType(typeElement))
             {
                 // Persistent field ("mydomain.Xxx" becomes "mydomain.QXxx")
-                return typeName.substring(0, typeName.lastIndexOf('.')+1) + getQueryClassNameForClassName(typeName.substring(typeName.lastIndexOf('.')+1));
+                return getQueryClassNameForType(typeElement);
             }
             else
             {
-                return ObjectExpression.class.getSimpleName() + "<" + type.toString() + ">";
+                return ObjectExpression.class.getName() + "<" + type.toString() + ">";
             }
         }
     }
@@ -753,90 +2234,90 @@ public class JDOQueryProcessor extends AbstractProcessor
     {
         if (type.getKind() == TypeKind.BOOLEAN)
         {
-            return "BooleanExpressionImpl";
+            return API_QUERY_PACKAGE + "BooleanExpressionImpl";
         }
         else if (type.getKind() == TypeKind.BYTE)
         {
-            return "ByteExpressionImpl";
+            return API_QUERY_PACKAGE + "ByteExpressionImpl";
         }
         else if (type.getKind() == TypeKind.CHAR)
         {
-            return "CharacterExpressionImpl";
+            return API_QUERY_PACKAGE + "CharacterExpressionImpl";
         }
         else if (type.getKind() == TypeKind.DOUBLE)
         {
-            return "NumericExpressionImpl<Double>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.lang.Double>";
         }
         else if (type.getKind() == TypeKind.FLOAT)
         {
-            return "NumericExpressionImpl<Float>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.lang.Float>";
         }
         else if (type.getKind() == TypeKind.INT)
         {
-            return "NumericExpressionImpl<Integer>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.lang.Integer>";
         }
         else if (type.getKind() == TypeKind.LONG)
         {
-            return "NumericExpressionImpl<Long>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.lang.Long>";
         }
         else if (type.getKind() == TypeKind.SHORT)
         {
-            return "NumericExpressionImpl<Short>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.lang.Short>";
         }
         else if (type.toString().equals(BigInteger.class.getName()))
         {
-            return "NumericExpressionImpl<java.math.BigInteger>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.math.BigInteger>";
         }
         else if (type.toString().equals(BigDecimal.class.getName()))
         {
-            return "NumericExpressionImpl<java.math.BigDecimal>";
+            return API_QUERY_PACKAGE + "NumericExpressionImpl<java.math.BigDecimal>";
         }
         else if (type.toString().equals(String.class.getName()))
         {
-            return "StringExpressionImpl";
+            return API_QUERY_PACKAGE + "StringExpressionImpl";
         }
         else if (type.toString().equals(Date.class.getName()))
         {
-            return "DateTimeExpressionImpl";
+            return API_QUERY_PACKAGE + "DateTimeExpressionImpl";
         }
         else if (type.toString().equals(java.sql.Date.class.getName()))
         {
-            return "DateExpressionImpl";
+            return API_QUERY_PACKAGE + "DateExpressionImpl";
         }
         else if (type.toString().equals(java.sql.Time.class.getName()))
         {
-            return "TimeExpressionImpl";
+            return API_QUERY_PACKAGE + "TimeExpressionImpl";
         }
         else if (type.toString().equals(LocalDate.class.getName()))
         {
-            return "LocalDateExpressionImpl";
+            return API_QUERY_PACKAGE + "LocalDateExpressionImpl";
         }
         else if (type.toString().equals(LocalTime.class.getName()))
         {
-            return "LocalTimeExpressionImpl";
+            return API_QUERY_PACKAGE + "LocalTimeExpressionImpl";
         }
         else if (type.toString().equals(LocalDateTime.class.getName()))
         {
-            return "LocalDateTimeExpressionImpl";
+            return API_QUERY_PACKAGE + "LocalDateTimeExpressionImpl";
         }
         else if (type.toString().equals(java.util.Optional.class.getName()))
         {
-            return "OptionalExpressionImpl";
+            return API_QUERY_PACKAGE + "OptionalExpressionImpl";
         }
 
         String typeName = AnnotationProcessorUtils.getDeclaredTypeName(processingEnv, type, true);
         TypeCategory cat = AnnotationProcessorUtils.getTypeCategoryForTypeMirror(typeName);
         if (cat == TypeCategory.MAP)
         {
-            return "MapExpressionImpl";
+            return API_QUERY_PACKAGE + "MapExpressionImpl";
         }
         else if (cat == TypeCategory.LIST)
         {
-            return "ListExpressionImpl";
+            return API_QUERY_PACKAGE + "ListExpressionImpl";
         }
         else if (cat == TypeCategory.COLLECTION || cat == TypeCategory.SET)
         {
-            return "CollectionExpressionImpl";
+            return API_QUERY_PACKAGE + "CollectionExpressionImpl";
         }
         else
         {
@@ -844,11 +2325,11 @@ public class JDOQueryProcessor extends AbstractProcessor
             if (typeElement != null && isPersistableType(typeElement))
             {
                 // Persistent field ("mydomain.Xxx" becomes "mydomain.QXxx")
-                return typeName.substring(0, typeName.lastIndexOf('.')+1) + getQueryClassNameForClassName(typeName.substring(typeName.lastIndexOf('.')+1));
+                return getQueryClassNameForType(typeElement);
             }
             else
             {
-                return "ObjectExpressionImpl<" + type.toString() + ">";
+                return API_QUERY_PACKAGE + "ObjectExpressionImpl<" + type.toString() + ">";
             }
         }
     }
@@ -878,25 +2359,190 @@ public class JDOQueryProcessor extends AbstractProcessor
         {
             return true;
         }
-        // TODO Also allow for types that are specified as persistable in XML
+        return metadataIndex != null && metadataIndex.isPersistable(el.getQualifiedName().toString());
+    }
+
+    /**
+     * Method to return the depth to which persistable members of the Q class for the specified class are expanded.
+     * @param el The class
+     * @return The depth
+     */
+    protected int getDepthForClass(TypeElement el)
+    {
+        Integer depth = classDepths.get(processingEnv.getElementUtils().getBinaryName(el).toString());
+        return (depth != null ? depth : fieldDepth);
+    }
+
+    /**
+     * Method to return the maximum depth to which the specified persistable member is expanded, where a depth of 1
+     * means that the member is expanded but none of its persistable members are.
+     * @param member The member
+     * @return The depth specified for the member, or -1 if only restricted by the depth of its class
+     */
+    protected int getMaxDepthForMember(Element member)
+    {
+        Integer depth = memberDepths.get(getMemberKey(member));
+        return (depth != null ? depth : -1);
+    }
+
+    /**
+     * Method to return whether the specified persistable member is part of a cycle of relations, so could be reached
+     * again when expanding it.
+     * @param member The member
+     * @param type The (resolved) type of the member
+     * @return Whether it is cyclic
+     */
+    protected boolean isCyclicMember(Element member, TypeMirror type)
+    {
+        String key = getMemberKey(member);
+        Boolean cyclic = cyclicByMember.get(key);
+        if (cyclic == null)
+        {
+            cyclic = getCycleLength((TypeElement)member.getEnclosingElement(), type) > 0;
+            cyclicByMember.put(key, cyclic);
+        }
+        return cyclic;
+    }
+
+    private String getMemberKey(Element member)
+    {
+        TypeElement ownerEl = (TypeElement)member.getEnclosingElement();
+        return processingEnv.getElementUtils().getBinaryName(ownerEl).toString() + "#" + AnnotationProcessorUtils.getMemberName(member);
+    }
+
+    /**
+     * Method to return the length of the shortest cycle of relations starting from a member of the specified class
+     * with the specified type, and getting back to the class (or one of its subclasses).
+     * @param ownerEl The class declaring the member
+     * @param type Type of the member
+     * @return The number of relations in the cycle, or 0 if the member is not part of a cycle
+     */
+    private int getCycleLength(TypeElement ownerEl, TypeMirror type)
+    {
+        if (type.getKind() != TypeKind.DECLARED)
+        {
+            return 0;
+        }
+        TypeElement startEl = (TypeElement) processingEnv.getTypeUtils().asElement(type);
+        if (startEl == null || !isPersistableType(startEl))
+        {
+            return 0;
+        }
+
+        // Breadth-first search of the persistable-type graph from the member type
+        Set<String> visited = new HashSet<String>();
+        Deque<TypeElement> queue = new ArrayDeque<TypeElement>();
+        queue.add(startEl);
+        visited.add(startEl.getQualifiedName().toString());
+        int length = 1;
+        while (!queue.isEmpty())
+        {
+            int levelSize = queue.size();
+            for (int i=0;i<levelSize;i++)
+            {
+                TypeElement typeEl = queue.poll();
+                if (isSameOrSubtype(typeEl, ownerEl))
+                {
+                    return length;
+                }
+                for (TypeElement relatedEl : getRelatedPersistableTypes(typeEl))
+                {
+                    if (visited.add(relatedEl.getQualifiedName().toString()))
+                    {
+                        queue.add(relatedEl);
+                    }
+                }
+            }
+            length++;
+        }
+        return 0;
+    }
+
+    private boolean isSameOrSubtype(TypeElement el, TypeElement superEl)
+    {
+        TypeElement currentEl = el;
+        while (currentEl != null)
+        {
+            if (currentEl.getQualifiedName().contentEquals(superEl.getQualifiedName()))
+            {
+                return true;
+            }
+            currentEl = getPersistentSupertype(currentEl);
+        }
         return false;
     }
 
+    /**
+     * Method to return the persistable types that the Q class for the specified type has members for, so the
+     * types of persistable members of the class and of its persistent supertypes.
+     * @param el The class
+     * @return The related persistable types
+     */
+    private List<TypeElement> getRelatedPersistableTypes(TypeElement el)
+    {
+        String className = el.getQualifiedName().toString();
+        List<TypeElement> relatedEls = relatedTypesByClassName.get(className);
+        if (relatedEls != null)
+        {
+            return relatedEls;
+        }
+
+        relatedEls = new ArrayList<TypeElement>();
+        List<? extends Element> members = getPersistentMembers(el);
+        if (members != null)
+        {
+            for (Element member : members)
+            {
+                TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
+                if (type.getKind() == TypeKind.DECLARED)
+                {
+                    TypeElement typeEl = (TypeElement) processingEnv.getTypeUtils().asElement(type);
+                    if (typeEl != null && isPersistableType(typeEl))
+                    {
+                        relatedEls.add(typeEl);
+                    }
+                }
+            }
+        }
+        TypeElement superEl = getPersistentSupertype(el);
+        if (superEl != null)
+        {
+            relatedEls.addAll(getRelatedPersistableTypes(superEl));
+        }
+        relatedTypesByClassName.put(className, relatedEls);
+        return relatedEls;
+    }
+
     /**
      * Method to return the persistable members for the specified class.
      * @param el The class (TypeElement)
      * @return The members that are persistable (Element)
      */
-    private static List<? extends Element> getPersistentMembers(TypeElement el)
+    protected List<? extends Element> getPersistentMembers(TypeElement el)
     {
         List<? extends Element> members = AnnotationProcessorUtils.getFieldMembers(el); // All fields needed
         if (members != null)
         {
             // Remove any non-persistent members
+            String className = (metadataIndex != null ? el.getQualifiedName().toString() : null);
             Iterator<? extends Element> iter = members.iterator();
             while (iter.hasNext())
             {
                 Element member = iter.next();
+                if (className != null)
+                {
+                    // Persistence specified in XML metadata overrides annotations
+                    Boolean persistentInMetadata = metadataIndex.isPersistent(className, AnnotationProcessorUtils.getMemberName(member));
+                    if (persistentInMetadata != null)
+                    {
+                        if (!persistentInMetadata)
+                        {
+                            iter.remove();
+                        }
+                        continue;
+                    }
+                }
+
                 boolean persistent = true;
                 List<? extends AnnotationMirror> annots = member.getAnnotationMirrors();
                 if (annots != null)
@@ -929,18 +2575,36 @@ public class JDOQueryProcessor extends AbstractProcessor
      */
     public TypeElement getPersistentSupertype(TypeElement element)
     {
+        String className = element.getQualifiedName().toString();
+        if (persistentSupertypeByClassName.containsKey(className))
+        {
+            return persistentSupertypeByClassName.get(className);
+        }
+
         TypeMirror superType = element.getSuperclass();
-        if (superType == null || "java.lang.Object".equals(element.toString()))
+        if (superType == null || superType.getKind() == TypeKind.NONE || "java.lang.Object".equals(element.toString()))
+        {
+            persistentSupertypeByClassName.put(className, null);
+            return null;
+        }
+        if (superType.getKind() == TypeKind.ERROR)
         {
+            // Not resolved yet so don't remember it
             return null;
         }
 
         TypeElement superElement = (TypeElement) processingEnv.getTypeUtils().asElement(superType);
-        if (superElement == null || isPersistableType(superElement))
+        if (superElement == null)
+        {
+            return null;
+        }
+        TypeElement persistentSuperElement = isPersistableType(superElement) ? superElement : getPersistentSupertype(superElement);
+        if (persistentSuperElement != null || persistentSupertypeByClassName.containsKey(superElement.getQualifiedName().toString()))
         {
-            return superElement;
+            // Only remember it when all supertypes are resolved
+            persistentSupertypeByClassName.put(className, persistentSuperElement);
         }
-        return getPersistentSupertype(superElement);
+        return persistentSuperElement;
     }
 
     /**
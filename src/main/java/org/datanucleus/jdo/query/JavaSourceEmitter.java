@@ -0,0 +1,225 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Emitter for the source of a Java compilation unit. The body is appended to a single buffer, and all type names
+ * referenced in it are passed through {@link #type(String)}, which shortens them to their simple name where possible
+ * and collects the explicit imports needed. The package declaration and imports are only prepended at the end.
+ */
+public class JavaSourceEmitter
+{
+    private final String packageName;
+
+    private final StringBuilder body;
+
+    /** Qualified names of top-level types whose package is known, so that names referring to them can be split into package and class. */
+    private final Set<String> topLevelNames = new HashSet<String>();
+
+    /** Fully-qualified name of the type that each simple name refers to in this compilation unit. */
+    private final Map<String, String> typeNameBySimpleName = new HashMap<String, String>();
+
+    private final TreeSet<String> imports = new TreeSet<String>();
+
+    /**
+     * Constructor for an emitter.
+     * @param packageName Package of the compilation unit
+     * @param declaredNames Qualified names of the types declared in the compilation unit (whose simple names can't be imported)
+     * @param topLevelNames Qualified names of the top-level types referenced in the compilation unit whose packages may not
+     *     be told from the case of their names (e.g the classes of the model, rather than JDK or JDO types)
+     * @param capacity Expected length of the body
+     */
+    public JavaSourceEmitter(String packageName, Collection<String> declaredNames, Collection<String> topLevelNames, int capacity)
+    {
+        this.packageName = packageName;
+        this.body = new StringBuilder(capacity);
+        this.topLevelNames.addAll(declaredNames);
+        this.topLevelNames.addAll(topLevelNames);
+        for (String declaredName : declaredNames)
+        {
+            typeNameBySimpleName.put(declaredName.substring(declaredName.lastIndexOf('.')+1), declaredName);
+        }
+    }
+
+    public JavaSourceEmitter append(String str)
+    {
+        body.append(str);
+        return this;
+    }
+
+    public JavaSourceEmitter append(char c)
+    {
+        body.append(c);
+        return this;
+    }
+
+    public JavaSourceEmitter append(int i)
+    {
+        body.append(i);
+        return this;
+    }
+
+    /**
+     * Method to return how to refer to the specified type in the body, registering any import needed.
+     * The type name can be a (possibly parameterised or array) type, e.g "java.util.Optional&lt;java.lang.String&gt;",
+     * and each qualified name in it is shortened where that doesn't conflict with another type of the same simple name.
+     * @param typeName Type name (using canonical names)
+     * @return The type name to use in the body
+     */
+    public String type(String typeName)
+    {
+        StringBuilder str = new StringBuilder(typeName.length());
+        int start = -1;
+        for (int i=0;i<typeName.length();i++)
+        {
+            char c = typeName.charAt(i);
+            if (Character.isJavaIdentifierPart(c) || c == '.')
+            {
+                if (start < 0)
+                {
+                    start = i;
+                }
+            }
+            else
+            {
+                if (start >= 0)
+                {
+                    str.append(shortenQualifiedName(typeName.substring(start, i)));
+                    start = -1;
+                }
+                str.append(c);
+            }
+        }
+        if (start >= 0)
+        {
+            str.append(shortenQualifiedName(typeName.substring(start)));
+        }
+        return str.toString();
+    }
+
+    /**
+     * Method to shorten a qualified type name, so referring to its top-level class by its simple name (e.g
+     * "mydomain.Order.Status" is referred to as "Order.Status"). The top-level class is the first prefix of the name
+     * that is one of the known top-level types, otherwise (for JDK and JDO types, whose packages are lower-case) the
+     * first part that starts with an upper-case letter.
+     * @param name The qualified name
+     * @return The name to use
+     */
+    private String shortenQualifiedName(String name)
+    {
+        int dotPos = name.indexOf('.');
+        if (dotPos < 0)
+        {
+            // Simple name, keyword or primitive
+            return name;
+        }
+
+        int classStart = getClassStart(name);
+        if (classStart <= 0 || classStart >= name.length())
+        {
+            return name;
+        }
+
+        int classEnd = name.indexOf('.', classStart);
+        String topLevelName = (classEnd < 0 ? name : name.substring(0, classEnd));
+        String simpleName = topLevelName.substring(classStart);
+        String pkgName = topLevelName.substring(0, classStart-1);
+
+        String existingName = typeNameBySimpleName.get(simpleName);
+        if (existingName == null)
+        {
+            typeNameBySimpleName.put(simpleName, topLevelName);
+            if (!pkgName.equals(packageName) && !pkgName.equals("java.lang"))
+            {
+                imports.add(topLevelName);
+            }
+        }
+        else if (!existingName.equals(topLevelName))
+        {
+            // Simple name already refers to a different type
+            return name;
+        }
+        return (classEnd < 0 ? simpleName : simpleName + name.substring(classEnd));
+    }
+
+    /**
+     * Method to return the position in a qualified name where the (top-level) class name starts.
+     * @param name The qualified name
+     * @return The position, or -1 if no part of the name is a class
+     */
+    private int getClassStart(String name)
+    {
+        int dotPos = name.indexOf('.');
+        while (dotPos >= 0)
+        {
+            int nextDot = name.indexOf('.', dotPos+1);
+            if (topLevelNames.contains(nextDot < 0 ? name : name.substring(0, nextDot)))
+            {
+                return dotPos + 1;
+            }
+            dotPos = nextDot;
+        }
+
+        int classStart = 0;
+        while (classStart < name.length() && !Character.isUpperCase(name.charAt(classStart)))
+        {
+            int nextDot = name.indexOf('.', classStart);
+            if (nextDot < 0)
+            {
+                // No part looks like a class
+                return -1;
+            }
+            classStart = nextDot + 1;
+        }
+        return classStart;
+    }
+
+    /**
+     * Method to return the source of the compilation unit, with its package declaration and imports.
+     * @return The source
+     */
+    public String toSource()
+    {
+        int length = 10 + packageName.length() + body.length();
+        for (String importName : imports)
+        {
+            length += 9 + importName.length();
+        }
+
+        StringBuilder str = new StringBuilder(length);
+        str.append("package ").append(packageName).append(";\n");
+        str.append("\n");
+        if (!imports.isEmpty())
+        {
+            for (String importName : imports)
+            {
+                str.append("import ").append(importName).append(";\n");
+            }
+            str.append("\n");
+        }
+        str.append(body);
+        return str.toString();
+    }
+}
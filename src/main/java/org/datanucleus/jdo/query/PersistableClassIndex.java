@@ -0,0 +1,196 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the persistable classes of a module, each with its persistent superclass and Q class, as written by the processor
+ * to the resource {@link #RESOURCE_NAME} so that the classes can be found at runtime without scanning the classpath or reading
+ * metadata. For example, the class names can be passed to DataNucleus as "datanucleus.autoStartClassNames" (with
+ * "datanucleus.autoStartMechanism" as "Classnames"). Each line of the resource is "{class} {persistent superclass or -} {Q class}",
+ * using binary names, and lines starting with "#" are comments.
+ */
+public class PersistableClassIndex
+{
+    /** Name of the index resource (in each module). */
+    public static final String RESOURCE_NAME = "META-INF/datanucleus/persistable-classes.idx";
+
+    /**
+     * Entry in the index for a persistable class.
+     */
+    public static class Entry
+    {
+        private final String className;
+        private final String superclassName;
+        private final String qclassName;
+
+        /**
+         * Constructor for an entry.
+         * @param className Binary name of the persistable class
+         * @param superclassName Binary name of its persistent superclass (or null if none)
+         * @param qclassName Binary name of its Q class
+         */
+        public Entry(String className, String superclassName, String qclassName)
+        {
+            this.className = className;
+            this.superclassName = superclassName;
+            this.qclassName = qclassName;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getSuperclassName()
+        {
+            return superclassName;
+        }
+
+        public String getQClassName()
+        {
+            return qclassName;
+        }
+    }
+
+    /** Entries keyed by class name, so written in a stable order. */
+    private final Map<String, Entry> entryByClassName = new TreeMap<String, Entry>();
+
+    /**
+     * Method to load the index resources of all modules visible to the specified ClassLoader.
+     * Where a class is in more than one index, the entry from the first one found is used.
+     * @param loader The ClassLoader
+     * @return The index
+     * @throws IOException Thrown if an index resource cannot be read
+     */
+    public static PersistableClassIndex load(ClassLoader loader)
+    throws IOException
+    {
+        PersistableClassIndex index = new PersistableClassIndex();
+        Enumeration<URL> urls = (loader != null ? loader.getResources(RESOURCE_NAME) : ClassLoader.getSystemResources(RESOURCE_NAME));
+        while (urls.hasMoreElements())
+        {
+            try (InputStream in = urls.nextElement().openStream())
+            {
+                index.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Method to add the entries in an index resource to this index, ignoring those for classes already in this index.
+     * @param reader Reader of the resource
+     * @throws IOException Thrown if an error occurs reading it
+     */
+    public void load(Reader reader)
+    throws IOException
+    {
+        BufferedReader lineReader = new BufferedReader(reader);
+        String line;
+        while ((line = lineReader.readLine()) != null)
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            String[] names = line.split("\\s+");
+            if (names.length >= 3 && !entryByClassName.containsKey(names[0]))
+            {
+                add(new Entry(names[0], names[1].equals("-") ? null : names[1], names[2]));
+            }
+        }
+    }
+
+    /**
+     * Method to add an entry to the index, replacing any existing entry for the same class.
+     * @param entry The entry
+     */
+    public void add(Entry entry)
+    {
+        entryByClassName.put(entry.getClassName(), entry);
+    }
+
+    /**
+     * Accessor for the entry for the specified class.
+     * @param className Binary name of the persistable class
+     * @return The entry, or null if not in the index
+     */
+    public Entry getEntry(String className)
+    {
+        return entryByClassName.get(className);
+    }
+
+    /**
+     * Accessor for the entries in the index, ordered by class name.
+     * @return The entries
+     */
+    public Collection<Entry> getEntries()
+    {
+        return Collections.unmodifiableCollection(entryByClassName.values());
+    }
+
+    /**
+     * Accessor for the names of the persistable classes in the index, as a comma-separated list, in the form used by
+     * "datanucleus.autoStartClassNames".
+     * @return The class names
+     */
+    public String getClassNames()
+    {
+        StringBuilder str = new StringBuilder();
+        for (String className : entryByClassName.keySet())
+        {
+            str.append(str.length() > 0 ? "," : "").append(className);
+        }
+        return str.toString();
+    }
+
+    public int size()
+    {
+        return entryByClassName.size();
+    }
+
+    /**
+     * Accessor for the index in the form of the index resource.
+     * @return The content of the resource
+     */
+    public String getContent()
+    {
+        StringBuilder str = new StringBuilder(64 + 96 * entryByClassName.size());
+        str.append("# DataNucleus persistable classes : {class} {persistent superclass or -} {Q class}\n");
+        for (Entry entry : entryByClassName.values())
+        {
+            str.append(entry.getClassName()).append(' ').append(entry.getSuperclassName() != null ? entry.getSuperclassName() : "-");
+            str.append(' ').append(entry.getQClassName()).append('\n');
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,49 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation for a persistable class specifying a projection of some of its persistent members (including those of its
+ * persistent supertypes), for which an immutable class is generated, nested in the Q class of the persistable class.
+ * For example <pre>{@literal @}Projection(name="Summary", members={"id", "name"})</pre> on class "Customer" generates "QCustomer.Summary",
+ * with a constructor taking the members in the order specified, and static methods to set the result of a JDOQLTypedQuery to
+ * those members and map the results to instances, without reflection.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+@Repeatable(Projections.class)
+public @interface Projection
+{
+    /**
+     * Simple name of the projection class.
+     * @return The name
+     */
+    String name();
+
+    /**
+     * Names of the members in the projection, in the order of the result.
+     * @return The member names
+     */
+    String[] members();
+}
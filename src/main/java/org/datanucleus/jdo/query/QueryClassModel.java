@@ -0,0 +1,303 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Immutable representation of everything needed to generate the source of a Q class, extracted from the persistable
+ * class by the processor. Holds no javax.lang.model objects other than the originating element (which must only be used
+ * on the processor thread), so the source can be rendered on any thread.
+ */
+public class QueryClassModel
+{
+    /**
+     * Representation of a persistent member of the persistable class.
+     */
+    public static class Member
+    {
+        private final String name;
+        private final String typeName;
+        private final String expressionInterfaceName;
+        private final String expressionImplClassName;
+        private final boolean persistable;
+        private final int maxDepth;
+        private final boolean cyclic;
+
+        /**
+         * Constructor for a member.
+         * @param name Name of the member
+         * @param typeName Declared type of the member
+         * @param expressionInterfaceName Query expression interface name to use for the member (qualified)
+         * @param expressionImplClassName Query expression implementation class name to use for the member (qualified)
+         * @param persistable Whether the type of the member is persistable (so has its own Q class)
+         * @param maxDepth Maximum depth to expand this (persistable) member, or -1 if only restricted by the class
+         * @param cyclic Whether this (persistable) member is not expanded when already being expanded further up the path
+         */
+        public Member(String name, String typeName, String expressionInterfaceName, String expressionImplClassName, boolean persistable, int maxDepth,
+                boolean cyclic)
+        {
+            this.name = name;
+            this.typeName = typeName;
+            this.expressionInterfaceName = expressionInterfaceName;
+            this.expressionImplClassName = expressionImplClassName;
+            this.persistable = persistable;
+            this.maxDepth = maxDepth;
+            this.cyclic = cyclic;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getTypeName()
+        {
+            return typeName;
+        }
+
+        public String getExpressionInterfaceName()
+        {
+            return expressionInterfaceName;
+        }
+
+        public String getExpressionImplClassName()
+        {
+            return expressionImplClassName;
+        }
+
+        public boolean isPersistable()
+        {
+            return persistable;
+        }
+
+        public int getMaxDepth()
+        {
+            return maxDepth;
+        }
+
+        public boolean isCyclic()
+        {
+            return cyclic;
+        }
+    }
+
+    /**
+     * Representation of a projection of some of the persistent members of the persistable class (see {@link Projection}).
+     */
+    public static class ProjectionClass
+    {
+        private final String name;
+        private final List<Member> members;
+
+        /**
+         * Constructor for a projection.
+         * @param name Simple name of the projection class
+         * @param members The members in the projection (of the class or its persistent supertypes), in the order of the result
+         */
+        public ProjectionClass(String name, List<Member> members)
+        {
+            this.name = name;
+            this.members = Collections.unmodifiableList(members);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public List<Member> getMembers()
+        {
+            return members;
+        }
+    }
+
+    private final TypeElement originatingElement;
+    private final String className;
+    private final String classNameFull;
+    private final String packageName;
+    private final String classNameSimple;
+    private final String qclassNameSimple;
+    private final String qclassNameFull;
+    private final String superQClassName;
+    private final int depth;
+    private final List<Member> members;
+    private final List<Member> inheritedMembers;
+    private final List<QueryClassModel> innerClasses;
+    private final List<ProjectionClass> projections;
+    private final Member keyMember;
+    private final Set<String> referencedTypeNames;
+
+    /**
+     * Constructor for the model of a Q class.
+     * @param originatingElement The persistable class (only for use on the processor thread)
+     * @param className Canonical name of the persistable class
+     * @param classNameFull Binary name of the persistable class
+     * @param packageName Package of the Q class
+     * @param classNameSimple Simple name of the persistable class
+     * @param qclassNameSimple Simple name of the Q class
+     * @param qclassNameFull Binary name of the Q class
+     * @param superQClassName Name of the Q class of the persistent supertype (or null if none)
+     * @param depth Depth to which persistable members of the candidate are expanded
+     * @param members Persistent members
+     * @param inheritedMembers Persistent members of the persistent supertypes (where needed, otherwise empty)
+     * @param innerClasses Models of Q classes for persistable (static) inner classes
+     * @param projections Projections of the persistable class
+     * @param keyMember The (single) primary key member to iterate in order of, of the class or a persistent supertype (or null if none)
+     * @param referencedTypeNames Canonical names of the top-level types referenced by the Q class (see {@link #getReferencedTypeNames()})
+     */
+    public QueryClassModel(TypeElement originatingElement, String className, String classNameFull, String packageName, String classNameSimple, String qclassNameSimple,
+            String qclassNameFull, String superQClassName, int depth, List<Member> members, List<Member> inheritedMembers, List<QueryClassModel> innerClasses,
+            List<ProjectionClass> projections, Member keyMember, Set<String> referencedTypeNames)
+    {
+        this.originatingElement = originatingElement;
+        this.className = className;
+        this.classNameFull = classNameFull;
+        this.packageName = packageName;
+        this.classNameSimple = classNameSimple;
+        this.qclassNameSimple = qclassNameSimple;
+        this.qclassNameFull = qclassNameFull;
+        this.superQClassName = superQClassName;
+        this.depth = depth;
+        this.members = Collections.unmodifiableList(members);
+        this.inheritedMembers = Collections.unmodifiableList(inheritedMembers);
+        this.innerClasses = Collections.unmodifiableList(innerClasses);
+        this.projections = Collections.unmodifiableList(projections);
+        this.keyMember = keyMember;
+        this.referencedTypeNames = Collections.unmodifiableSet(referencedTypeNames);
+    }
+
+    public TypeElement getOriginatingElement()
+    {
+        return originatingElement;
+    }
+
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public String getClassNameFull()
+    {
+        return classNameFull;
+    }
+
+    public String getPackageName()
+    {
+        return packageName;
+    }
+
+    public String getClassNameSimple()
+    {
+        return classNameSimple;
+    }
+
+    public String getQClassNameSimple()
+    {
+        return qclassNameSimple;
+    }
+
+    public String getQClassNameFull()
+    {
+        return qclassNameFull;
+    }
+
+    public String getSuperQClassName()
+    {
+        return superQClassName;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public List<Member> getMembers()
+    {
+        return members;
+    }
+
+    public List<Member> getInheritedMembers()
+    {
+        return inheritedMembers;
+    }
+
+    public List<QueryClassModel> getInnerClasses()
+    {
+        return innerClasses;
+    }
+
+    public List<ProjectionClass> getProjections()
+    {
+        return projections;
+    }
+
+    public Member getKeyMember()
+    {
+        return keyMember;
+    }
+
+    /**
+     * Accessor for the canonical names of the top-level types referenced by the Q class, so the class, its persistent
+     * supertypes and the types of their persistent members, and the Q classes of those that are persistable. These tell
+     * where the package ends in a qualified name referring to them, which can't be told from the case of the names.
+     * @return The type names
+     */
+    public Set<String> getReferencedTypeNames()
+    {
+        return referencedTypeNames;
+    }
+
+    /**
+     * Accessor for the (persistable) members that are not expanded when already being expanded further up the path.
+     * @return The cyclic members, in the order of the members
+     */
+    public List<Member> getCyclicMembers()
+    {
+        List<Member> cyclicMembers = new ArrayList<Member>();
+        for (Member member : members)
+        {
+            if (member.isCyclic())
+            {
+                cyclicMembers.add(member);
+            }
+        }
+        return cyclicMembers;
+    }
+
+    /**
+     * Accessor for whether any member is persistable (so has its own Q class).
+     * @return Whether there are persistable members
+     */
+    public boolean hasPersistableMembers()
+    {
+        for (Member member : members)
+        {
+            if (member.isPersistable())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.ServiceLoader;
+
+import javax.jdo.query.PersistableExpression;
+
+/**
+ * Runtime lookup of the Q class for a persistable class, using the generated {@link QueryClassRegistry} services.
+ * The registries are loaded (using the ClassLoader of the persistable class) the first time each persistable class is
+ * looked up, and the registry found is then remembered against the class, so later lookups need no scanning or reflection.
+ * This requires this jar to be available at runtime, not just to the compiler.
+ */
+public final class QueryClassRegistries
+{
+    private static final ClassValue<QueryClassRegistry> REGISTRY_BY_CLASS = new ClassValue<QueryClassRegistry>()
+    {
+        @Override
+        protected QueryClassRegistry computeValue(Class<?> cls)
+        {
+            for (QueryClassRegistry registry : ServiceLoader.load(QueryClassRegistry.class, cls.getClassLoader()))
+            {
+                if (registry.supports(cls))
+                {
+                    return registry;
+                }
+            }
+            return null;
+        }
+    };
+
+    private QueryClassRegistries()
+    {
+    }
+
+    /**
+     * Accessor for the registry that has the Q class for the specified persistable class.
+     * @param cls The persistable class
+     * @return The registry, or null if no Q class is registered for it
+     */
+    public static QueryClassRegistry getRegistry(Class<?> cls)
+    {
+        return REGISTRY_BY_CLASS.get(cls);
+    }
+
+    /**
+     * Accessor for the (shared) candidate expression of the Q class for the specified class.
+     * @param cls The persistable class
+     * @return The candidate, or null if no Q class is registered for it
+     */
+    public static PersistableExpression<?> candidate(Class<?> cls)
+    {
+        QueryClassRegistry registry = REGISTRY_BY_CLASS.get(cls);
+        return (registry != null ? registry.candidate(cls) : null);
+    }
+
+    /**
+     * Method to create a candidate expression with the specified name for the specified class.
+     * @param cls The persistable class
+     * @param name Name of the candidate
+     * @return The candidate, or null if no Q class is registered for it
+     */
+    public static PersistableExpression<?> candidate(Class<?> cls, String name)
+    {
+        QueryClassRegistry registry = REGISTRY_BY_CLASS.get(cls);
+        return (registry != null ? registry.candidate(cls, name) : null);
+    }
+
+    /**
+     * Method to create a parameter expression for the specified class.
+     * @param cls The persistable class
+     * @param name Name of the parameter
+     * @return The parameter, or null if no Q class is registered for it
+     */
+    public static PersistableExpression<?> parameter(Class<?> cls, String name)
+    {
+        QueryClassRegistry registry = REGISTRY_BY_CLASS.get(cls);
+        return (registry != null ? registry.parameter(cls, name) : null);
+    }
+
+    /**
+     * Method to create a variable expression for the specified class.
+     * @param cls The persistable class
+     * @param name Name of the variable
+     * @return The variable, or null if no Q class is registered for it
+     */
+    public static PersistableExpression<?> variable(Class<?> cls, String name)
+    {
+        QueryClassRegistry registry = REGISTRY_BY_CLASS.get(cls);
+        return (registry != null ? registry.variable(cls, name) : null);
+    }
+}
@@ -0,0 +1,67 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import javax.jdo.query.PersistableExpression;
+
+/**
+ * Registry of the Q classes generated for the persistable classes of a package, so that the Q class for a persistable
+ * class can be obtained without reflection. When the compiler argument "queryRegistry" is specified, an implementation
+ * is generated in each package with persistable classes, and registered as a service so {@link QueryClassRegistries}
+ * can find it. All methods return null for a class that is not in this registry.
+ */
+public interface QueryClassRegistry
+{
+    /**
+     * Accessor for whether the specified class has its Q class in this registry.
+     * @param cls The persistable class
+     * @return Whether it is in this registry
+     */
+    boolean supports(Class<?> cls);
+
+    /**
+     * Accessor for the (shared) candidate expression of the Q class for the specified class, so "Q{cls}.candidate()".
+     * @param cls The persistable class
+     * @return The candidate
+     */
+    PersistableExpression<?> candidate(Class<?> cls);
+
+    /**
+     * Method to create a candidate expression with the specified name for the specified class, so "Q{cls}.candidate(name)".
+     * @param cls The persistable class
+     * @param name Name of the candidate
+     * @return The candidate
+     */
+    PersistableExpression<?> candidate(Class<?> cls, String name);
+
+    /**
+     * Method to create a parameter expression for the specified class, so "Q{cls}.parameter(name)".
+     * @param cls The persistable class
+     * @param name Name of the parameter
+     * @return The parameter
+     */
+    PersistableExpression<?> parameter(Class<?> cls, String name);
+
+    /**
+     * Method to create a variable expression for the specified class, so "Q{cls}.variable(name)".
+     * @param cls The persistable class
+     * @param name Name of the variable
+     * @return The variable
+     */
+    PersistableExpression<?> variable(Class<?> cls, String name);
+}
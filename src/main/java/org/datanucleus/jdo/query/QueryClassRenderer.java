@@ -0,0 +1,1723 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jdo.query.CollectionExpression;
+import javax.jdo.query.ListExpression;
+import javax.jdo.query.MapExpression;
+import javax.jdo.query.NumericExpression;
+import javax.jdo.query.PersistableExpression;
+
+import org.datanucleus.jdo.query.QueryClassModel.Member;
+
+/**
+ * Renderer for the source of a Q class from its (immutable) model.
+ * Only uses the model and the settings it is constructed with, so can be used from multiple threads concurrently.
+ */
+public class QueryClassRenderer
+{
+    private final static String CODE_INDENT = "    ";
+
+    private final static String PERSISTABLE_EXPRESSION_IMPL = "org.datanucleus.api.jdo.query.PersistableExpressionImpl";
+    private final static String EXPRESSION_TYPE = "org.datanucleus.api.jdo.query.ExpressionType";
+
+    final static String PARAMETER_BINDER = "ParameterBinder";
+
+    /** Simple name of the class holding the candidate of a Q class, so it is only created on first use. */
+    final static String CANDIDATE_HOLDER = "JdoCandidateHolder";
+
+    /** Simple name of the class holding which cyclic members of a Q class are being expanded by the current thread. */
+    final static String EXPANDING_HOLDER = "JdoExpandingHolder";
+
+    /** Simple name of the fetch plan builder of a Q class. */
+    final static String FETCH_PLAN_BUILDER = "Fetch";
+
+    /** Simple name of the keyset paginated iterator of a Q class. */
+    final static String KEYSET_ITERATOR = "Keyset";
+
+    /** Simple name of the builder of bulk updates and deletes of a Q class. */
+    final static String BULK_BUILDER = "Bulk";
+
+    private final static String TYPED_QUERY_IMPL = "org.datanucleus.api.jdo.query.JDOQLTypedQueryImpl";
+
+    private final int queryMode;
+
+    private final int cacheSize;
+
+    private final boolean candidateField;
+
+    private final boolean fetchPlans;
+
+    private final boolean bulk;
+
+    private final boolean parameterBinder;
+
+    /**
+     * Constructor for a renderer.
+     * @param queryMode Mode of Q classes to generate (see JDOQueryProcessor)
+     * @param cacheSize Maximum number of named candidates (and parameters, and variables) to cache in each Q class (0 to not cache)
+     * @param candidateField Whether to create the candidate in a static field "jdoCandidate" when the Q class is initialised,
+     *     rather than on first use
+     * @param fetchPlans Whether to generate a fetch plan builder in each Q class
+     * @param bulk Whether to generate a builder of bulk updates and deletes in each Q class
+     * @param parameterBinder Whether to generate a typed binder of parameters named after the members in each Q class
+     */
+    public QueryClassRenderer(int queryMode, int cacheSize, boolean candidateField, boolean fetchPlans, boolean bulk, boolean parameterBinder)
+    {
+        this.queryMode = queryMode;
+        this.cacheSize = cacheSize;
+        this.candidateField = candidateField;
+        this.fetchPlans = fetchPlans;
+        this.bulk = bulk;
+        this.parameterBinder = parameterBinder;
+    }
+
+    /**
+     * Method to render the source of the Q class for the specified model.
+     * @param model Model of the Q class
+     * @return The source
+     */
+    public String render(QueryClassModel model)
+    {
+        // Types declared in this file, whose names can't be imported
+        String qclassName = model.getPackageName() + "." + model.getQClassNameSimple();
+        List<String> declaredNames = new ArrayList<String>();
+        declaredNames.add(qclassName);
+        if (parameterBinder)
+        {
+            declaredNames.add(qclassName + "." + PARAMETER_BINDER);
+        }
+        if (!candidateField)
+        {
+            declaredNames.add(qclassName + "." + CANDIDATE_HOLDER);
+        }
+        if (fetchPlans)
+        {
+            declaredNames.add(qclassName + "." + FETCH_PLAN_BUILDER);
+        }
+        if (bulk)
+        {
+            declaredNames.add(qclassName + "." + BULK_BUILDER);
+        }
+        if (model.getKeyMember() != null)
+        {
+            declaredNames.add(qclassName + "." + KEYSET_ITERATOR);
+        }
+        for (QueryClassModel.ProjectionClass projection : model.getProjections())
+        {
+            declaredNames.add(qclassName + "." + projection.getName());
+        }
+        int numMembers = model.getMembers().size();
+        Set<String> typeNames = new HashSet<String>(model.getReferencedTypeNames());
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            typeNames.addAll(innerModel.getReferencedTypeNames());
+            declaredNames.add(qclassName + "." + innerModel.getQClassNameSimple());
+            if (fetchPlans)
+            {
+                declaredNames.add(qclassName + "." + innerModel.getQClassNameSimple() + "." + FETCH_PLAN_BUILDER);
+            }
+            if (bulk)
+            {
+                declaredNames.add(qclassName + "." + innerModel.getQClassNameSimple() + "." + BULK_BUILDER);
+            }
+            if (innerModel.getKeyMember() != null)
+            {
+                declaredNames.add(qclassName + "." + innerModel.getQClassNameSimple() + "." + KEYSET_ITERATOR);
+            }
+            for (QueryClassModel.ProjectionClass projection : innerModel.getProjections())
+            {
+                declaredNames.add(qclassName + "." + innerModel.getQClassNameSimple() + "." + projection.getName());
+            }
+            numMembers += innerModel.getMembers().size();
+        }
+
+        JavaSourceEmitter src = new JavaSourceEmitter(model.getPackageName(), declaredNames, typeNames, 2048 + 512 * numMembers);
+        addQueryClass(src, "", model);
+        return src.toSource();
+    }
+
+    /**
+     * Method to render the source of the registry of the Q classes in a package, which implements QueryClassRegistry
+     * with a switch on the name of the persistable class.
+     * @param packageName The package
+     * @param models Models of the (top-level) Q classes in the package
+     * @return The source
+     */
+    public String renderRegistry(String packageName, Collection<QueryClassModel> models)
+    {
+        // Canonical Q class name for each persistable class (binary) name, including inner classes
+        Map<String, String> qclassNameByClassName = new TreeMap<String, String>();
+        for (QueryClassModel model : models)
+        {
+            String qclassName = packageName + "." + model.getQClassNameSimple();
+            qclassNameByClassName.put(model.getClassNameFull(), qclassName);
+            for (QueryClassModel innerModel : model.getInnerClasses())
+            {
+                qclassNameByClassName.put(innerModel.getClassNameFull(), qclassName + "." + innerModel.getQClassNameSimple());
+            }
+        }
+
+        JavaSourceEmitter src = new JavaSourceEmitter(packageName, Collections.singletonList(packageName + "." + JDOQueryProcessor.REGISTRY_CLASS_NAME),
+            qclassNameByClassName.values(), 1024 + 512 * qclassNameByClassName.size());
+        String registryIntfName = src.type(QueryClassRegistry.class.getName());
+        String exprName = src.type(PersistableExpression.class.getName());
+        String classParam = src.type(Class.class.getName()) + "<?> cls";
+        String nameParam = src.type(String.class.getName()) + " name";
+
+        src.append("public class ").append(JDOQueryProcessor.REGISTRY_CLASS_NAME).append(" implements ").append(registryIntfName).append("\n");
+        src.append("{\n");
+
+        // public boolean supports(Class<?> cls)
+        src.append(CODE_INDENT).append("public boolean supports(").append(classParam).append(")\n");
+        src.append(CODE_INDENT).append("{\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("switch (cls.getName())\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("{\n");
+        for (String className : qclassNameByClassName.keySet())
+        {
+            src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("case \"").append(className).append("\":\n");
+        }
+        src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("return true;\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("default:\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("return false;\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("}\n");
+        src.append(CODE_INDENT).append("}\n");
+
+        // public PersistableExpression<?> {method}(Class<?> cls[, String name])
+        addRegistryMethod(src, exprName, "candidate", classParam, "", qclassNameByClassName);
+        addRegistryMethod(src, exprName, "candidate", classParam + ", " + nameParam, "name", qclassNameByClassName);
+        addRegistryMethod(src, exprName, "parameter", classParam + ", " + nameParam, "name", qclassNameByClassName);
+        addRegistryMethod(src, exprName, "variable", classParam + ", " + nameParam, "name", qclassNameByClassName);
+
+        src.append("}\n");
+        return src.toSource();
+    }
+
+    private static void addRegistryMethod(JavaSourceEmitter src, String exprName, String methodName, String params, String args,
+            Map<String, String> qclassNameByClassName)
+    {
+        src.append("\n");
+        src.append(CODE_INDENT).append("public ").append(exprName).append("<?> ").append(methodName).append("(").append(params).append(")\n");
+        src.append(CODE_INDENT).append("{\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("switch (cls.getName())\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("{\n");
+        for (Map.Entry<String, String> entry : qclassNameByClassName.entrySet())
+        {
+            src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("case \"").append(entry.getKey()).append("\":\n");
+            src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("return ").append(src.type(entry.getValue()))
+                .append(".").append(methodName).append("(").append(args).append(");\n");
+        }
+        src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("default:\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append(CODE_INDENT).append("return null;\n");
+        src.append(CODE_INDENT).append(CODE_INDENT).append("}\n");
+        src.append(CODE_INDENT).append("}\n");
+    }
+
+    /**
+     * Method to add the code for the declaration of a Q class, including the Q classes of any persistable inner classes.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addQueryClass(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        // Class declaration
+        src.append(indent).append(indent.isEmpty() ? "public class " : "public static class ").append(model.getQClassNameSimple());
+        if (model.getSuperQClassName() != null)
+        {
+            // "public class QASub extends QA"
+            src.append(" extends ").append(src.type(model.getSuperQClassName()));
+        }
+        else
+        {
+            // "public class QA extends PersistableExpressionImpl<A> implements PersistableExpression<A>"
+            String className = src.type(model.getClassName());
+            src.append(" extends ").append(src.type(PERSISTABLE_EXPRESSION_IMPL)).append("<" + className + ">");
+            src.append(" implements ").append(src.type(PersistableExpression.class.getName())).append("<" + className + ">");
+        }
+        src.append("\n");
+        src.append(indent).append("{\n");
+
+        String memberIndent = indent + CODE_INDENT;
+
+        // Add static metadata for the members (before the candidate, since static initialisers run in order)
+        addMemberMetadata(src, memberIndent, model);
+        src.append("\n");
+        if (addCycleCutoffHolder(src, memberIndent, model))
+        {
+            src.append("\n");
+        }
+
+        // Add static accessor for the candidate of this type
+        addStaticMethodAccessors(src, memberIndent, model);
+        src.append("\n");
+
+        // Add fields for persistable members
+        for (Member member : model.getMembers())
+        {
+            addMemberField(src, memberIndent, member);
+        }
+        if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD && model.hasPersistableMembers())
+        {
+            src.append(memberIndent).append("private final int jdoRelationDepth;\n");
+        }
+
+        // ========== Constructor(PersistableExpression parent, String name, int depth) ==========
+        src.append("\n");
+        addConstructorWithPersistableExpression(src, memberIndent, model);
+
+        // ========== Constructor(Class type, String name, ExpressionType exprType) ==========
+        src.append("\n");
+        addConstructorWithType(src, memberIndent, model);
+
+        // Property accessors
+        if (queryMode == JDOQueryProcessor.MODE_PROPERTY || queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+        {
+            for (Member member : model.getMembers())
+            {
+                if (queryMode == JDOQueryProcessor.MODE_PROPERTY)
+                {
+                    src.append("\n");
+                    addPropertyAccessorMethod(src, memberIndent, member, model.getDepth());
+                }
+                else if (member.isPersistable())
+                {
+                    src.append("\n");
+                    addLazyAccessorMethod(src, memberIndent, member);
+                }
+            }
+        }
+
+        if (parameterBinder)
+        {
+            // Typed binder for parameters named after the members
+            src.append("\n");
+            addParameterBinder(src, memberIndent, model);
+        }
+
+        for (QueryClassModel.ProjectionClass projection : model.getProjections())
+        {
+            src.append("\n");
+            addProjectionClass(src, memberIndent, model, projection);
+        }
+
+        if (fetchPlans)
+        {
+            src.append("\n");
+            addFetchPlanBuilder(src, memberIndent, model);
+        }
+
+        if (model.getKeyMember() != null)
+        {
+            src.append("\n");
+            addKeysetIterator(src, memberIndent, model);
+        }
+
+        if (bulk)
+        {
+            src.append("\n");
+            addBulkBuilder(src, memberIndent, model);
+        }
+
+        for (QueryClassModel innerModel : model.getInnerClasses())
+        {
+            // Static inner class that is persistable, so needing own Qclass inlined here
+            src.append("\n");
+            addQueryClass(src, memberIndent, innerModel);
+        }
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for static tables describing the members declared in this QClass, so that they can be resolved
+     * by index at runtime. These are the member names in declaration order, the query expression type of each member (the
+     * QClass for persistable members), whether each member is a relation, and a constant for the index of each member.
+     * The tables are private, and read through static accessors taking the index, so can't be modified.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addMemberMetadata(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        List<Member> members = model.getMembers();
+
+        // private static final String[] jdoMemberNames = {"{member1}", "{member2}"};
+        src.append(indent).append("private static final ").append(src.type(String.class.getName())).append("[] jdoMemberNames = {");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(i > 0 ? ", \"" : "\"").append(members.get(i).getName()).append('"');
+        }
+        src.append("};\n");
+
+        // private static final Class<?>[] jdoMemberExpressionTypes = {{IntfType1}.class, {IntfType2}.class};
+        src.append(indent).append("private static final ").append(src.type(Class.class.getName())).append("<?>[] jdoMemberExpressionTypes = {");
+        for (int i=0;i<members.size();i++)
+        {
+            String intfName = members.get(i).getExpressionInterfaceName();
+            int genericStart = intfName.indexOf('<');
+            src.append(i > 0 ? ", " : "").append(src.type(genericStart > 0 ? intfName.substring(0, genericStart) : intfName)).append(".class");
+        }
+        src.append("};\n");
+
+        // private static final boolean[] jdoMemberRelations = {false, true};
+        src.append(indent).append("private static final boolean[] jdoMemberRelations = {");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(i > 0 ? ", " : "").append(members.get(i).isPersistable() ? "true" : "false");
+        }
+        src.append("};\n");
+
+        // public static final int JDO_INDEX_{member} = {index};
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(indent).append("public static final int JDO_INDEX_").append(members.get(i).getName()).append(" = ").append(i).append(";\n");
+        }
+
+        // public static int jdoGetMemberCount()
+        src.append("\n");
+        src.append(indent).append("public static int jdoGetMemberCount()\n");
+        src.append(indent).append("{\n");
+        src.append(indent).append(CODE_INDENT).append("return jdoMemberNames.length;\n");
+        src.append(indent).append("}\n");
+
+        // public static {type} {method}(int index)
+        addMemberMetadataAccessor(src, indent, src.type(String.class.getName()), "jdoGetMemberName", "jdoMemberNames");
+        addMemberMetadataAccessor(src, indent, src.type(Class.class.getName()) + "<?>", "jdoGetMemberExpressionType", "jdoMemberExpressionTypes");
+        addMemberMetadataAccessor(src, indent, "boolean", "jdoIsMemberRelation", "jdoMemberRelations");
+    }
+
+    private static void addMemberMetadataAccessor(JavaSourceEmitter src, String indent, String typeName, String methodName, String tableName)
+    {
+        src.append("\n");
+        src.append(indent).append("public static ").append(typeName).append(" ").append(methodName).append("(int index)\n");
+        src.append(indent).append("{\n");
+        src.append(indent).append(CODE_INDENT).append("return ").append(tableName).append("[index];\n");
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for a nested class that binds the values of query parameters named after the members of this QClass
+     * (including those of persistent supertypes), with a setter taking the type of each member, so the values are type-checked.
+     * JDOQLTypedQuery takes parameter values as objects, so values of primitive members are boxed when bound, as when calling
+     * setParameter directly. The binder can be reused across executions.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addParameterBinder(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        List<Member> members = getMembersWithInherited(model);
+        String innerIndent = indent + CODE_INDENT;
+        String codeIndent = innerIndent + CODE_INDENT;
+        String size = "[" + members.size() + "]";
+        String objectName = src.type(Object.class.getName());
+
+        src.append(indent).append("public static class ").append(PARAMETER_BINDER).append("\n");
+        src.append(indent).append("{\n");
+        src.append(innerIndent).append("private final ").append(objectName).append("[] values = new ").append(objectName).append(size).append(";\n");
+        src.append(innerIndent).append("private final boolean[] bound = new boolean").append(size).append(";\n");
+
+        // public ParameterBinder bind{Member}({type} value)
+        for (int i=0;i<members.size();i++)
+        {
+            Member member = members.get(i);
+            String typeName = member.getTypeName();
+            String memberName = member.getName();
+            src.append("\n");
+            src.append(innerIndent).append("public ").append(PARAMETER_BINDER).append(" bind").append(Character.toUpperCase(memberName.charAt(0)))
+                .append(memberName.substring(1)).append("(").append(isPrimitive(typeName) ? typeName : src.type(typeName)).append(" value)\n");
+            src.append(innerIndent).append("{\n");
+            src.append(codeIndent).append("values[").append(i).append("] = value;\n");
+            src.append(codeIndent).append("bound[").append(i).append("] = true;\n");
+            src.append(codeIndent).append("return this;\n");
+            src.append(innerIndent).append("}\n");
+        }
+
+        // public ParameterBinder clear()
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(PARAMETER_BINDER).append(" clear()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append(src.type("java.util.Arrays")).append(".fill(values, null);\n");
+        src.append(codeIndent).append(src.type("java.util.Arrays")).append(".fill(bound, false);\n");
+        src.append(codeIndent).append("return this;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void applyTo(JDOQLTypedQuery<?> query)
+        src.append("\n");
+        src.append(innerIndent).append("public void applyTo(").append(src.type("javax.jdo.JDOQLTypedQuery<?>")).append(" query)\n");
+        src.append(innerIndent).append("{\n");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(codeIndent).append("if (bound[").append(i).append("])\n");
+            src.append(codeIndent).append("{\n");
+            src.append(codeIndent).append(CODE_INDENT).append("query.setParameter(\"").append(members.get(i).getName()).append("\", values[").append(i).append("]);\n");
+            src.append(codeIndent).append("}\n");
+        }
+        src.append(innerIndent).append("}\n");
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for a builder of a bulk update or delete of the instances of the persistable class matching a filter,
+     * executed as a single statement in the datastore using the DataNucleus extensions of JDOQLTypedQuery. Has a typed setter
+     * for each member (of the class or its persistent supertypes) that is held in the table of the class, so not for collections,
+     * maps or arrays.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addBulkBuilder(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        String innerIndent = indent + CODE_INDENT;
+        String codeIndent = innerIndent + CODE_INDENT;
+        String name = BULK_BUILDER;
+        String qclassNameSimple = model.getQClassNameSimple();
+        String className = src.type(model.getClassName());
+        String pmName = src.type("javax.jdo.PersistenceManager");
+        String queryName = src.type(TYPED_QUERY_IMPL) + "<" + className + ">";
+        String illegalStateName = src.type(IllegalStateException.class.getName());
+
+        src.append(indent).append("public static final class ").append(name).append("\n");
+        src.append(indent).append("{\n");
+        src.append(innerIndent).append("private final ").append(pmName).append(" pm;\n");
+        src.append(innerIndent).append("private final ").append(queryName).append(" query;\n");
+        src.append(innerIndent).append("private final ").append(qclassNameSimple).append(" candidate = ").append(qclassNameSimple).append(".candidate();\n");
+        src.append(innerIndent).append("private final boolean delete;\n");
+        src.append(innerIndent).append("private int numberOfUpdates = 0;\n");
+
+        // private Bulk(PersistenceManager pm, boolean delete)
+        src.append("\n");
+        src.append(innerIndent).append("private ").append(name).append("(").append(pmName).append(" pm, boolean delete)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("this.pm = pm;\n");
+        src.append(codeIndent).append("this.query = (").append(queryName).append(") pm.newJDOQLTypedQuery(").append(className).append(".class);\n");
+        src.append(codeIndent).append("this.delete = delete;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Bulk update(PersistenceManager pm)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(name).append(" update(").append(pmName).append(" pm)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return new ").append(name).append("(pm, false);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Bulk delete(PersistenceManager pm)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(name).append(" delete(").append(pmName).append(" pm)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return new ").append(name).append("(pm, true);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public Bulk set{Member}({type} value)
+        for (Member member : getMembersWithInherited(model))
+        {
+            String interfaceName = member.getExpressionInterfaceName();
+            if (interfaceName.equals(CollectionExpression.class.getName()) || interfaceName.equals(ListExpression.class.getName()) ||
+                interfaceName.equals(MapExpression.class.getName()) || member.getTypeName().endsWith("]"))
+            {
+                // Not held in the table of the class
+                continue;
+            }
+            String memberName = member.getName();
+            boolean accessor = (queryMode == JDOQueryProcessor.MODE_PROPERTY || (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD && member.isPersistable()));
+            src.append("\n");
+            src.append(innerIndent).append("public ").append(name).append(" set").append(Character.toUpperCase(memberName.charAt(0))).append(memberName.substring(1))
+                .append("(").append(src.type(member.getTypeName())).append(" value)\n");
+            src.append(innerIndent).append("{\n");
+            src.append(codeIndent).append("if (delete)\n");
+            src.append(codeIndent).append("{\n");
+            src.append(codeIndent).append(CODE_INDENT).append("throw new ").append(illegalStateName).append("(\"Members can't be set for a bulk delete\");\n");
+            src.append(codeIndent).append("}\n");
+            src.append(codeIndent).append("query.set(candidate.").append(memberName).append(accessor ? "()" : "").append(", value);\n");
+            src.append(codeIndent).append("numberOfUpdates++;\n");
+            src.append(codeIndent).append("return this;\n");
+            src.append(innerIndent).append("}\n");
+        }
+
+        // public Bulk where(BooleanExpression filter)
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(name).append(" where(").append(src.type("javax.jdo.query.BooleanExpression")).append(" filter)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("query.filter(filter);\n");
+        src.append(codeIndent).append("return this;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public Bulk setParameter(String name, Object value)
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(name).append(" setParameter(").append(src.type(String.class.getName())).append(" name, ")
+            .append(src.type(Object.class.getName())).append(" value)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("query.setParameter(name, value);\n");
+        src.append(codeIndent).append("return this;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public JDOQLTypedQuery<{Class}> getQuery()
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(src.type("javax.jdo.JDOQLTypedQuery")).append("<").append(className).append("> getQuery()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return query;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public long execute()
+        src.append("\n");
+        src.append(innerIndent).append("public long execute()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("if (!delete && numberOfUpdates == 0)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("throw new ").append(illegalStateName).append("(\"No members set for a bulk update\");\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("try\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("return (delete ? query.delete() : query.update());\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("finally\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("query.closeAll();\n");
+        src.append(codeIndent).append(CODE_INDENT).append("// Instances already loaded don't reflect the statement\n");
+        src.append(codeIndent).append(CODE_INDENT).append("pm.evictAll(true, ").append(className).append(".class);\n");
+        src.append(codeIndent).append(CODE_INDENT).append("pm.getPersistenceManagerFactory().getDataStoreCache().evictAll(true, ").append(className).append(".class);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(innerIndent).append("}\n");
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for an iterator over the instances of the persistable class in batches ordered by its primary key,
+     * where each batch is queried from the last key of the previous batch (rather than from an offset, which the datastore has
+     * to skip), and each batch is evicted from the PersistenceManager when moving to the next so that memory use stays flat.
+     * The key is selected in the result alongside each instance, so that it is available without reading the identity.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addKeysetIterator(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        String innerIndent = indent + CODE_INDENT;
+        String codeIndent = innerIndent + CODE_INDENT;
+        String name = KEYSET_ITERATOR;
+        String qclassNameSimple = model.getQClassNameSimple();
+        String className = src.type(model.getClassName());
+        String pmName = src.type("javax.jdo.PersistenceManager");
+        String queryName = src.type("javax.jdo.JDOQLTypedQuery") + "<" + className + ">";
+        String listName = src.type("java.util.List") + "<" + className + ">";
+        String booleanExprName = src.type("javax.jdo.query.BooleanExpression");
+        String filterName = src.type("java.util.function.Function") + "<" + qclassNameSimple + ", " + booleanExprName + ">";
+        String streamName = src.type("java.util.stream.Stream") + "<" + className + ">";
+        String spliteratorName = src.type("java.util.Spliterator");
+        Member keyMember = model.getKeyMember();
+        String keyTypeName = src.type(isPrimitive(keyMember.getTypeName()) ? getBoxedTypeName(keyMember.getTypeName()) : keyMember.getTypeName());
+        String keyExpr = "candidate." + keyMember.getName() + (queryMode == JDOQueryProcessor.MODE_PROPERTY ? "()" : "");
+
+        src.append(indent).append("public static final class ").append(name).append(" implements ").append(src.type("java.util.Iterator")).append("<")
+            .append(className).append(">, ").append(src.type(AutoCloseable.class.getName())).append("\n");
+        src.append(indent).append("{\n");
+        src.append(innerIndent).append("private final ").append(pmName).append(" pm;\n");
+        src.append(innerIndent).append("private final int batchSize;\n");
+        src.append(innerIndent).append("private final ").append(queryName).append(" firstQuery;\n");
+        src.append(innerIndent).append("private final ").append(queryName).append(" nextQuery;\n");
+        src.append(innerIndent).append("private ").append(listName).append(" batch = ").append(src.type("java.util.Collections")).append(".emptyList();\n");
+        src.append(innerIndent).append("private int position = 0;\n");
+        src.append(innerIndent).append("private boolean lastBatch = false;\n");
+        src.append(innerIndent).append("private ").append(keyTypeName).append(" lastKey = null;\n");
+
+        // private Keyset(PersistenceManager pm, int batchSize, Function<{QClass}, BooleanExpression> filter)
+        // {
+        //     ...
+        //     firstQuery.filter(condition).orderBy(candidate.{key}.asc()).result(false, candidate, candidate.{key}).range(0, batchSize);
+        //     nextQuery.filter(condition.and(candidate.{key}.gt(:jdoLastKey))).orderBy(candidate.{key}.asc()).result(false, candidate, candidate.{key}).range(0, batchSize);
+        // }
+        src.append("\n");
+        src.append(innerIndent).append("private ").append(name).append("(").append(pmName).append(" pm, int batchSize, ").append(filterName).append(" filter)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("if (batchSize < 1)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("throw new ").append(src.type(IllegalArgumentException.class.getName()))
+            .append("(\"Batch size must be at least 1 but is \" + batchSize);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("this.pm = pm;\n");
+        src.append(codeIndent).append("this.batchSize = batchSize;\n");
+        src.append(codeIndent).append(qclassNameSimple).append(" candidate = ").append(qclassNameSimple).append(".candidate();\n");
+        src.append(codeIndent).append(booleanExprName).append(" condition = (filter != null ? filter.apply(candidate) : null);\n");
+        src.append(codeIndent).append("firstQuery = pm.newJDOQLTypedQuery(").append(className).append(".class);\n");
+        src.append(codeIndent).append("if (condition != null)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("firstQuery.filter(condition);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("firstQuery.orderBy(").append(keyExpr).append(".asc()).result(false, candidate, ").append(keyExpr).append(").range(0, batchSize);\n");
+        src.append(codeIndent).append("nextQuery = pm.newJDOQLTypedQuery(").append(className).append(".class);\n");
+        // NumericExpression<T> is comparable with Number rather than T, so its parameter can't be cast from Expression<T>
+        String lastKeyExpr = (keyMember.getExpressionInterfaceName().startsWith(NumericExpression.class.getName()) ?
+            "nextQuery.numericParameter(\"jdoLastKey\")" :
+            "(" + src.type(keyMember.getExpressionInterfaceName()) + ") nextQuery.parameter(\"jdoLastKey\", " + keyTypeName + ".class)");
+        src.append(codeIndent).append(booleanExprName).append(" afterLastKey = ").append(keyExpr).append(".gt(").append(lastKeyExpr).append(");\n");
+        src.append(codeIndent).append("nextQuery.filter(condition != null ? condition.and(afterLastKey) : afterLastKey).orderBy(").append(keyExpr)
+            .append(".asc()).result(false, candidate, ").append(keyExpr).append(").range(0, batchSize);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Keyset iterator(PersistenceManager pm, int batchSize)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(name).append(" iterator(").append(pmName).append(" pm, int batchSize)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return new ").append(name).append("(pm, batchSize, null);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Keyset iterator(PersistenceManager pm, int batchSize, Function<{QClass}, BooleanExpression> filter)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(name).append(" iterator(").append(pmName).append(" pm, int batchSize, ").append(filterName).append(" filter)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return new ").append(name).append("(pm, batchSize, filter);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Stream<{Class}> stream(PersistenceManager pm, int batchSize)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(streamName).append(" stream(").append(pmName).append(" pm, int batchSize)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return stream(pm, batchSize, null);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static Stream<{Class}> stream(PersistenceManager pm, int batchSize, Function<{QClass}, BooleanExpression> filter)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(streamName).append(" stream(").append(pmName).append(" pm, int batchSize, ").append(filterName).append(" filter)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append(name).append(" keyset = new ").append(name).append("(pm, batchSize, filter);\n");
+        src.append(codeIndent).append("return ").append(src.type("java.util.stream.StreamSupport")).append(".stream(").append(src.type("java.util.Spliterators"))
+            .append(".spliteratorUnknownSize(keyset, ").append(spliteratorName).append(".ORDERED | ").append(spliteratorName).append(".DISTINCT | ")
+            .append(spliteratorName).append(".NONNULL), false).onClose(keyset::close);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public boolean hasNext()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public boolean hasNext()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("if (position >= batch.size() && !lastBatch)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("nextBatch();\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("return position < batch.size();\n");
+        src.append(innerIndent).append("}\n");
+
+        // public {Class} next()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public ").append(className).append(" next()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("if (!hasNext())\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("throw new ").append(src.type("java.util.NoSuchElementException")).append("();\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("return batch.get(position++);\n");
+        src.append(innerIndent).append("}\n");
+
+        // private void nextBatch()
+        src.append("\n");
+        src.append(innerIndent).append("private void nextBatch()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("// Evict the previous batch, so that the PersistenceManager only holds one batch at a time\n");
+        src.append(codeIndent).append("pm.evictAll(batch);\n");
+        src.append(codeIndent).append(queryName).append(" query = (lastKey == null ? firstQuery : nextQuery.setParameter(\"jdoLastKey\", lastKey));\n");
+        String objectName = src.type(Object.class.getName());
+        src.append(codeIndent).append(src.type("java.util.List")).append("<").append(objectName).append("> results = query.executeResultList();\n");
+        src.append(codeIndent).append("batch = new ").append(src.type("java.util.ArrayList")).append("<").append(className).append(">(results.size());\n");
+        src.append(codeIndent).append("for (").append(objectName).append(" result : results)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append(objectName).append("[] row = (").append(objectName).append("[]) result;\n");
+        src.append(codeIndent).append(CODE_INDENT).append("batch.add((").append(className).append(") row[0]);\n");
+        src.append(codeIndent).append(CODE_INDENT).append("lastKey = ").append(getResultValue(src, keyMember.getTypeName(), "row[1]")).append(";\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("query.closeAll();\n");
+        src.append(codeIndent).append("position = 0;\n");
+        src.append(codeIndent).append("lastBatch = (batch.size() < batchSize);\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void close()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public void close()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("pm.evictAll(batch);\n");
+        src.append(codeIndent).append("batch = ").append(src.type("java.util.Collections")).append(".emptyList();\n");
+        src.append(codeIndent).append("lastBatch = true;\n");
+        src.append(codeIndent).append("firstQuery.closeAll();\n");
+        src.append(codeIndent).append("nextQuery.closeAll();\n");
+        src.append(innerIndent).append("}\n");
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for an immutable builder of a fetch plan selecting members of this QClass (and of the classes
+     * it relates to). Applying it defines a fetch group named after the selection for each class in the selection, so the
+     * name is only built once per builder, and sets the fetch plan to that group.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addFetchPlanBuilder(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        String innerIndent = indent + CODE_INDENT;
+        String codeIndent = innerIndent + CODE_INDENT;
+        String name = FETCH_PLAN_BUILDER;
+        String stringName = src.type(String.class.getName());
+        String pmName = src.type("javax.jdo.PersistenceManager");
+        String fetchPlanName = src.type("javax.jdo.FetchPlan");
+        String groupsName = src.type("java.util.function.BiConsumer") + "<" + pmName + ", " + stringName + ">";
+        String listName = src.type("java.util.List") + "<" + groupsName + ">";
+        String arraysName = src.type("java.util.Arrays");
+
+        // Members that can be selected, so those of this class and of its persistent supertypes
+        List<Member> members = getMembersWithInherited(model);
+
+        src.append(indent).append("public static final class ").append(name).append("\n");
+        src.append(indent).append("{\n");
+        src.append(innerIndent).append("private final ").append(stringName).append("[] members;\n");
+        src.append(innerIndent).append("private final ").append(stringName).append(" selection;\n");
+        src.append(innerIndent).append("private final ").append(stringName).append(" groupName;\n");
+        src.append(innerIndent).append("private final int depth;\n");
+        src.append(innerIndent).append("private final ").append(listName).append(" relationGroups;\n");
+
+        // public Fetch()
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(name).append("()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("this(new ").append(stringName).append("[0], \"\", 0, ").append(src.type("java.util.Collections"))
+            .append(".<").append(groupsName).append(">emptyList());\n");
+        src.append(innerIndent).append("}\n");
+
+        // private Fetch(String[] members, String selection, int depth, List<BiConsumer<PersistenceManager, String>> relationGroups)
+        src.append("\n");
+        src.append(innerIndent).append("private ").append(name).append("(").append(stringName).append("[] members, ").append(stringName)
+            .append(" selection, int depth, ").append(listName).append(" relationGroups)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("this.members = members;\n");
+        src.append(codeIndent).append("this.selection = selection;\n");
+        src.append(codeIndent).append("this.groupName = \"").append(model.getClassName()).append("[\" + selection + \"]\";\n");
+        src.append(codeIndent).append("this.depth = depth;\n");
+        src.append(codeIndent).append("this.relationGroups = relationGroups;\n");
+        src.append(innerIndent).append("}\n");
+
+        // private Fetch with(String member, String memberSelection, int memberDepth, BiConsumer<PersistenceManager, String> relationGroup)
+        src.append("\n");
+        src.append(innerIndent).append("private ").append(name).append(" with(").append(stringName).append(" member, ").append(stringName)
+            .append(" memberSelection, int memberDepth, ").append(groupsName).append(" relationGroup)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append(stringName).append("[] selectedMembers = ").append(arraysName).append(".copyOf(members, members.length + 1);\n");
+        src.append(codeIndent).append("selectedMembers[members.length] = member;\n");
+        src.append(codeIndent).append(listName).append(" selectedRelationGroups = relationGroups;\n");
+        src.append(codeIndent).append("if (relationGroup != null)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("selectedRelationGroups = new ").append(src.type("java.util.ArrayList")).append("<").append(groupsName)
+            .append(">(relationGroups);\n");
+        src.append(codeIndent).append(CODE_INDENT).append("selectedRelationGroups.add(relationGroup);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("return new ").append(name).append("(selectedMembers, selection.isEmpty() ? memberSelection : selection + \",\" + memberSelection, ")
+            .append(src.type(Math.class.getName())).append(".max(depth, memberDepth), selectedRelationGroups);\n");
+        src.append(innerIndent).append("}\n");
+
+        for (Member member : members)
+        {
+            String memberName = member.getName();
+            String methodName = "with" + Character.toUpperCase(memberName.charAt(0)) + memberName.substring(1);
+
+            // public Fetch with{Member}()
+            src.append("\n");
+            src.append(innerIndent).append("public ").append(name).append(" ").append(methodName).append("()\n");
+            src.append(innerIndent).append("{\n");
+            src.append(codeIndent).append("return with(\"").append(memberName).append("\", \"").append(memberName).append("\", ")
+                .append(member.isPersistable() ? "1" : "0").append(", null);\n");
+            src.append(innerIndent).append("}\n");
+
+            if (member.isPersistable())
+            {
+                // public Fetch with{Member}({RelatedQClass}.Fetch related)
+                src.append("\n");
+                src.append(innerIndent).append("public ").append(name).append(" ").append(methodName).append("(")
+                    .append(src.type(member.getExpressionImplClassName() + "." + FETCH_PLAN_BUILDER)).append(" related)\n");
+                src.append(innerIndent).append("{\n");
+                src.append(codeIndent).append("return with(\"").append(memberName).append("\", \"").append(memberName)
+                    .append("{\" + related.getSelection() + \"}\", related.getDepth() + 1, related::addGroups);\n");
+                src.append(innerIndent).append("}\n");
+            }
+        }
+
+        // public String getSelection()
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(stringName).append(" getSelection()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return selection;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public String getGroupName()
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(stringName).append(" getGroupName()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return groupName;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public int getDepth()
+        src.append("\n");
+        src.append(innerIndent).append("public int getDepth()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return depth;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void addGroups(PersistenceManager pm, String groupName)
+        // {
+        //     FetchGroup group = pm.getFetchGroup({Class}.class, groupName);
+        //     Set<?> groupMembers = group.getMembers();
+        //     if (!groupMembers.containsAll(Arrays.asList(members))) group.addMembers(members);
+        //     for (BiConsumer<PersistenceManager, String> relationGroup : relationGroups) relationGroup.accept(pm, groupName);
+        // }
+        String fetchGroupName = src.type("javax.jdo.FetchGroup");
+        String className = src.type(model.getClassName());
+        int genericStart = className.indexOf('<');
+        src.append("\n");
+        src.append(innerIndent).append("public void addGroups(").append(pmName).append(" pm, ").append(stringName).append(" groupName)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append(fetchGroupName).append(" group = pm.getFetchGroup(").append(genericStart > 0 ? className.substring(0, genericStart) : className)
+            .append(".class, groupName);\n");
+        src.append(codeIndent).append(src.type("java.util.Set")).append("<?> groupMembers = group.getMembers();\n");
+        src.append(codeIndent).append("if (!groupMembers.containsAll(").append(arraysName).append(".asList(members)))\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("// Only modify the group when needed, since that invalidates any fetch plan using it\n");
+        src.append(codeIndent).append(CODE_INDENT).append("group.addMembers(members);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("for (").append(groupsName).append(" relationGroup : relationGroups)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("relationGroup.accept(pm, groupName);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void applyTo(PersistenceManager pm, FetchPlan fetchPlan)
+        src.append("\n");
+        src.append(innerIndent).append("public void applyTo(").append(pmName).append(" pm, ").append(fetchPlanName).append(" fetchPlan)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("addGroups(pm, groupName);\n");
+        src.append(codeIndent).append("fetchPlan.setGroup(groupName);\n");
+        src.append(codeIndent).append("int maxFetchDepth = fetchPlan.getMaxFetchDepth();\n");
+        src.append(codeIndent).append("if (maxFetchDepth >= 0 && maxFetchDepth < depth)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("fetchPlan.setMaxFetchDepth(depth);\n");
+        src.append(codeIndent).append("}\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void applyTo(PersistenceManager pm)
+        src.append("\n");
+        src.append(innerIndent).append("public void applyTo(").append(pmName).append(" pm)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("applyTo(pm, pm.getFetchPlan());\n");
+        src.append(innerIndent).append("}\n");
+
+        // public void applyTo(JDOQLTypedQuery<?> query)
+        src.append("\n");
+        src.append(innerIndent).append("public void applyTo(").append(src.type("javax.jdo.JDOQLTypedQuery<?>")).append(" query)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("applyTo(query.getPersistenceManager(), query.getFetchPlan());\n");
+        src.append(innerIndent).append("}\n");
+
+        // public String toString()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public ").append(stringName).append(" toString()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return groupName;\n");
+        src.append(innerIndent).append("}\n");
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Convenience method to return the members of the Q class together with those of its persistent supertypes (where in the model)
+     * that aren't overridden by a member of the same name.
+     * @param model Model of the Q class
+     * @return The members
+     */
+    private static List<Member> getMembersWithInherited(QueryClassModel model)
+    {
+        List<Member> members = new ArrayList<Member>(model.getMembers());
+        for (Member inheritedMember : model.getInheritedMembers())
+        {
+            boolean overridden = false;
+            for (Member member : model.getMembers())
+            {
+                overridden |= member.getName().equals(inheritedMember.getName());
+            }
+            if (!overridden)
+            {
+                members.add(inheritedMember);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Method to add the code for an immutable class holding a projection of the members of this QClass, with static methods
+     * to set the result of a query to those members and to map each result to an instance using its constructor.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     * @param projection The projection
+     */
+    protected void addProjectionClass(JavaSourceEmitter src, String indent, QueryClassModel model, QueryClassModel.ProjectionClass projection)
+    {
+        String innerIndent = indent + CODE_INDENT;
+        String codeIndent = innerIndent + CODE_INDENT;
+        String name = projection.getName();
+        List<Member> members = projection.getMembers();
+        String objectName = src.type(Object.class.getName());
+        String queryName = src.type("javax.jdo.JDOQLTypedQuery") + "<" + src.type(model.getClassName()) + ">";
+        String listName = src.type("java.util.List");
+
+        src.append(indent).append("public static final class ").append(name).append("\n");
+        src.append(indent).append("{\n");
+        for (Member member : members)
+        {
+            src.append(innerIndent).append("private final ").append(src.type(member.getTypeName())).append(" ").append(member.getName()).append(";\n");
+        }
+
+        // public {Projection}({type1} {member1}, {type2} {member2})
+        src.append("\n");
+        src.append(innerIndent).append("public ").append(name).append("(");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(i > 0 ? ", " : "").append(src.type(members.get(i).getTypeName())).append(" ").append(members.get(i).getName());
+        }
+        src.append(")\n");
+        src.append(innerIndent).append("{\n");
+        for (Member member : members)
+        {
+            src.append(codeIndent).append("this.").append(member.getName()).append(" = ").append(member.getName()).append(";\n");
+        }
+        src.append(innerIndent).append("}\n");
+
+        // public {type} get{Member}()
+        for (Member member : members)
+        {
+            String memberName = member.getName();
+            src.append("\n");
+            src.append(innerIndent).append("public ").append(src.type(member.getTypeName())).append(member.getTypeName().equals("boolean") ? " is" : " get")
+                .append(Character.toUpperCase(memberName.charAt(0))).append(memberName.substring(1)).append("()\n");
+            src.append(innerIndent).append("{\n");
+            src.append(codeIndent).append("return ").append(memberName).append(";\n");
+            src.append(innerIndent).append("}\n");
+        }
+
+        // public static void applyTo(JDOQLTypedQuery<{Class}> query)
+        // {
+        //     {QClass} candidate = {QClass}.candidate();
+        //     query.result(false, candidate.{member1}, candidate.{member2});
+        // }
+        src.append("\n");
+        src.append(innerIndent).append("public static void applyTo(").append(queryName).append(" query)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append(model.getQClassNameSimple()).append(" candidate = ").append(model.getQClassNameSimple()).append(".candidate();\n");
+        src.append(codeIndent).append("query.result(false");
+        for (Member member : members)
+        {
+            boolean accessor = (queryMode == JDOQueryProcessor.MODE_PROPERTY || (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD && member.isPersistable()));
+            src.append(", candidate.").append(member.getName()).append(accessor ? "()" : "");
+        }
+        src.append(");\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static {Projection} fromResult(Object result)
+        // {
+        //     Object[] row = (Object[]) result;
+        //     return new {Projection}(({type1}) row[0], ({type2}) row[1]);
+        // }
+        boolean unchecked = false;
+        for (Member member : members)
+        {
+            unchecked |= (member.getTypeName().indexOf('<') >= 0);
+        }
+        src.append("\n");
+        if (unchecked)
+        {
+            src.append(innerIndent).append("@SuppressWarnings(\"unchecked\")\n");
+        }
+        src.append(innerIndent).append("public static ").append(name).append(" fromResult(").append(objectName).append(" result)\n");
+        src.append(innerIndent).append("{\n");
+        if (members.size() > 1)
+        {
+            src.append(codeIndent).append(objectName).append("[] row = (").append(objectName).append("[]) result;\n");
+        }
+        src.append(codeIndent).append("return new ").append(name).append("(");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(i > 0 ? ", " : "").append(getResultValue(src, members.get(i).getTypeName(), members.size() > 1 ? "row[" + i + "]" : "result"));
+        }
+        src.append(");\n");
+        src.append(innerIndent).append("}\n");
+
+        // public static List<{Projection}> executeList(JDOQLTypedQuery<{Class}> query)
+        src.append("\n");
+        src.append(innerIndent).append("public static ").append(listName).append("<").append(name).append("> executeList(").append(queryName).append(" query)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("applyTo(query);\n");
+        src.append(codeIndent).append(listName).append("<").append(objectName).append("> results = query.executeResultList();\n");
+        src.append(codeIndent).append(listName).append("<").append(name).append("> projections = new ").append(src.type("java.util.ArrayList")).append("<")
+            .append(name).append(">(results.size());\n");
+        src.append(codeIndent).append("for (").append(objectName).append(" result : results)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("projections.add(fromResult(result));\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("return projections;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public boolean equals(Object obj)
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public boolean equals(").append(objectName).append(" obj)\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("if (obj == this)\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("return true;\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append("if (!(obj instanceof ").append(name).append("))\n");
+        src.append(codeIndent).append("{\n");
+        src.append(codeIndent).append(CODE_INDENT).append("return false;\n");
+        src.append(codeIndent).append("}\n");
+        src.append(codeIndent).append(name).append(" other = (").append(name).append(") obj;\n");
+        src.append(codeIndent).append("return ");
+        for (int i=0;i<members.size();i++)
+        {
+            String memberName = members.get(i).getName();
+            String typeName = members.get(i).getTypeName();
+            src.append(i > 0 ? " &&\n" + codeIndent + CODE_INDENT : "");
+            if (typeName.equals("double") || typeName.equals("float"))
+            {
+                src.append(typeName.equals("double") ? "Double" : "Float").append(".compare(").append(memberName).append(", other.").append(memberName).append(") == 0");
+            }
+            else if (isPrimitive(typeName))
+            {
+                src.append(memberName).append(" == other.").append(memberName);
+            }
+            else
+            {
+                src.append(src.type("java.util.Objects")).append(".equals(").append(memberName).append(", other.").append(memberName).append(")");
+            }
+        }
+        src.append(";\n");
+        src.append(innerIndent).append("}\n");
+
+        // public int hashCode()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public int hashCode()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("int hash = 1;\n");
+        for (Member member : members)
+        {
+            String typeName = member.getTypeName();
+            String hashClassName = (isPrimitive(typeName) ? src.type(getBoxedTypeName(typeName)) : src.type("java.util.Objects"));
+            src.append(codeIndent).append("hash = 31 * hash + ").append(hashClassName).append(".hashCode(").append(member.getName()).append(");\n");
+        }
+        src.append(codeIndent).append("return hash;\n");
+        src.append(innerIndent).append("}\n");
+
+        // public String toString()
+        src.append("\n");
+        src.append(innerIndent).append("@Override\n");
+        src.append(innerIndent).append("public ").append(src.type(String.class.getName())).append(" toString()\n");
+        src.append(innerIndent).append("{\n");
+        src.append(codeIndent).append("return \"").append(name).append("[");
+        for (int i=0;i<members.size();i++)
+        {
+            src.append(i > 0 ? ", " : "").append(members.get(i).getName()).append("=\" + ").append(members.get(i).getName()).append(" + \"");
+        }
+        src.append("]\";\n");
+        src.append(innerIndent).append("}\n");
+
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to return the code converting a (boxed) value of a query result to the type of a member.
+     * A null value of a primitive member (e.g from an outer join, or an aggregate over no rows) gives the default of the primitive.
+     * @param src The source emitter
+     * @param typeName Type of the member
+     * @param value The value
+     * @return The code
+     */
+    private static String getResultValue(JavaSourceEmitter src, String typeName, String value)
+    {
+        switch (typeName)
+        {
+            case "boolean":
+                return "(" + value + " != null && (" + src.type(Boolean.class.getName()) + ") " + value + ")";
+            case "char":
+                return "(" + value + " != null ? (" + src.type(Character.class.getName()) + ") " + value + " : '\\0')";
+            case "byte":
+            case "short":
+            case "int":
+            case "long":
+            case "float":
+            case "double":
+                // Datastores can return a different numeric type than that of the member
+                return "(" + value + " != null ? ((" + src.type(Number.class.getName()) + ") " + value + ")." + typeName + "Value() : 0)";
+            default:
+                return "(" + src.type(typeName) + ") " + value;
+        }
+    }
+
+    private static String getBoxedTypeName(String typeName)
+    {
+        switch (typeName)
+        {
+            case "boolean":
+                return Boolean.class.getName();
+            case "byte":
+                return Byte.class.getName();
+            case "char":
+                return Character.class.getName();
+            case "short":
+                return Short.class.getName();
+            case "int":
+                return Integer.class.getName();
+            case "long":
+                return Long.class.getName();
+            case "float":
+                return Float.class.getName();
+            default:
+                return Double.class.getName();
+        }
+    }
+
+    private static boolean isPrimitive(String typeName)
+    {
+        return typeName.equals("boolean") || typeName.equals("byte") || typeName.equals("char") || typeName.equals("short") ||
+            typeName.equals("int") || typeName.equals("long") || typeName.equals("float") || typeName.equals("double");
+    }
+
+    /**
+     * Method to add the code for static method accessors needed by this QClass.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addStaticMethodAccessors(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        String qclassNameSimple = model.getQClassNameSimple();
+        String className = src.type(model.getClassName());
+        String stringName = src.type(String.class.getName());
+        String exprTypeName = src.type(EXPRESSION_TYPE);
+
+        if (cacheSize > 0)
+        {
+            // Caches of named expressions, declared before any jdoCandidate field since that is added to the cache on class initialisation
+            // private static final ConcurrentMap<String, {QClass}> jdoCandidates = new ConcurrentHashMap<String, {QClass}>();
+            String mapName = src.type("java.util.concurrent.ConcurrentMap<java.lang.String, " + qclassNameSimple + ">");
+            String mapImplName = src.type("java.util.concurrent.ConcurrentHashMap<java.lang.String, " + qclassNameSimple + ">");
+            for (String cacheName : new String[] {"jdoCandidates", "jdoParameters", "jdoVariables"})
+            {
+                src.append(indent).append("private static final ").append(mapName).append(" ").append(cacheName).append(" = new ").append(mapImplName).append("();\n");
+            }
+            src.append("\n");
+        }
+
+        if (candidateField)
+        {
+            // Add static accessor for the candidate of this type
+            src.append(indent).append("public static final ").append(qclassNameSimple).append(" jdoCandidate").append(" = candidate(\"this\");\n");
+            src.append("\n");
+        }
+        else
+        {
+            // Holder of the candidate of this type, so it is only created on first use rather than when this class is initialised
+            // private static final class JdoCandidateHolder
+            // {
+            //     static final {QClass} INSTANCE = candidate("this");
+            // }
+            src.append(indent).append("private static final class ").append(CANDIDATE_HOLDER).append("\n");
+            src.append(indent).append("{\n");
+            src.append(indent).append(CODE_INDENT).append("static final ").append(qclassNameSimple).append(" INSTANCE = candidate(\"this\");\n");
+            src.append(indent).append("}\n");
+            src.append("\n");
+        }
+
+        // Add static method to generate candidate of this type with a particular name
+        addStaticMethodAccessor(src, indent, qclassNameSimple, "candidate", "jdoCandidates", "null, name, " + model.getDepth());
+
+        // Add static method to generate candidate of this type for default name ("this")
+        src.append(indent).append("public static " + qclassNameSimple + " candidate()\n");
+        src.append(indent).append("{\n");
+        src.append(indent).append(CODE_INDENT).append(candidateField ? "return jdoCandidate;\n" : "return " + CANDIDATE_HOLDER + ".INSTANCE;\n");
+        src.append(indent).append("}\n");
+        src.append("\n");
+
+        // Add static method to generate parameter of this type
+        addStaticMethodAccessor(src, indent, qclassNameSimple, "parameter", "jdoParameters", className + ".class, name, " + exprTypeName + ".PARAMETER");
+
+        // Add static method to generate variable of this type
+        addStaticMethodAccessor(src, indent, qclassNameSimple, "variable", "jdoVariables", className + ".class, name, " + exprTypeName + ".VARIABLE");
+
+        if (cacheSize > 0)
+        {
+            // private static {QClass} jdoCache(ConcurrentMap<String, {QClass}> cache, String name, {QClass} expr)
+            // {
+            //     if (name == null || cache.size() >= {cacheSize})
+            //     {
+            //         return expr;
+            //     }
+            //     {QClass} cachedExpr = cache.putIfAbsent(name, expr);
+            //     return (cachedExpr != null ? cachedExpr : expr);
+            // }
+            src.append("\n");
+            src.append(indent).append("private static ").append(qclassNameSimple).append(" jdoCache(")
+                .append(src.type("java.util.concurrent.ConcurrentMap<java.lang.String, " + qclassNameSimple + ">")).append(" cache, ").append(stringName)
+                .append(" name, ").append(qclassNameSimple).append(" expr)\n");
+            src.append(indent).append("{\n");
+            src.append(indent).append(CODE_INDENT).append("if (name == null || cache.size() >= ").append(cacheSize).append(")\n");
+            src.append(indent).append(CODE_INDENT).append("{\n");
+            src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("return expr;\n");
+            src.append(indent).append(CODE_INDENT).append("}\n");
+            src.append(indent).append(CODE_INDENT).append(qclassNameSimple).append(" cachedExpr = cache.putIfAbsent(name, expr);\n");
+            src.append(indent).append(CODE_INDENT).append("return (cachedExpr != null ? cachedExpr : expr);\n");
+            src.append(indent).append("}\n");
+        }
+    }
+
+    /**
+     * Method to add the code for a static method creating a named expression of this QClass, returning any cached
+     * expression of that name. The cache is bounded by only adding to it until it is full, so the (few) names reused
+     * by an application are cached and any names generated on the fly are not.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param qclassNameSimple Simple name of the QClass
+     * @param methodName Name of the method
+     * @param cacheName Name of the cache of the expressions
+     * @param args Arguments of the constructor
+     */
+    private void addStaticMethodAccessor(JavaSourceEmitter src, String indent, String qclassNameSimple, String methodName, String cacheName, String args)
+    {
+        src.append(indent).append("public static " + qclassNameSimple + " " + methodName + "(" + src.type(String.class.getName()) + " name)\n");
+        src.append(indent).append("{\n");
+        if (cacheSize > 0)
+        {
+            // {QClass} expr = (name != null ? {cache}.get(name) : null);
+            // return (expr != null ? expr : jdoCache({cache}, name, new {QClass}({args})));
+            src.append(indent).append(CODE_INDENT).append(qclassNameSimple).append(" expr = (name != null ? ").append(cacheName).append(".get(name) : null);\n");
+            src.append(indent).append(CODE_INDENT).append("return (expr != null ? expr : jdoCache(").append(cacheName).append(", name, new ").append(qclassNameSimple)
+                .append("(").append(args).append(")));\n");
+        }
+        else
+        {
+            src.append(indent).append(CODE_INDENT).append("return new ").append(qclassNameSimple).append("(").append(args).append(");\n");
+        }
+        src.append(indent).append("}\n");
+        if (!methodName.equals("variable"))
+        {
+            src.append("\n");
+        }
+    }
+
+    /**
+     * Method to add the code for the field of a member of this QClass.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param member The member
+     */
+    protected void addMemberField(JavaSourceEmitter src, String indent, Member member)
+    {
+        String intfName = src.type(member.getExpressionInterfaceName());
+        if (queryMode == JDOQueryProcessor.MODE_FIELD)
+        {
+            src.append(indent).append("public final ").append(intfName);
+            src.append(" ").append(member.getName()).append(";\n");
+        }
+        else if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+        {
+            if (member.isPersistable())
+            {
+                // Assigned on first access, so needs safe publication when the QClass is shared across threads
+                src.append(indent).append("private volatile ").append(intfName);
+                src.append(" ").append(member.getName()).append(";\n");
+            }
+            else
+            {
+                src.append(indent).append("public final ").append(intfName);
+                src.append(" ").append(member.getName()).append(";\n");
+            }
+        }
+        else
+        {
+            // Assigned on first access, so needs safe publication when the QClass is shared across threads
+            src.append(indent).append("private volatile ").append(intfName);
+            src.append(" ").append(member.getName()).append(";\n");
+        }
+    }
+
+    /**
+     * Method to add the holder recording which cyclic members of the Q class are being expanded by the current thread,
+     * when the class has any (see "queryCycleCutoff"). This is in its own class since an instance of the Q class can be
+     * constructed before the Q class is initialised (by the candidate of a persistable superclass that refers to it).
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     * @return Whether the field was added
+     */
+    protected boolean addCycleCutoffHolder(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        int numCyclic = model.getCyclicMembers().size();
+        if (numCyclic == 0)
+        {
+            return false;
+        }
+
+        // Each construction of a Q class with cyclic members does one ThreadLocal.get(), measured with JMH at about
+        // 2ns (JDK 17), which is small against the construction of the members themselves
+        // private static final class JdoExpandingHolder
+        // {
+        //     static final ThreadLocal<boolean[]> EXPANDING = new ThreadLocal<boolean[]>()
+        //     {
+        //         protected boolean[] initialValue()
+        //         {
+        //             return new boolean[{numCyclic}];
+        //         }
+        //     };
+        // }
+        String threadLocal = src.type(ThreadLocal.class.getName());
+        String holderIndent = indent + CODE_INDENT;
+        src.append(indent).append("private static final class ").append(EXPANDING_HOLDER).append("\n");
+        src.append(indent).append("{\n");
+        src.append(holderIndent).append("static final ").append(threadLocal).append("<boolean[]> EXPANDING = new ").append(threadLocal).append("<boolean[]>()\n");
+        src.append(holderIndent).append("{\n");
+        src.append(holderIndent).append(CODE_INDENT).append("@Override\n");
+        src.append(holderIndent).append(CODE_INDENT).append("protected boolean[] initialValue()\n");
+        src.append(holderIndent).append(CODE_INDENT).append("{\n");
+        src.append(holderIndent).append(CODE_INDENT).append(CODE_INDENT).append("return new boolean[" + numCyclic + "];\n");
+        src.append(holderIndent).append(CODE_INDENT).append("}\n");
+        src.append(holderIndent).append("};\n");
+        src.append(indent).append("}\n");
+        return true;
+    }
+
+    /**
+     * Method to add the code for a constructor taking in (PersistableExpression parent, String name, int depth).
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addConstructorWithPersistableExpression(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        src.append(indent).append("public " + model.getQClassNameSimple()).append("(").append(src.type(PersistableExpression.class.getName()))
+            .append(" parent, ").append(src.type(String.class.getName())).append(" name, int depth)\n");
+        src.append(indent).append("{\n");
+        if (model.getSuperQClassName() != null)
+        {
+            src.append(indent).append(CODE_INDENT).append("super(parent, name, depth);\n");
+        }
+        else
+        {
+            src.append(indent).append(CODE_INDENT).append("super(parent, name);\n");
+        }
+        if (queryMode == JDOQueryProcessor.MODE_FIELD || queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+        {
+            if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD && model.hasPersistableMembers())
+            {
+                // Persistable members are created on first access, to (depth-1)
+                src.append(indent).append(CODE_INDENT).append("this.jdoRelationDepth = depth-1;\n");
+            }
+
+            List<Member> cyclicMembers = model.getCyclicMembers();
+            if (!cyclicMembers.isEmpty())
+            {
+                // boolean[] expanding = JdoExpandingHolder.EXPANDING.get();
+                src.append(indent).append(CODE_INDENT).append("boolean[] expanding = " + EXPANDING_HOLDER + ".EXPANDING.get();\n");
+            }
+
+            // Initialise all fields
+            for (Member member : model.getMembers())
+            {
+                String memberName = member.getName();
+                String implClassName = src.type(member.getExpressionImplClassName());
+                if (member.isPersistable())
+                {
+                    if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+                    {
+                        // Instantiated on first access
+                        continue;
+                    }
+
+                    int maxDepth = member.getMaxDepth();
+                    if (maxDepth == 0)
+                    {
+                        // this.{field} = null;
+                        src.append(indent).append(CODE_INDENT).append("this.").append(memberName).append(" = null;\n");
+                        continue;
+                    }
+
+                    // if (depth > 0)
+                    // {
+                    //     this.{field} = new {ImplType}(this, memberName, depth-1);
+                    // }
+                    // else
+                    // {
+                    //     this.{field} = null;
+                    // }
+                    // (a cyclic member is also not expanded when already being expanded further up the path)
+                    String memberDepth = (maxDepth > 0 ? src.type(Math.class.getName()) + ".min(depth-1, " + (maxDepth-1) + ")" : "depth-1");
+                    int cyclicIndex = cyclicMembers.indexOf(member);
+                    src.append(indent).append(CODE_INDENT).append("if (depth > 0" + (cyclicIndex >= 0 ? " && !expanding[" + cyclicIndex + "]" : "") + ")\n");
+                    src.append(indent).append(CODE_INDENT).append("{\n");
+                    addMemberConstruction(src, indent + CODE_INDENT, member, implClassName, memberDepth, cyclicIndex);
+                    src.append(indent).append(CODE_INDENT).append("}\n");
+                    src.append(indent).append(CODE_INDENT).append("else\n");
+                    src.append(indent).append(CODE_INDENT).append("{\n");
+                    src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = null;\n");
+                    src.append(indent).append(CODE_INDENT).append("}\n");
+                }
+                else
+                {
+                    // this.{field} = new {ImplType}(this, memberName);
+                    src.append(indent).append(CODE_INDENT).append("this.").append(memberName);
+                    src.append(" = new ").append(implClassName).append("(this, \"" + memberName + "\");\n");
+                }
+            }
+        }
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code constructing the expression for a persistable member (FIELD mode). When the member is cyclic
+     * it is marked as being expanded by this thread while constructing it, so is not expanded again further down the path.
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param member The member
+     * @param implClassName Name of the expression implementation to construct (as referenced in the source)
+     * @param memberDepth Code for the depth passed to the constructor
+     * @param cyclicIndex Index of the member in the cyclic members of the class, or -1 if not cyclic
+     */
+    private void addMemberConstruction(JavaSourceEmitter src, String indent, Member member, String implClassName, String memberDepth, int cyclicIndex)
+    {
+        String construct = "this." + member.getName() + " = new " + implClassName + "(this, \"" + member.getName() + "\", " + memberDepth + ");\n";
+        if (cyclicIndex < 0)
+        {
+            src.append(indent).append(CODE_INDENT).append(construct);
+            return;
+        }
+
+        // expanding[{index}] = true;
+        // try
+        // {
+        //     this.{field} = new {ImplType}(this, memberName, depth);
+        // }
+        // finally
+        // {
+        //     expanding[{index}] = false;
+        // }
+        src.append(indent).append(CODE_INDENT).append("expanding[" + cyclicIndex + "] = true;\n");
+        src.append(indent).append(CODE_INDENT).append("try\n");
+        src.append(indent).append(CODE_INDENT).append("{\n");
+        src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append(construct);
+        src.append(indent).append(CODE_INDENT).append("}\n");
+        src.append(indent).append(CODE_INDENT).append("finally\n");
+        src.append(indent).append(CODE_INDENT).append("{\n");
+        src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("expanding[" + cyclicIndex + "] = false;\n");
+        src.append(indent).append(CODE_INDENT).append("}\n");
+    }
+
+    /**
+     * Method to add the code for a constructor taking in (Class type, String name, ExpressionType exprType).
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param model Model of the Q class
+     */
+    protected void addConstructorWithType(JavaSourceEmitter src, String indent, QueryClassModel model)
+    {
+        int depth = model.getDepth();
+        src.append(indent).append("public " + model.getQClassNameSimple()).append("(").append(src.type(Class.class.getName())).append(" type, ")
+            .append(src.type(String.class.getName())).append(" name, ").append(src.type(EXPRESSION_TYPE)).append(" exprType)\n");
+        src.append(indent).append("{\n");
+        src.append(indent).append(CODE_INDENT).append("super(type, name, exprType);\n");
+        if (queryMode == JDOQueryProcessor.MODE_FIELD || queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+        {
+            if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD && model.hasPersistableMembers())
+            {
+                // Persistable members are created on first access, to the depth of this class
+                src.append(indent).append(CODE_INDENT).append("this.jdoRelationDepth = " + depth + ";\n");
+            }
+
+            List<Member> cyclicMembers = model.getCyclicMembers();
+            if (!cyclicMembers.isEmpty())
+            {
+                // boolean[] expanding = JdoExpandingHolder.EXPANDING.get();
+                src.append(indent).append(CODE_INDENT).append("boolean[] expanding = " + EXPANDING_HOLDER + ".EXPANDING.get();\n");
+            }
+
+            // Initialise all fields
+            for (Member member : model.getMembers())
+            {
+                String memberName = member.getName();
+                String implClassName = src.type(member.getExpressionImplClassName());
+                if (member.isPersistable())
+                {
+                    if (queryMode == JDOQueryProcessor.MODE_LAZY_FIELD)
+                    {
+                        // Instantiated on first access
+                        continue;
+                    }
+
+                    int maxDepth = member.getMaxDepth();
+                    if (maxDepth == 0)
+                    {
+                        // this.{field} = null;
+                        src.append(indent).append(CODE_INDENT).append("this.").append(memberName).append(" = null;\n");
+                    }
+                    else
+                    {
+                        // this.{field} = new {ImplType}(this, memberName, depth);
+                        String memberDepth = "" + (maxDepth > 0 ? Math.min(depth, maxDepth-1) : depth);
+                        int cyclicIndex = cyclicMembers.indexOf(member);
+                        if (cyclicIndex >= 0)
+                        {
+                            // Marked as being expanded so the members of the candidate don't expand it again
+                            src.append(indent).append(CODE_INDENT).append("if (!expanding[" + cyclicIndex + "])\n");
+                            src.append(indent).append(CODE_INDENT).append("{\n");
+                            addMemberConstruction(src, indent + CODE_INDENT, member, implClassName, memberDepth, cyclicIndex);
+                            src.append(indent).append(CODE_INDENT).append("}\n");
+                            src.append(indent).append(CODE_INDENT).append("else\n");
+                            src.append(indent).append(CODE_INDENT).append("{\n");
+                            src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = null;\n");
+                            src.append(indent).append(CODE_INDENT).append("}\n");
+                        }
+                        else
+                        {
+                            addMemberConstruction(src, indent, member, implClassName, memberDepth, -1);
+                        }
+                    }
+                }
+                else
+                {
+                    // this.{field} = new {ImplType}(this, memberName);
+                    src.append(indent).append(CODE_INDENT).append("this.").append(memberName).append(" = new ").append(implClassName)
+                        .append("(this, \"" + memberName + "\");\n");
+                }
+            }
+        }
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for an accessor that instantiates a member on first access (PROPERTY mode).
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param member The member
+     * @param depth Depth to which a persistable member is expanded
+     */
+    protected void addPropertyAccessorMethod(JavaSourceEmitter src, String indent, Member member, int depth)
+    {
+        // public {type} {memberName}()
+        // {
+        //     {type} expr = this.memberVar;
+        //     if (expr == null)
+        //     {
+        //         expr = new {implClassName}(this, \"memberName\");
+        //         this.memberVar = expr;
+        //     }
+        //     return expr;
+        // }
+        String memberName = member.getName();
+        String implClassName = src.type(member.getExpressionImplClassName());
+        String intfName = src.type(member.getExpressionInterfaceName());
+        int maxDepth = member.getMaxDepth();
+
+        src.append(indent).append("public ").append(intfName).append(" ").append(memberName).append("()\n");
+        src.append(indent).append("{\n");
+        if (member.isPersistable() && maxDepth == 0)
+        {
+            // Never expanded
+            src.append(indent).append(CODE_INDENT).append("return null;\n");
+            src.append(indent).append("}\n");
+            return;
+        }
+        src.append(indent).append(CODE_INDENT).append(intfName).append(" expr = this.").append(memberName).append(";\n");
+        src.append(indent).append(CODE_INDENT).append("if (expr == null)\n");
+        src.append(indent).append(CODE_INDENT).append("{\n");
+        if (member.isPersistable())
+        {
+            // Nothing is instantiated until accessed so only a depth override of the member restricts the depth
+            int memberDepth = (maxDepth > 0 ? Math.min(depth, maxDepth-1) : depth);
+            src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("expr = new ").append(implClassName)
+                .append("(this, \"" + memberName + "\", " + memberDepth + ");\n");
+        }
+        else
+        {
+            src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("expr = new ").append(implClassName).append("(this, \"" + memberName + "\");\n");
+        }
+        src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = expr;\n");
+        src.append(indent).append(CODE_INDENT).append("}\n");
+        src.append(indent).append(CODE_INDENT).append("return expr;\n");
+        src.append(indent).append("}\n");
+    }
+
+    /**
+     * Method to add the code for an accessor that instantiates a persistable member on first access (LAZY_FIELD mode).
+     * @param src The source emitter
+     * @param indent Indent to apply to the code
+     * @param member The member
+     */
+    protected void addLazyAccessorMethod(JavaSourceEmitter src, String indent, Member member)
+    {
+        // public {type} {memberName}()
+        // {
+        //     {type} expr = this.memberVar;
+        //     if (expr == null && jdoRelationDepth >= 0)
+        //     {
+        //         expr = new {implClassName}(this, \"memberName\", jdoRelationDepth);
+        //         this.memberVar = expr;
+        //     }
+        //     return expr;
+        // }
+        String memberName = member.getName();
+        String implClassName = src.type(member.getExpressionImplClassName());
+        String intfName = src.type(member.getExpressionInterfaceName());
+        int maxDepth = member.getMaxDepth();
+
+        src.append(indent).append("public ").append(intfName).append(" ").append(memberName).append("()\n");
+        src.append(indent).append("{\n");
+        if (maxDepth == 0)
+        {
+            // Never expanded
+            src.append(indent).append(CODE_INDENT).append("return null;\n");
+            src.append(indent).append("}\n");
+            return;
+        }
+        String memberDepth = (maxDepth > 0 ? src.type(Math.class.getName()) + ".min(jdoRelationDepth, " + (maxDepth-1) + ")" : "jdoRelationDepth");
+        src.append(indent).append(CODE_INDENT).append(intfName).append(" expr = this.").append(memberName).append(";\n");
+        src.append(indent).append(CODE_INDENT).append("if (expr == null && jdoRelationDepth >= 0)\n");
+        src.append(indent).append(CODE_INDENT).append("{\n");
+        src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("expr = new ").append(implClassName).append("(this, \"" + memberName + "\", " + memberDepth + ");\n");
+        src.append(indent).append(CODE_INDENT).append(CODE_INDENT).append("this.").append(memberName).append(" = expr;\n");
+        src.append(indent).append(CODE_INDENT).append("}\n");
+        src.append(indent).append(CODE_INDENT).append("return expr;\n");
+        src.append(indent).append("}\n");
+    }
+}
@@ -0,0 +1,675 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.Indices;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Unique;
+import javax.jdo.annotations.Uniques;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.CatchTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.ForLoopTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.LambdaExpressionTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.ParameterizedTypeTree;
+import com.sun.source.tree.ParenthesizedTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TryTree;
+import com.sun.source.tree.TypeCastTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+/**
+ * Analysis of the source of a compilation for uses of the members of Q classes in the filter and ordering of JDOQLTypedQuery
+ * queries (e.g "q.filter(cand.status.eq(s))", "q.orderBy(cand.created.desc())"), reporting any member that has no index in the
+ * datastore, so would mean a scan of the table of its class. A member has an index when it is (or is the first member of)
+ * a primary key, index or unique constraint specified by annotation on the persistable class or its persistent supertypes.
+ *
+ * <p>
+ * Sources are only parsed, not attributed, when annotation processing runs, so Q class expressions are found syntactically.
+ * The root of an expression is a variable declared (in an enclosing scope) with a Q class as its type, or "QA.candidate(...)",
+ * "QA.variable(...)" or "QA.jdoCandidate". Members of parameters (e.g "QA.parameter("p")") are values rather than columns so
+ * are ignored, as are relations and collections (whose foreign keys and join tables DataNucleus indexes).
+ * Uses this can't resolve are ignored rather than guessed at.
+ */
+public class QueryIndexAnalysis
+{
+    /** Names of the JDOQLTypedQuery methods whose arguments are checked, with a description of each for messages. */
+    private final static Map<String, String> CLAUSE_BY_METHOD_NAME = new HashMap<String, String>();
+    static
+    {
+        CLAUSE_BY_METHOD_NAME.put("filter", "filter");
+        CLAUSE_BY_METHOD_NAME.put("orderBy", "ordering");
+    }
+
+    /**
+     * Record of the use of a member with no index in a query.
+     */
+    public static class UnindexedUse
+    {
+        private final String className;
+        private final String memberName;
+        private final String clause;
+        private final String sourceName;
+        private final long lineNumber;
+
+        UnindexedUse(String className, String memberName, String clause, String sourceName, long lineNumber)
+        {
+            this.className = className;
+            this.memberName = memberName;
+            this.clause = clause;
+            this.sourceName = sourceName;
+            this.lineNumber = lineNumber;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getMemberName()
+        {
+            return memberName;
+        }
+
+        public String getClause()
+        {
+            return clause;
+        }
+
+        public String getSourceName()
+        {
+            return sourceName;
+        }
+
+        public long getLineNumber()
+        {
+            return lineNumber;
+        }
+    }
+
+    /**
+     * Representation of a persistent member, as far as the analysis needs it.
+     */
+    private static class MemberInfo
+    {
+        final String declaringClassName;
+        final boolean indexed;
+        final boolean basic;
+        final TypeElement relatedType;
+
+        MemberInfo(String declaringClassName, boolean indexed, boolean basic, TypeElement relatedType)
+        {
+            this.declaringClassName = declaringClassName;
+            this.indexed = indexed;
+            this.basic = basic;
+            this.relatedType = relatedType;
+        }
+    }
+
+    /**
+     * Result of resolving a Q class expression, so the persistable class it represents (if any) and for a member, the member.
+     */
+    private static class QueryPath
+    {
+        final TypeElement type;
+        final String memberName;
+        final MemberInfo member;
+
+        QueryPath(TypeElement type, String memberName, MemberInfo member)
+        {
+            this.type = type;
+            this.memberName = memberName;
+            this.member = member;
+        }
+    }
+
+    private final ProcessingEnvironment processingEnv;
+    private final JDOQueryProcessor processor;
+    private final Trees trees;
+    private final Kind kind;
+
+    /** Persistent members of each persistable class (including those of its persistent supertypes), keyed by class name. */
+    private final Map<String, Map<String, MemberInfo>> membersByClassName = new HashMap<String, Map<String, MemberInfo>>();
+
+    /** Compilation units already analysed. */
+    private final Set<String> analysedSourceNames = new HashSet<String>();
+
+    private final List<UnindexedUse> unindexedUses = new ArrayList<UnindexedUse>();
+
+    /**
+     * Constructor for an analysis.
+     * @param processingEnv The processing environment (of javac)
+     * @param processor The processor, for the persistence of classes and members
+     * @param kind Kind of diagnostic to output for each use of a member with no index (or null to only record them)
+     * @throws IllegalArgumentException Thrown if the compiler doesn't support the Trees API
+     */
+    public QueryIndexAnalysis(ProcessingEnvironment processingEnv, JDOQueryProcessor processor, Kind kind)
+    {
+        this.processingEnv = processingEnv;
+        this.processor = processor;
+        this.trees = Trees.instance(processingEnv);
+        this.kind = kind;
+    }
+
+    /**
+     * Method to analyse the source of the specified (root) classes of a round. Each compilation unit is only analysed once.
+     * @param elements The classes
+     */
+    public void analyse(Set<? extends Element> elements)
+    {
+        // Elements of persistable classes can change between rounds
+        membersByClassName.clear();
+        for (Element el : elements)
+        {
+            TreePath path = trees.getPath(el);
+            if (path == null)
+            {
+                continue;
+            }
+            CompilationUnitTree compilationUnit = path.getCompilationUnit();
+            if (analysedSourceNames.add(compilationUnit.getSourceFile().toUri().toString()))
+            {
+                new QueryScanner(compilationUnit).scan(compilationUnit, null);
+            }
+        }
+    }
+
+    /**
+     * Accessor for the uses of members with no index found so far, in the order found.
+     * @return The uses
+     */
+    public List<UnindexedUse> getUnindexedUses()
+    {
+        return Collections.unmodifiableList(unindexedUses);
+    }
+
+    /**
+     * Scanner of a compilation unit for the arguments of the filter and ordering methods, resolving the Q class expressions in them.
+     */
+    private class QueryScanner extends TreePathScanner<Void, Void>
+    {
+        private final CompilationUnitTree compilationUnit;
+
+        /** Persistable class of each Q class name used in the compilation unit (null if not a Q class). */
+        private final Map<String, TypeElement> typeByQueryClassName = new HashMap<String, TypeElement>();
+
+        /** Expressions already reported, so those in nested clauses are only reported once. */
+        private final Set<Tree> reported = new HashSet<Tree>();
+
+        private String clause = null;
+
+        QueryScanner(CompilationUnitTree compilationUnit)
+        {
+            this.compilationUnit = compilationUnit;
+        }
+
+        @Override
+        public Void visitMethodInvocation(MethodInvocationTree node, Void p)
+        {
+            checkMember(node);
+
+            String methodClause = null;
+            if (node.getMethodSelect() instanceof MemberSelectTree)
+            {
+                methodClause = CLAUSE_BY_METHOD_NAME.get(((MemberSelectTree) node.getMethodSelect()).getIdentifier().toString());
+            }
+            if (methodClause == null)
+            {
+                return super.visitMethodInvocation(node, p);
+            }
+
+            scan(node.getTypeArguments(), p);
+            scan(node.getMethodSelect(), p);
+            String outerClause = clause;
+            clause = methodClause;
+            scan(node.getArguments(), p);
+            clause = outerClause;
+            return null;
+        }
+
+        @Override
+        public Void visitMemberSelect(MemberSelectTree node, Void p)
+        {
+            checkMember(node);
+            return super.visitMemberSelect(node, p);
+        }
+
+        /**
+         * Method to report the expression at the current path if it is a member (with no index) of a Q class expression
+         * in the arguments of a filter or ordering.
+         * @param node The expression
+         */
+        private void checkMember(ExpressionTree node)
+        {
+            if (clause == null)
+            {
+                return;
+            }
+            QueryPath queryPath = resolve(node, getCurrentPath());
+            if (queryPath == null || queryPath.member == null || !queryPath.member.basic || queryPath.member.indexed || !reported.add(node))
+            {
+                return;
+            }
+
+            String className = queryPath.member.declaringClassName;
+            long lineNumber = compilationUnit.getLineMap().getLineNumber(trees.getSourcePositions().getStartPosition(compilationUnit, node));
+            unindexedUses.add(new UnindexedUse(className, queryPath.memberName, clause, compilationUnit.getSourceFile().getName(), lineNumber));
+            if (kind != null)
+            {
+                trees.printMessage(kind, "DataNucleus : query " + clause + " uses " + className + "." + queryPath.memberName + " which has no index, " +
+                    "so the datastore may scan the table. Add @Index (or @Unique) to the member", node, compilationUnit);
+            }
+        }
+
+        /**
+         * Method to resolve a Q class expression.
+         * @param expr The expression
+         * @param scope Path of the expression, for the scope of any variables
+         * @return The persistable class and member it represents, or null if not a (resolvable) Q class expression
+         */
+        private QueryPath resolve(ExpressionTree expr, TreePath scope)
+        {
+            if (expr instanceof ParenthesizedTree)
+            {
+                return resolve(((ParenthesizedTree) expr).getExpression(), scope);
+            }
+            else if (expr instanceof TypeCastTree)
+            {
+                return resolve(((TypeCastTree) expr).getExpression(), scope);
+            }
+            else if (expr instanceof IdentifierTree)
+            {
+                VariableTree varTree = findVariable(((IdentifierTree) expr).getName().toString(), scope);
+                if (varTree == null)
+                {
+                    return null;
+                }
+                Tree typeTree = varTree.getType();
+                if (typeTree instanceof ParameterizedTypeTree)
+                {
+                    typeTree = ((ParameterizedTypeTree) typeTree).getType();
+                }
+                ExpressionTree initializer = varTree.getInitializer();
+                if (initializer instanceof MethodInvocationTree && getMethodName((MethodInvocationTree) initializer).equals("parameter"))
+                {
+                    // Parameters are values rather than columns
+                    return null;
+                }
+                if (typeTree == null || typeTree.toString().equals("var"))
+                {
+                    // Implicitly typed, so only where initialised from a Q class expression
+                    return (initializer != null ? resolve(initializer, scope) : null);
+                }
+                TypeElement type = getTypeForQueryClassName(typeTree.toString());
+                return (type != null ? new QueryPath(type, null, null) : null);
+            }
+            else if (expr instanceof MemberSelectTree)
+            {
+                MemberSelectTree selectTree = (MemberSelectTree) expr;
+                String name = selectTree.getIdentifier().toString();
+                if (name.equals("jdoCandidate"))
+                {
+                    TypeElement type = getTypeForQueryClassName(selectTree.getExpression().toString());
+                    return (type != null ? new QueryPath(type, null, null) : null);
+                }
+                return resolveMember(resolve(selectTree.getExpression(), scope), name);
+            }
+            else if (expr instanceof MethodInvocationTree)
+            {
+                MethodInvocationTree invokeTree = (MethodInvocationTree) expr;
+                if (!(invokeTree.getMethodSelect() instanceof MemberSelectTree))
+                {
+                    return null;
+                }
+                MemberSelectTree selectTree = (MemberSelectTree) invokeTree.getMethodSelect();
+                String name = selectTree.getIdentifier().toString();
+                if (name.equals("candidate") || name.equals("variable"))
+                {
+                    TypeElement type = getTypeForQueryClassName(selectTree.getExpression().toString());
+                    return (type != null ? new QueryPath(type, null, null) : null);
+                }
+                else if (invokeTree.getArguments().isEmpty())
+                {
+                    // Accessor of a member (PROPERTY or LAZY_FIELD mode)
+                    return resolveMember(resolve(selectTree.getExpression(), scope), name);
+                }
+            }
+            return null;
+        }
+
+        private QueryPath resolveMember(QueryPath ownerPath, String memberName)
+        {
+            if (ownerPath == null || ownerPath.type == null)
+            {
+                return null;
+            }
+            MemberInfo member = getMembers(ownerPath.type).get(memberName);
+            return (member != null ? new QueryPath(member.relatedType, memberName, member) : null);
+        }
+
+        /**
+         * Method to find the declaration of a variable visible at the specified path (ignoring where in the scope it is declared).
+         * @param name Name of the variable
+         * @param scope Path of the use of the variable
+         * @return The declaration, or null if not found (e.g inherited, or not a variable)
+         */
+        private VariableTree findVariable(String name, TreePath scope)
+        {
+            for (TreePath path = scope; path != null; path = path.getParentPath())
+            {
+                Tree tree = path.getLeaf();
+                List<Tree> declarations = new ArrayList<Tree>();
+                if (tree instanceof BlockTree)
+                {
+                    declarations.addAll(((BlockTree) tree).getStatements());
+                }
+                else if (tree instanceof MethodTree)
+                {
+                    declarations.addAll(((MethodTree) tree).getParameters());
+                }
+                else if (tree instanceof LambdaExpressionTree)
+                {
+                    declarations.addAll(((LambdaExpressionTree) tree).getParameters());
+                }
+                else if (tree instanceof ClassTree)
+                {
+                    declarations.addAll(((ClassTree) tree).getMembers());
+                }
+                else if (tree instanceof ForLoopTree)
+                {
+                    declarations.addAll(((ForLoopTree) tree).getInitializer());
+                }
+                else if (tree instanceof EnhancedForLoopTree)
+                {
+                    declarations.add(((EnhancedForLoopTree) tree).getVariable());
+                }
+                else if (tree instanceof TryTree)
+                {
+                    declarations.addAll(((TryTree) tree).getResources());
+                }
+                else if (tree instanceof CatchTree)
+                {
+                    declarations.add(((CatchTree) tree).getParameter());
+                }
+                for (Tree declaration : declarations)
+                {
+                    if (declaration instanceof VariableTree && ((VariableTree) declaration).getName().contentEquals(name))
+                    {
+                        return (VariableTree) declaration;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Method to return the persistable class of a Q class named in this compilation unit, resolving the name against
+         * the imports and package of the compilation unit. Q classes are in the package of their persistable class, named
+         * "Q{simpleName}" (with those of nested classes nested in the same way).
+         * @param name Name of the Q class as written (e.g "QA", "QA.QB", "mydomain.QA")
+         * @return The persistable class, or null if not a Q class
+         */
+        private TypeElement getTypeForQueryClassName(String name)
+        {
+            if (typeByQueryClassName.containsKey(name))
+            {
+                return typeByQueryClassName.get(name);
+            }
+
+            String firstName = name.indexOf('.') > 0 ? name.substring(0, name.indexOf('.')) : name;
+            String packageName = (compilationUnit.getPackageName() != null ? compilationUnit.getPackageName().toString() : null);
+            Set<String> qualifiedNames = new LinkedHashSet<String>();
+            List<String> onDemandNames = new ArrayList<String>();
+            for (ImportTree importTree : compilationUnit.getImports())
+            {
+                String importName = importTree.getQualifiedIdentifier().toString();
+                if (importTree.isStatic())
+                {
+                    continue;
+                }
+                else if (importName.endsWith(".*"))
+                {
+                    onDemandNames.add(importName.substring(0, importName.length() - 1) + name);
+                }
+                else if (importName.endsWith("." + firstName))
+                {
+                    qualifiedNames.add(importName.substring(0, importName.length() - firstName.length()) + name);
+                }
+            }
+            qualifiedNames.add(packageName != null ? packageName + "." + name : name);
+            qualifiedNames.addAll(onDemandNames);
+            qualifiedNames.add(name);
+
+            TypeElement type = null;
+            for (String qualifiedName : qualifiedNames)
+            {
+                String className = getClassNameForQueryClassName(qualifiedName);
+                if (className != null)
+                {
+                    TypeElement el = processingEnv.getElementUtils().getTypeElement(className);
+                    if (el != null && processor.isPersistableType(el))
+                    {
+                        type = el;
+                        break;
+                    }
+                }
+            }
+            typeByQueryClassName.put(name, type);
+            return type;
+        }
+    }
+
+    /**
+     * Method to return the name of the persistable class of a Q class, so with the "Q" prefix removed from the name of each class.
+     * @param qclassName Qualified name of the Q class
+     * @return Name of the persistable class, or null if not the name of a Q class
+     */
+    private static String getClassNameForQueryClassName(String qclassName)
+    {
+        StringBuilder str = new StringBuilder();
+        boolean queryClass = false;
+        for (String name : qclassName.split("\\."))
+        {
+            if (str.length() > 0)
+            {
+                str.append('.');
+            }
+            if (name.length() > 1 && name.startsWith(JDOQueryProcessor.getQueryClassNameForClassName("")) && Character.isUpperCase(name.charAt(1)))
+            {
+                str.append(name.substring(1));
+                queryClass = true;
+            }
+            else if (queryClass)
+            {
+                // Class nested in a Q class, so not a Q class
+                return null;
+            }
+            else
+            {
+                str.append(name);
+            }
+        }
+        return queryClass ? str.toString() : null;
+    }
+
+    private static String getMethodName(MethodInvocationTree invokeTree)
+    {
+        ExpressionTree select = invokeTree.getMethodSelect();
+        if (select instanceof MemberSelectTree)
+        {
+            return ((MemberSelectTree) select).getIdentifier().toString();
+        }
+        return (select instanceof IdentifierTree ? ((IdentifierTree) select).getName().toString() : "");
+    }
+
+    /**
+     * Method to return the persistent members of a persistable class, including those of its persistent supertypes,
+     * with whether each has an index.
+     * @param el The persistable class
+     * @return The members, keyed by name
+     */
+    private Map<String, MemberInfo> getMembers(TypeElement el)
+    {
+        String className = el.getQualifiedName().toString();
+        Map<String, MemberInfo> members = membersByClassName.get(className);
+        if (members != null)
+        {
+            return members;
+        }
+
+        members = new HashMap<String, MemberInfo>();
+        Set<String> indexedNames = new HashSet<String>();
+        for (TypeElement typeEl = el; typeEl != null; typeEl = processor.getPersistentSupertype(typeEl))
+        {
+            // Indexes, unique constraints specified on the class (only usable for their first member)
+            for (AnnotationMirror ann : typeEl.getAnnotationMirrors())
+            {
+                String annName = ann.getAnnotationType().toString();
+                if (annName.equals(Index.class.getName()) || annName.equals(Unique.class.getName()))
+                {
+                    addFirstMemberName(ann, indexedNames);
+                }
+                else if (annName.equals(Indices.class.getName()) || annName.equals(Uniques.class.getName()))
+                {
+                    for (Object value : getListValue(ann, "value"))
+                    {
+                        if (value instanceof AnnotationMirror)
+                        {
+                            addFirstMemberName((AnnotationMirror) value, indexedNames);
+                        }
+                    }
+                }
+            }
+
+            List<? extends Element> typeMembers = processor.getPersistentMembers(typeEl);
+            if (typeMembers == null)
+            {
+                continue;
+            }
+            for (Element member : typeMembers)
+            {
+                String memberName = AnnotationProcessorUtils.getMemberName(member);
+                if (memberName == null || members.containsKey(memberName))
+                {
+                    // Overridden in a subclass
+                    continue;
+                }
+                boolean indexed = member.getAnnotation(Index.class) != null || member.getAnnotation(Unique.class) != null ||
+                    member.getAnnotation(PrimaryKey.class) != null ||
+                    "true".equals(AnnotationProcessorUtils.getValueForAnnotationAttribute(member, Persistent.class, "primaryKey"));
+
+                TypeMirror type = AnnotationProcessorUtils.getDeclaredType(member);
+                TypeElement relatedType = null;
+                boolean basic = true;
+                if (type.getKind() == TypeKind.ARRAY)
+                {
+                    basic = false;
+                }
+                else if (type.getKind() == TypeKind.DECLARED)
+                {
+                    TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+                    if (processor.isPersistableType(typeElement))
+                    {
+                        relatedType = typeElement;
+                        basic = false;
+                    }
+                    else if (AnnotationProcessorUtils.getTypeCategoryForTypeMirror(typeElement.getQualifiedName().toString()) !=
+                        AnnotationProcessorUtils.TypeCategory.ATTRIBUTE)
+                    {
+                        basic = false;
+                    }
+                }
+                members.put(memberName, new MemberInfo(typeEl.getQualifiedName().toString(), indexed, basic, relatedType));
+            }
+        }
+        for (Map.Entry<String, MemberInfo> entry : members.entrySet())
+        {
+            if (indexedNames.contains(entry.getKey()) && !entry.getValue().indexed)
+            {
+                MemberInfo member = entry.getValue();
+                entry.setValue(new MemberInfo(member.declaringClassName, true, member.basic, member.relatedType));
+            }
+        }
+        membersByClassName.put(className, members);
+        return members;
+    }
+
+    private static void addFirstMemberName(AnnotationMirror ann, Set<String> memberNames)
+    {
+        List<?> members = getListValue(ann, "members");
+        if (!members.isEmpty())
+        {
+            memberNames.add(members.get(0).toString());
+        }
+    }
+
+    private static List<?> getListValue(AnnotationMirror ann, String attribute)
+    {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : ann.getElementValues().entrySet())
+        {
+            if (entry.getKey().getSimpleName().contentEquals(attribute))
+            {
+                Object value = entry.getValue().getValue();
+                if (value instanceof List)
+                {
+                    List<Object> values = new ArrayList<Object>();
+                    for (Object element : (List<?>) value)
+                    {
+                        values.add(element instanceof AnnotationValue ? ((AnnotationValue) element).getValue() : element);
+                    }
+                    return values;
+                }
+                return Collections.singletonList(value);
+            }
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,157 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+
+import org.junit.Test;
+
+/**
+ * Tests for the expansion of cyclic relations in FIELD mode, with "queryCycleCutoff" (the default) and without.
+ */
+public class CycleCutoffTest
+{
+    private static Map<String, String> getModel()
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("cyclic.Customer", "package cyclic;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Customer\n{\n    String name;\n    Address address;\n    Customer referrer;\n}\n");
+        sources.put("cyclic.Address", "package cyclic;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Address\n{\n    String street;\n    Customer resident;\n}\n");
+        sources.put("cyclic.Sub", "package cyclic;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Sub extends Customer\n{\n    Sub parent;\n    Address category;\n}\n");
+        return sources;
+    }
+
+    private static InMemoryCompiler.Result compile(String... options)
+    {
+        InMemoryCompiler compiler = new InMemoryCompiler();
+        for (String option : options)
+        {
+            compiler.option(option);
+        }
+        InMemoryCompiler.Result result = compiler.compile(getModel());
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+        return result;
+    }
+
+    /**
+     * Method to return the expression at the end of a path of (public field) members from an expression.
+     * @param expr The expression
+     * @param path The members, separated by "."
+     * @return The expression, or null if any member along the path is null
+     * @throws Exception Thrown if a member doesn't exist
+     */
+    private static Object get(Object expr, String path)
+    throws Exception
+    {
+        Object current = expr;
+        for (String memberName : path.split("\\."))
+        {
+            if (current == null)
+            {
+                return null;
+            }
+            current = current.getClass().getField(memberName).get(current);
+        }
+        return current;
+    }
+
+    @Test
+    public void testCutoffByDefault()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = compile();
+        assertTrue(result.getGeneratedSource("cyclic.QCustomer").contains(QueryClassRenderer.EXPANDING_HOLDER));
+
+        Object candidate = QueryClassGenerationTest.getCandidate(result, "cyclic.QCustomer");
+        assertNotNull(get(candidate, "referrer"));
+        assertNull(get(candidate, "referrer.referrer"));
+    }
+
+    @Test
+    public void testNoCutoffWhenDisabled()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = compile("-AqueryCycleCutoff=false");
+        assertFalse(result.getGeneratedSource("cyclic.QCustomer").contains(QueryClassRenderer.EXPANDING_HOLDER));
+
+        Object candidate = QueryClassGenerationTest.getCandidate(result, "cyclic.QCustomer");
+        assertNotNull(get(candidate, "referrer.referrer.referrer"));
+        assertNotNull(get(candidate, "address.resident.address"));
+    }
+
+    @Test
+    public void testCutoffOnlyStopsMemberOnPath()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = compile();
+
+        Object candidate = QueryClassGenerationTest.getCandidate(result, "cyclic.QCustomer");
+        assertNotNull(get(candidate, "referrer"));
+        assertNotNull(get(candidate, "referrer.name"));
+        assertNotNull(get(candidate, "referrer.address"));
+        assertNotNull(get(candidate, "referrer.address.street"));
+        assertNull(get(candidate, "referrer.referrer"));
+
+        assertNotNull(get(candidate, "address.resident"));
+        assertNotNull(get(candidate, "address.resident.referrer"));
+        assertNull(get(candidate, "address.resident.address"));
+        assertNull(get(candidate, "address.resident.referrer.address.resident"));
+    }
+
+    @Test
+    public void testCutoffWithSubclass()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = compile();
+
+        Object candidate = QueryClassGenerationTest.getCandidate(result, "cyclic.QSub");
+        assertNotNull(get(candidate, "parent"));
+        assertNotNull(get(candidate, "parent.category"));
+        assertNotNull(get(candidate, "parent.referrer"));
+        assertNotNull(get(candidate, "parent.address"));
+        assertNull(get(candidate, "parent.parent"));
+        assertNotNull(get(candidate, "category.resident"));
+    }
+
+    @Test
+    public void testCutoffStateIsReset()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = compile("-AqueryCacheSize=0");
+
+        Class<?> queryClass = result.loadClass("cyclic.QCustomer");
+        for (String name : new String[] {"a", "b"})
+        {
+            Object candidate = queryClass.getMethod("candidate", String.class).invoke(null, name);
+            assertNotNull(get(candidate, "referrer.address"));
+            Object parameter = queryClass.getMethod("parameter", String.class).invoke(null, name);
+            assertNotNull(get(parameter, "referrer.address"));
+            assertNull(get(parameter, "referrer.referrer"));
+        }
+    }
+}
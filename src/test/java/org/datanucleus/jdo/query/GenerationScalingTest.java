@@ -0,0 +1,94 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the time and heap taken by JDOQueryProcessor on large models, asserting against budgets.
+ * The budgets are deliberately generous so as to catch regressions in complexity rather than small slowdowns, and
+ * can be changed using the system properties "jdoquery.test.budget.millis" (time in the processor) and
+ * "jdoquery.test.budget.heapMB" (peak heap of the compilation).
+ */
+public class GenerationScalingTest
+{
+    private static final long BUDGET_MILLIS = Long.getLong("jdoquery.test.budget.millis", 15000);
+
+    private static final long BUDGET_HEAP_BYTES = Long.getLong("jdoquery.test.budget.heapMB", 1024) * 1024 * 1024;
+
+    private static void assertWithinBudget(String name, InMemoryCompiler.Result result)
+    {
+        long processorMillis = result.getProcessorNanos() / 1000000;
+        long peakHeapMB = result.getPeakHeapBytes() / (1024 * 1024);
+        System.out.println(name + " : processor=" + processorMillis + "ms compilation=" + (result.getCompileNanos() / 1000000) + "ms peakHeap=" + peakHeapMB + "MB");
+        assertTrue(name + " took " + processorMillis + "ms in the processor, budget is " + BUDGET_MILLIS + "ms", processorMillis <= BUDGET_MILLIS);
+        assertTrue(name + " used a peak heap of " + peakHeapMB + "MB, budget is " + (BUDGET_HEAP_BYTES / (1024 * 1024)) + "MB",
+            result.getPeakHeapBytes() <= BUDGET_HEAP_BYTES);
+    }
+
+    @Test
+    public void testManyFlatClasses()
+    {
+        SyntheticModel model = new SyntheticModel().classes(300).fieldsPerClass(15);
+        assertWithinBudget("flat", QueryClassGenerationTest.compile(model));
+    }
+
+    @Test
+    public void testWideClasses()
+    {
+        SyntheticModel model = new SyntheticModel().classes(5).fieldsPerClass(250).relationDensity(0.02);
+        assertWithinBudget("wide", QueryClassGenerationTest.compile(model));
+    }
+
+    @Test
+    public void testDeepInheritance()
+    {
+        SyntheticModel model = new SyntheticModel().classes(60).fieldsPerClass(5).inheritanceDepth(19).relationDensity(0.2);
+        assertWithinBudget("deep", QueryClassGenerationTest.compile(model));
+    }
+
+    @Test
+    public void testDenseCyclicModel()
+    {
+        SyntheticModel model = new SyntheticModel().classes(150).fieldsPerClass(10).relationDensity(0.4).cyclic(true).innerClassesPerClass(1);
+        assertWithinBudget("cyclic", QueryClassGenerationTest.compile(model));
+    }
+
+    @Test
+    public void testDenseCyclicModelNoCycleCutoff()
+    {
+        SyntheticModel model = new SyntheticModel().classes(150).fieldsPerClass(10).relationDensity(0.4).cyclic(true).innerClassesPerClass(1);
+        assertWithinBudget("cyclic-nocutoff", QueryClassGenerationTest.compile(model, "-AqueryCycleCutoff=false"));
+    }
+
+    @Test
+    public void testDenseCyclicModelPropertyMode()
+    {
+        SyntheticModel model = new SyntheticModel().classes(150).fieldsPerClass(10).relationDensity(0.4).cyclic(true).innerClassesPerClass(1);
+        assertWithinBudget("cyclic-property", QueryClassGenerationTest.compile(model, "-AqueryMode=PROPERTY"));
+    }
+
+    @Test
+    public void testDenseCyclicModelLazyFieldMode()
+    {
+        SyntheticModel model = new SyntheticModel().classes(150).fieldsPerClass(10).relationDensity(0.4).cyclic(true).innerClassesPerClass(1);
+        assertWithinBudget("cyclic-lazy", QueryClassGenerationTest.compile(model, "-AqueryMode=LAZY_FIELD"));
+    }
+}
@@ -0,0 +1,639 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiler of sources in memory using javax.tools.JavaCompiler, running JDOQueryProcessor over them, so that the generated
+ * sources can be inspected and the compiled classes (including the Q classes) loaded. Records the time spent in the
+ * processor and the peak heap used by the compilation.
+ */
+public class InMemoryCompiler
+{
+    private final List<String> options = new ArrayList<String>();
+
+    private final List<File> classPathDirs = new ArrayList<File>();
+
+    private boolean recordOriginatingElements = false;
+
+    private final List<Processor> otherProcessors = new ArrayList<Processor>();
+
+    /**
+     * Method to add an option of the compilation (e.g "-AqueryMode=PROPERTY").
+     * @param option The option
+     * @return This compiler
+     */
+    public InMemoryCompiler option(String option)
+    {
+        options.add(option);
+        return this;
+    }
+
+    /**
+     * Method to add a directory of classes to the class path of the compilation (e.g the classes of an earlier compilation).
+     * @param dir The directory
+     * @return This compiler
+     */
+    public InMemoryCompiler classPath(File dir)
+    {
+        classPathDirs.add(dir);
+        return this;
+    }
+
+    /**
+     * Method to record the originating elements of the sources generated, through a Filer wrapping that of the compiler.
+     * The processor then doesn't see the javac ProcessingEnvironment, so anything needing that (e.g "queryIndexCheck") isn't available.
+     * @return This compiler
+     */
+    public InMemoryCompiler recordOriginatingElements()
+    {
+        recordOriginatingElements = true;
+        return this;
+    }
+
+    /**
+     * Method to add another processor to run alongside JDOQueryProcessor (e.g one generating persistable classes).
+     * @param processor The processor
+     * @return This compiler
+     */
+    public InMemoryCompiler processor(Processor processor)
+    {
+        otherProcessors.add(processor);
+        return this;
+    }
+
+    /**
+     * Method to compile the specified sources.
+     * @param sources Source of each class, keyed by the (qualified) class name
+     * @return The result
+     */
+    public Result compile(Map<String, String> sources)
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+        {
+            throw new IllegalStateException("Tests need to be run with a JDK (no system Java compiler available)");
+        }
+
+        List<JavaFileObject> compilationUnits = new ArrayList<JavaFileObject>();
+        for (Map.Entry<String, String> entry : sources.entrySet())
+        {
+            MemoryFileObject source = new MemoryFileObject(entry.getKey().replace('.', '/') + ".java", JavaFileObject.Kind.SOURCE);
+            source.content = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            compilationUnits.add(source);
+        }
+
+        List<String> compileOptions = new ArrayList<String>();
+        compileOptions.add("-classpath");
+        StringBuilder classPath = new StringBuilder(getClassPath());
+        for (File dir : classPathDirs)
+        {
+            classPath.append(File.pathSeparator).append(dir.getPath());
+        }
+        compileOptions.add(classPath.toString());
+        compileOptions.addAll(options);
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager);
+        TimedProcessor processor = new TimedProcessor(new JDOQueryProcessor(), recordOriginatingElements);
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+            {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, compileOptions, null, compilationUnits);
+        List<Processor> processors = new ArrayList<Processor>();
+        processors.add(processor);
+        processors.addAll(otherProcessors);
+        task.setProcessors(processors);
+        boolean success = task.call();
+        long compileNanos = System.nanoTime() - startTime;
+
+        long peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : heapPools)
+        {
+            peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+
+        return new Result(success, diagnostics.getDiagnostics(), fileManager.outputs, processor.originatingElements, processor.nanos, compileNanos,
+            peakHeapBytes);
+    }
+
+    /**
+     * Method to return the class path for the compilation, so the locations of JDO, DataNucleus and the processor.
+     * These are taken from the classes loaded, since the class path of the test run may be a manifest-only jar.
+     * @return The class path
+     */
+    private static String getClassPath()
+    {
+        Set<String> locations = new LinkedHashSet<String>();
+        for (Class<?> cls : new Class<?>[] {javax.jdo.JDOQLTypedQuery.class, org.datanucleus.api.jdo.query.PersistableExpressionImpl.class,
+            org.datanucleus.query.expression.Expression.class, JDOQueryProcessor.class})
+        {
+            try
+            {
+                locations.add(new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+            }
+            catch (URISyntaxException use)
+            {
+                throw new IllegalStateException(use);
+            }
+        }
+        StringBuilder str = new StringBuilder();
+        for (String location : locations)
+        {
+            str.append(str.length() > 0 ? File.pathSeparator : "").append(location);
+        }
+        return str.toString();
+    }
+
+    /**
+     * Result of a compilation.
+     */
+    public static class Result
+    {
+        private final boolean success;
+        private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+        private final Map<String, MemoryFileObject> outputs;
+        private final Map<String, List<String>> originatingElements;
+        private final long processorNanos;
+        private final long compileNanos;
+        private final long peakHeapBytes;
+        private ClassLoader classLoader;
+
+        Result(boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, Map<String, MemoryFileObject> outputs,
+                Map<String, List<String>> originatingElements, long processorNanos, long compileNanos, long peakHeapBytes)
+        {
+            this.success = success;
+            this.diagnostics = diagnostics;
+            this.outputs = outputs;
+            this.originatingElements = originatingElements;
+            this.processorNanos = processorNanos;
+            this.compileNanos = compileNanos;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public boolean isSuccess()
+        {
+            return success;
+        }
+
+        /**
+         * Accessor for the messages of the diagnostics of the specified kind.
+         * @param kind The kind
+         * @return The messages (including the source and line)
+         */
+        public List<String> getMessages(Diagnostic.Kind kind)
+        {
+            List<String> messages = new ArrayList<String>();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics)
+            {
+                if (diagnostic.getKind() == kind)
+                {
+                    String sourceName = (diagnostic.getSource() != null ? diagnostic.getSource().getName() + ":" + diagnostic.getLineNumber() + ": " : "");
+                    messages.add(sourceName + diagnostic.getMessage(null));
+                }
+            }
+            return messages;
+        }
+
+        /**
+         * Accessor for the generated source of the specified class.
+         * @param className Name of the class
+         * @return The source, or null if not generated
+         */
+        public String getGeneratedSource(String className)
+        {
+            MemoryFileObject file = outputs.get(StandardLocation.SOURCE_OUTPUT + "/" + className.replace('.', '/') + ".java");
+            return (file != null ? new String(file.content, StandardCharsets.UTF_8) : null);
+        }
+
+        /**
+         * Accessor for the names of the generated sources (relative to the source output).
+         * @return The names
+         */
+        public List<String> getGeneratedSourceNames()
+        {
+            List<String> names = new ArrayList<String>();
+            String prefix = StandardLocation.SOURCE_OUTPUT + "/";
+            for (String name : outputs.keySet())
+            {
+                if (name.startsWith(prefix))
+                {
+                    names.add(name.substring(prefix.length()));
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Accessor for the originating elements given for a generated source (see {@link InMemoryCompiler#recordOriginatingElements()}).
+         * @param className Name of the class
+         * @return The (qualified) names of the originating elements, or null if the source was not generated
+         */
+        public List<String> getOriginatingElements(String className)
+        {
+            return originatingElements.get(className);
+        }
+
+        /**
+         * Method to write the compiled classes (including the Q classes) to a directory, so they can be on the class path
+         * of a later compilation.
+         * @param dir The directory
+         * @throws IOException Thrown if a class cannot be written
+         */
+        public void writeClasses(File dir)
+        throws IOException
+        {
+            String prefix = StandardLocation.CLASS_OUTPUT + "/";
+            for (Map.Entry<String, MemoryFileObject> output : outputs.entrySet())
+            {
+                if (output.getKey().startsWith(prefix) && output.getKey().endsWith(".class"))
+                {
+                    File file = new File(dir, output.getKey().substring(prefix.length()));
+                    file.getParentFile().mkdirs();
+                    Files.write(file.toPath(), output.getValue().content);
+                }
+            }
+        }
+
+        /**
+         * Accessor for a generated resource in the class output.
+         * @param name Name of the resource (e.g "META-INF/services/...")
+         * @return The resource content, or null if not generated
+         */
+        public String getResource(String name)
+        {
+            MemoryFileObject file = outputs.get(StandardLocation.CLASS_OUTPUT + "/" + name);
+            return (file != null ? new String(file.content, StandardCharsets.UTF_8) : null);
+        }
+
+        /**
+         * Method to load a compiled class, in a class loader for all classes of this compilation.
+         * @param className Binary name of the class
+         * @return The class
+         * @throws ClassNotFoundException Thrown if the class was not compiled
+         */
+        public synchronized Class<?> loadClass(String className)
+        throws ClassNotFoundException
+        {
+            if (classLoader == null)
+            {
+                classLoader = new ClassLoader(InMemoryCompiler.class.getClassLoader())
+                {
+                    @Override
+                    protected Class<?> findClass(String name)
+                    throws ClassNotFoundException
+                    {
+                        MemoryFileObject file = outputs.get(StandardLocation.CLASS_OUTPUT + "/" + name.replace('.', '/') + ".class");
+                        if (file == null)
+                        {
+                            throw new ClassNotFoundException(name);
+                        }
+                        return defineClass(name, file.content, 0, file.content.length);
+                    }
+                };
+            }
+            return Class.forName(className, true, classLoader);
+        }
+
+        /**
+         * Accessor for the time spent in the processor (initialising it and processing each round).
+         * @return The time in nanoseconds
+         */
+        public long getProcessorNanos()
+        {
+            return processorNanos;
+        }
+
+        /**
+         * Accessor for the time spent in the whole compilation.
+         * @return The time in nanoseconds
+         */
+        public long getCompileNanos()
+        {
+            return compileNanos;
+        }
+
+        /**
+         * Accessor for the peak heap used during the compilation (summed over the heap pools, so an upper bound).
+         * @return The number of bytes
+         */
+        public long getPeakHeapBytes()
+        {
+            return peakHeapBytes;
+        }
+    }
+
+    /**
+     * File held in memory, for the sources compiled and the files output by the compilation.
+     * An output file only exists (and is added to the outputs) once written.
+     */
+    static class MemoryFileObject extends SimpleJavaFileObject
+    {
+        byte[] content;
+
+        private final String name;
+
+        /** Outputs of the compilation to add this file to once written, or null if not an output. */
+        private final Map<String, MemoryFileObject> outputs;
+
+        MemoryFileObject(String name, Kind kind)
+        {
+            this(name, kind, null);
+        }
+
+        MemoryFileObject(String name, Kind kind, Map<String, MemoryFileObject> outputs)
+        {
+            super(URI.create("mem:///" + name), kind);
+            this.name = name;
+            this.outputs = outputs;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        throws IOException
+        {
+            return new String(getContent(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public InputStream openInputStream()
+        throws IOException
+        {
+            return new ByteArrayInputStream(getContent());
+        }
+
+        private byte[] getContent()
+        throws FileNotFoundException
+        {
+            if (content == null)
+            {
+                throw new FileNotFoundException(toUri().toString());
+            }
+            return content;
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            return new ByteArrayOutputStream()
+            {
+                @Override
+                public void close()
+                throws IOException
+                {
+                    super.close();
+                    content = toByteArray();
+                    if (outputs != null)
+                    {
+                        outputs.put(name, MemoryFileObject.this);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * File manager holding the output of the compilation in memory.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        /** Files output, keyed by "{location}/{path}". */
+        final Map<String, MemoryFileObject> outputs = new LinkedHashMap<String, MemoryFileObject>();
+
+        MemoryFileManager(StandardJavaFileManager fileManager)
+        {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        {
+            return getOutput(location, className.replace('.', '/') + kind.extension, kind);
+        }
+
+        @Override
+        public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling)
+        {
+            return getOutput(location, getPath(packageName, relativeName), JavaFileObject.Kind.OTHER);
+        }
+
+        @Override
+        public FileObject getFileForInput(Location location, String packageName, String relativeName)
+        throws IOException
+        {
+            if (location == StandardLocation.CLASS_OUTPUT || location == StandardLocation.SOURCE_OUTPUT)
+            {
+                return outputs.get(location + "/" + getPath(packageName, relativeName));
+            }
+            return super.getFileForInput(location, packageName, relativeName);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b)
+        {
+            if (a instanceof MemoryFileObject || b instanceof MemoryFileObject)
+            {
+                return a.toUri().equals(b.toUri());
+            }
+            return super.isSameFile(a, b);
+        }
+
+        private MemoryFileObject getOutput(Location location, String path, JavaFileObject.Kind kind)
+        {
+            MemoryFileObject file = outputs.get(location + "/" + path);
+            return (file != null ? file : new MemoryFileObject(location + "/" + path, kind, outputs));
+        }
+
+        private static String getPath(String packageName, String relativeName)
+        {
+            return packageName.isEmpty() ? relativeName : packageName.replace('.', '/') + "/" + relativeName;
+        }
+    }
+
+    /**
+     * Processor delegating to another, recording the time spent in it and optionally the originating elements of the sources it generates.
+     */
+    private static class TimedProcessor implements Processor
+    {
+        private final Processor delegate;
+        private final boolean recordOriginatingElements;
+        long nanos = 0;
+
+        /** Qualified names of the originating elements of each generated source, keyed by the class name. */
+        final Map<String, List<String>> originatingElements = new LinkedHashMap<String, List<String>>();
+
+        TimedProcessor(Processor delegate, boolean recordOriginatingElements)
+        {
+            this.delegate = delegate;
+            this.recordOriginatingElements = recordOriginatingElements;
+        }
+
+        @Override
+        public Set<String> getSupportedOptions()
+        {
+            return delegate.getSupportedOptions();
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes()
+        {
+            return delegate.getSupportedAnnotationTypes();
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion()
+        {
+            return delegate.getSupportedSourceVersion();
+        }
+
+        @Override
+        public void init(ProcessingEnvironment processingEnv)
+        {
+            long startTime = System.nanoTime();
+            delegate.init(recordOriginatingElements ? recording(processingEnv) : processingEnv);
+            nanos += System.nanoTime() - startTime;
+        }
+
+        /**
+         * Method to return a ProcessingEnvironment delegating to the specified one, but whose Filer records the originating elements
+         * of the sources created.
+         * @param processingEnv The ProcessingEnvironment of the compiler
+         * @return The recording ProcessingEnvironment
+         */
+        private ProcessingEnvironment recording(final ProcessingEnvironment processingEnv)
+        {
+            final Filer filer = (Filer) Proxy.newProxyInstance(Filer.class.getClassLoader(), new Class<?>[] {Filer.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+                {
+                    if (method.getName().equals("createSourceFile"))
+                    {
+                        List<String> names = new ArrayList<String>();
+                        for (Element el : (Element[]) args[1])
+                        {
+                            names.add(((TypeElement) el).getQualifiedName().toString());
+                        }
+                        originatingElements.put(args[0].toString(), names);
+                    }
+                    return delegate(processingEnv.getFiler(), method, args);
+                }
+            });
+            return (ProcessingEnvironment) Proxy.newProxyInstance(ProcessingEnvironment.class.getClassLoader(), new Class<?>[] {ProcessingEnvironment.class},
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable
+                    {
+                        return method.getName().equals("getFiler") ? filer : delegate(processingEnv, method, args);
+                    }
+                });
+        }
+
+        private static Object delegate(Object target, Method method, Object[] args)
+        throws Throwable
+        {
+            try
+            {
+                return method.invoke(target, args);
+            }
+            catch (InvocationTargetException ite)
+            {
+                throw ite.getCause();
+            }
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+        {
+            long startTime = System.nanoTime();
+            try
+            {
+                return delegate.process(annotations, roundEnv);
+            }
+            finally
+            {
+                nanos += System.nanoTime() - startTime;
+            }
+        }
+
+        @Override
+        public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText)
+        {
+            return delegate.getCompletions(element, annotation, member, userText);
+        }
+    }
+}
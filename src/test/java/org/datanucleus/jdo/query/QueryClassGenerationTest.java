@@ -0,0 +1,692 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.jdo.JDOQLTypedQuery;
+import javax.jdo.PersistenceManager;
+import javax.jdo.query.BooleanExpression;
+import javax.jdo.query.NumericExpression;
+import javax.jdo.query.OrderExpression;
+import javax.jdo.query.StringExpression;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+import org.datanucleus.api.jdo.query.ExpressionImpl;
+import org.datanucleus.api.jdo.query.ExpressionType;
+import org.datanucleus.api.jdo.query.NumericExpressionImpl;
+import org.datanucleus.query.expression.Expression;
+import org.junit.Test;
+
+/**
+ * Tests for the generation of Q classes, compiling models in memory and checking that the generated sources compile.
+ */
+public class QueryClassGenerationTest
+{
+    /**
+     * Method to compile the model, asserting that the compilation (including the generated Q classes) succeeds.
+     * @param model The model
+     * @param options Any options of the compilation
+     * @return The result
+     */
+    static InMemoryCompiler.Result compile(SyntheticModel model, String... options)
+    {
+        InMemoryCompiler compiler = new InMemoryCompiler();
+        for (String option : options)
+        {
+            compiler.option(option);
+        }
+        InMemoryCompiler.Result result = compiler.compile(model.generate());
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+        assertEquals("Errors in compilation", 0, result.getMessages(Diagnostic.Kind.ERROR).size());
+        return result;
+    }
+
+    /**
+     * Method to invoke "candidate()" on a Q class, so to construct the candidate expression.
+     * @param result Result of the compilation
+     * @param queryClassName Name of the Q class
+     * @return The candidate
+     * @throws Exception Thrown if the Q class is not loadable or the invocation fails
+     */
+    static Object getCandidate(InMemoryCompiler.Result result, String queryClassName)
+    throws Exception
+    {
+        Class<?> queryClass = result.loadClass(queryClassName);
+        Method candidateMethod = queryClass.getMethod("candidate");
+        Object candidate = candidateMethod.invoke(null);
+        assertNotNull("candidate() of " + queryClassName + " returned null", candidate);
+        return candidate;
+    }
+
+    @Test
+    public void testFlatModel()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(5).fieldsPerClass(10);
+        InMemoryCompiler.Result result = compile(model);
+        for (int i = 0; i < 5; i++)
+        {
+            assertNotNull("No Q class generated for " + model.getClassName(i), result.getGeneratedSource(model.getQueryClassName(i)));
+            Object candidate = getCandidate(result, model.getQueryClassName(i));
+            assertNotNull(candidate.getClass().getField("e" + i + "f0").get(candidate));
+        }
+    }
+
+    @Test
+    public void testInheritedModel()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(6).fieldsPerClass(4).inheritanceDepth(2).relationDensity(0.25);
+        InMemoryCompiler.Result result = compile(model);
+        String source = result.getGeneratedSource(model.getQueryClassName(2));
+        assertTrue(source.contains("extends " + model.getPackageName() + ".QEntity1") || source.contains("extends QEntity1"));
+        Object candidate = getCandidate(result, model.getQueryClassName(2));
+        assertNotNull(candidate.getClass().getField("e0f1").get(candidate));
+    }
+
+    @Test
+    public void testCyclicModel()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(4).fieldsPerClass(6).relationDensity(0.5).cyclic(true);
+        InMemoryCompiler.Result result = compile(model);
+        for (int i = 0; i < 4; i++)
+        {
+            getCandidate(result, model.getQueryClassName(i));
+        }
+    }
+
+    @Test
+    public void testInnerClasses()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(3).relationDensity(0.4).innerClassesPerClass(2);
+        InMemoryCompiler.Result result = compile(model);
+        for (int i = 0; i < 2; i++)
+        {
+            // Q classes of inner classes are generated inlined in the Q class of the owning class
+            assertTrue(result.getGeneratedSource(model.getQueryClassName(i)).contains("class QPart1"));
+            getCandidate(result, model.getQueryClassName(i));
+            Object partCandidate = getCandidate(result, model.getQueryClassName(i) + "$QPart1");
+            assertNotNull(partCandidate.getClass().getField("owner").get(partCandidate));
+        }
+    }
+
+    @Test
+    public void testPropertyMode()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(4).fieldsPerClass(6).relationDensity(0.5).cyclic(true).innerClassesPerClass(1);
+        InMemoryCompiler.Result result = compile(model, "-AqueryMode=PROPERTY");
+        Object candidate = getCandidate(result, model.getQueryClassName(1));
+        assertNotNull(candidate.getClass().getMethod("e1f0").invoke(candidate));
+    }
+
+    @Test
+    public void testPropertyModeMemberDepth()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(4).fieldsPerClass(6).relationDensity(0.5).cyclic(true);
+        InMemoryCompiler.Result result = compile(model, "-AqueryMode=PROPERTY", "-AqueryDepthOverrides=synthetic.Entity1#e1f0=0,synthetic.Entity1#e1f1=1");
+        Object candidate = getCandidate(result, model.getQueryClassName(1));
+        assertNull(candidate.getClass().getMethod("e1f0").invoke(candidate));
+        assertNotNull(candidate.getClass().getMethod("e1f1").invoke(candidate));
+        assertTrue(result.getGeneratedSource(model.getQueryClassName(1)).contains("(this, \"e1f1\", 0)"));
+    }
+
+    @Test
+    public void testLazyFieldMode()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(4).fieldsPerClass(6).relationDensity(0.5).cyclic(true).innerClassesPerClass(1);
+        InMemoryCompiler.Result result = compile(model, "-AqueryMode=LAZY_FIELD");
+        Object candidate = getCandidate(result, model.getQueryClassName(1));
+        assertNotNull(candidate.getClass().getMethod("e1f0").invoke(candidate));
+    }
+
+    @Test
+    public void testCandidate()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(1).fieldsPerClass(2);
+        InMemoryCompiler.Result result = compile(model);
+        for (Field field : result.loadClass(model.getQueryClassName(0)).getDeclaredFields())
+        {
+            assertFalse(field.getName().equals("jdoCandidate"));
+        }
+        assertSame(getCandidate(result, model.getQueryClassName(0)), getCandidate(result, model.getQueryClassName(0)));
+
+        result = compile(model, "-AqueryCandidateField=true");
+        Class<?> queryClass = result.loadClass(model.getQueryClassName(0));
+        assertSame(queryClass.getField("jdoCandidate").get(null), getCandidate(result, model.getQueryClassName(0)));
+    }
+
+    @Test
+    public void testVerbose()
+    {
+        SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(3);
+        for (String note : compile(model).getMessages(Diagnostic.Kind.NOTE))
+        {
+            assertFalse(note, note.contains("member type resolution") || note.startsWith("DataNucleus : JDOQLTypedQuery"));
+        }
+
+        boolean summary = false;
+        for (String note : compile(model, "-AqueryVerbose=true").getMessages(Diagnostic.Kind.NOTE))
+        {
+            summary |= note.contains("member type resolution");
+        }
+        assertTrue("No summary output when verbose", summary);
+    }
+
+    @Test
+    public void testCachedExpressionNotMutated()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(1).fieldsPerClass(2);
+        Class<?> queryClass = compile(model).loadClass(model.getQueryClassName(0));
+        Method candidateMethod = queryClass.getMethod("candidate", String.class);
+        assertFalse("Named candidates cached by default", candidateMethod.invoke(null, "a") == candidateMethod.invoke(null, "a"));
+
+        queryClass = compile(model, "-AqueryCacheSize=8").loadClass(model.getQueryClassName(0));
+        candidateMethod = queryClass.getMethod("candidate", String.class);
+        Object candidate = candidateMethod.invoke(null, "a");
+        assertSame(candidate, candidateMethod.invoke(null, "a"));
+
+        StringExpression name = (StringExpression)queryClass.getField("e0f0").get(candidate);
+        NumericExpression<?> number = (NumericExpression<?>)queryClass.getField("e0f1").get(candidate);
+        String nameExpr = getQueryExpression(name).toString();
+        String numberExpr = getQueryExpression(number).toString();
+
+        // Use the cached candidate in filters and orderings, as different queries sharing it would. DataNucleus only records
+        // the new expression as the parent of an operand, so the members and any filter already created are unchanged
+        BooleanExpression filter = name.eq("x").and(number.gt(1));
+        String filterExpr = getQueryExpression(filter).toString();
+        OrderExpression<?> order = number.desc();
+        name.startsWith("y").or(name.toUpperCase().eq("Z"));
+        number.add(2).lt(3);
+        name.asc();
+
+        candidate = candidateMethod.invoke(null, "a");
+        assertSame(name, queryClass.getField("e0f0").get(candidate));
+        assertSame(number, queryClass.getField("e0f1").get(candidate));
+        assertEquals(nameExpr, getQueryExpression(name).toString());
+        assertEquals(numberExpr, getQueryExpression(number).toString());
+        assertEquals(filterExpr, getQueryExpression(filter).toString());
+        assertSame(getQueryExpression(number), ((ExpressionImpl<?>)order.getExpression()).getQueryExpression());
+        assertEquals(OrderExpression.OrderDirection.DESC, order.getDirection());
+    }
+
+    private static Expression getQueryExpression(Object expr)
+    {
+        return ((ExpressionImpl<?>)expr).getQueryExpression();
+    }
+
+    @Test
+    public void testWriteFailureReported()
+    {
+        // A Q class already in the compilation cannot be created by the Filer
+        SyntheticModel model = new SyntheticModel().classes(1).fieldsPerClass(2);
+        Map<String, String> sources = model.generate();
+        String queryClassName = model.getQueryClassName(0);
+        sources.put(queryClassName, "package " + queryClassName.substring(0, queryClassName.lastIndexOf('.')) + ";\n" +
+            "public class " + queryClassName.substring(queryClassName.lastIndexOf('.') + 1) + " {}\n");
+        InMemoryCompiler.Result result = new InMemoryCompiler().compile(sources);
+        assertFalse(result.isSuccess());
+        boolean reported = false;
+        for (String error : result.getMessages(Diagnostic.Kind.ERROR))
+        {
+            reported |= error.contains("DataNucleus : unable to write " + queryClassName);
+        }
+        assertTrue("Failure to write the Q class not reported : " + result.getMessages(Diagnostic.Kind.ERROR), reported);
+    }
+
+    @Test
+    public void testFingerprints()
+    throws Exception
+    {
+        // Processor is loaded from a directory with no implementation version, as in an IDE
+        String codeFingerprint = FingerprintStore.getCodeFingerprint(JDOQueryProcessor.class);
+        assertNotNull(codeFingerprint);
+        assertEquals(codeFingerprint, FingerprintStore.getCodeFingerprint(JDOQueryProcessor.class));
+
+        File file = File.createTempFile("fingerprints", ".properties");
+        file.delete();
+        try
+        {
+            SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(2);
+            compile(model, "-AqueryFingerprints=" + file.getPath());
+            Properties fingerprints = new Properties();
+            try (InputStream in = new FileInputStream(file))
+            {
+                fingerprints.load(in);
+            }
+            assertNotNull("No fingerprint stored", fingerprints.getProperty(model.getQueryClassName(0)));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNativeImageConfiguration()
+    {
+        SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(4).relationDensity(0.5).cyclic(true);
+        String properties = compile(model, "-AqueryNativeImage=true").getResource("META-INF/native-image/jdo-query/native-image.properties");
+        assertNotNull("No native-image.properties generated", properties);
+        assertTrue(properties, properties.startsWith("Args = --initialize-at-build-time=org.datanucleus.api.jdo.query,org.datanucleus.query.expression,"));
+        assertTrue(properties, properties.contains("," + model.getQueryClassName(0) + ","));
+        assertTrue(properties, properties.contains(model.getQueryClassName(0) + "$" + QueryClassRenderer.EXPANDING_HOLDER));
+    }
+
+    @Test
+    public void testFanoutWarning()
+    {
+        SyntheticModel model = new SyntheticModel().classes(4).fieldsPerClass(6).relationDensity(0.5).cyclic(true);
+        assertTrue(compile(model).getMessages(Diagnostic.Kind.WARNING).isEmpty());
+
+        String warnings = compile(model, "-AqueryFanoutWarning=1").getMessages(Diagnostic.Kind.WARNING).toString();
+        assertTrue(warnings, warnings.contains(model.getQueryClassName(0) + " instantiates"));
+        assertTrue(warnings, warnings.contains("for a candidate (more than 1)"));
+    }
+
+    @Test
+    public void testFingerprintsWithoutSource()
+    throws Exception
+    {
+        File file = File.createTempFile("fingerprints", ".properties");
+        file.delete();
+        File classesDir = Files.createTempDirectory("classes").toFile();
+        try
+        {
+            SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(2);
+            compile(model, "-AqueryFingerprints=" + file.getPath()).writeClasses(classesDir);
+
+            // Inputs unchanged and the Q classes are on the class path, but their sources are no longer generated so are written again
+            InMemoryCompiler.Result result = new InMemoryCompiler().classPath(classesDir).option("-AqueryFingerprints=" + file.getPath()).compile(model.generate());
+            assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+            assertNotNull("Q class with no source not regenerated", result.getGeneratedSource(model.getQueryClassName(0)));
+            assertNotNull("Q class with no source not regenerated", result.getGeneratedSource(model.getQueryClassName(1)));
+        }
+        finally
+        {
+            file.delete();
+            delete(classesDir);
+        }
+    }
+
+    @Test
+    public void testRegistryWithLaterRound()
+    throws Exception
+    {
+        // Later is generated by another processor in the first round, so is only seen in the second round
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("reg.Item", "package reg;\n@javax.jdo.annotations.PersistenceCapable\npublic class Item\n{\n    String name;\n}\n");
+        InMemoryCompiler.Result result = new InMemoryCompiler().option("-AqueryRegistry=true").processor(new AbstractProcessor()
+        {
+            private boolean generated = false;
+
+            @Override
+            public Set<String> getSupportedAnnotationTypes()
+            {
+                return Collections.singleton("*");
+            }
+
+            @Override
+            public SourceVersion getSupportedSourceVersion()
+            {
+                return SourceVersion.latestSupported();
+            }
+
+            @Override
+            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+            {
+                if (!generated)
+                {
+                    generated = true;
+                    try (Writer w = processingEnv.getFiler().createSourceFile("reg.Later").openWriter())
+                    {
+                        w.write("package reg;\n@javax.jdo.annotations.PersistenceCapable\npublic class Later\n{\n    String name;\n}\n");
+                    }
+                    catch (IOException ioe)
+                    {
+                        throw new IllegalStateException(ioe);
+                    }
+                }
+                return false;
+            }
+        }).compile(sources);
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+
+        QueryClassRegistry registry = (QueryClassRegistry) result.loadClass("reg." + JDOQueryProcessor.REGISTRY_CLASS_NAME).getConstructor().newInstance();
+        assertTrue(registry.supports(result.loadClass("reg.Item")));
+        assertTrue(registry.supports(result.loadClass("reg.Later")));
+        assertTrue(result.getMessages(Diagnostic.Kind.WARNING).toString(), result.getMessages(Diagnostic.Kind.WARNING).isEmpty());
+        assertEquals("reg." + JDOQueryProcessor.REGISTRY_CLASS_NAME + "\n", result.getResource("META-INF/services/" + QueryClassRegistry.class.getName()));
+    }
+
+    private static Map<String, String> getInheritanceModel()
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("inherit.Base", "package inherit;\n@javax.jdo.annotations.PersistenceCapable\npublic class Base\n{\n    String name;\n}\n");
+        sources.put("inherit.Sub", "package inherit;\n@javax.jdo.annotations.PersistenceCapable\npublic class Sub extends Base\n{\n    int level;\n}\n");
+        sources.put("inherit.Other", "package inherit;\n@javax.jdo.annotations.PersistenceCapable\npublic class Other\n{\n    Base base;\n}\n");
+        return sources;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testOriginatingElements()
+    {
+        // Isolating, so just the persistable class
+        InMemoryCompiler.Result result = new InMemoryCompiler().recordOriginatingElements().compile(getInheritanceModel());
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+        assertEquals(Arrays.asList("inherit.Sub"), result.getOriginatingElements("inherit.QSub"));
+
+        // Aggregating, so the persistent supertypes too
+        result = new InMemoryCompiler().recordOriginatingElements().option("-AqueryRegistry=true").compile(getInheritanceModel());
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+        assertEquals(Arrays.asList("inherit.Sub", "inherit.Base"), result.getOriginatingElements("inherit.QSub"));
+        assertEquals(Arrays.asList("inherit.Other"), result.getOriginatingElements("inherit.QOther"));
+    }
+
+    @Test
+    public void testIncrementalCompilation()
+    throws Exception
+    {
+        InMemoryCompiler.Result result = new InMemoryCompiler().compile(getInheritanceModel());
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+
+        File classesDir = Files.createTempDirectory("classes").toFile();
+        try
+        {
+            result.writeClasses(classesDir);
+
+            // Base changed, so an incremental build recompiles it and its subclass, with the rest of the earlier output on the class path
+            Map<String, String> sources = getInheritanceModel();
+            sources.put("inherit.Base", sources.get("inherit.Base").replace("String name;", "String name;\n    String description;"));
+            sources.remove("inherit.Other");
+            result = new InMemoryCompiler().classPath(classesDir).compile(sources);
+            assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+            assertEquals(Arrays.asList("inherit/QBase.java", "inherit/QSub.java"), result.getGeneratedSourceNames());
+            Object candidate = getCandidate(result, "inherit.QSub");
+            assertNotNull(candidate.getClass().getField("description").get(candidate));
+        }
+        finally
+        {
+            delete(classesDir);
+        }
+    }
+
+    @Test
+    public void testMemberMetadata()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(3).fieldsPerClass(4).inheritanceDepth(1).relationDensity(0.25);
+        InMemoryCompiler.Result result = compile(model);
+        Class<?> queryClass = result.loadClass(model.getQueryClassName(1));
+        for (String tableName : new String[] {"jdoMemberNames", "jdoMemberExpressionTypes", "jdoMemberRelations"})
+        {
+            assertTrue(tableName + " is not private", Modifier.isPrivate(queryClass.getDeclaredField(tableName).getModifiers()));
+        }
+
+        assertEquals(4, queryClass.getMethod("jdoGetMemberCount").invoke(null));
+        int index = queryClass.getField("JDO_INDEX_e1f0").getInt(null);
+        assertEquals("e1f0", queryClass.getMethod("jdoGetMemberName", int.class).invoke(null, index));
+        assertEquals(Boolean.TRUE, queryClass.getMethod("jdoIsMemberRelation", int.class).invoke(null, index));
+        assertEquals(Boolean.FALSE, queryClass.getMethod("jdoIsMemberRelation", int.class).invoke(null, index+1));
+        assertEquals(javax.jdo.query.NumericExpression.class, queryClass.getMethod("jdoGetMemberExpressionType", int.class).invoke(null, index+1));
+    }
+
+    @Test
+    public void testParameterBinder()
+    throws Exception
+    {
+        SyntheticModel model = new SyntheticModel().classes(2).fieldsPerClass(3).inheritanceDepth(1);
+        InMemoryCompiler.Result result = compile(model);
+        assertFalse(result.getGeneratedSource(model.getQueryClassName(1)).contains("ParameterBinder"));
+
+        result = compile(model, "-AqueryParameterBinder=true");
+        Class<?> binderClass = result.loadClass(model.getQueryClassName(1) + "$ParameterBinder");
+        Object binder = binderClass.getConstructor().newInstance();
+        binderClass.getMethod("bindE1f1", int.class).invoke(binder, 7);
+        binderClass.getMethod("bindE1f0", String.class).invoke(binder, "a");
+        binderClass.getMethod("bindE0f2", long.class).invoke(binder, 3L); // Inherited from Entity0
+
+        // Record the parameters set on the query
+        final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        JDOQLTypedQuery<?> query = (JDOQLTypedQuery<?>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {JDOQLTypedQuery.class},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    assertEquals("setParameter", method.getName());
+                    parameters.put((String) args[0], args[1]);
+                    return proxy;
+                }
+            });
+        binderClass.getMethod("applyTo", JDOQLTypedQuery.class).invoke(binder, query);
+        assertEquals(3, parameters.size());
+        assertEquals("a", parameters.get("e1f0"));
+        assertEquals(Integer.valueOf(7), parameters.get("e1f1"));
+        assertEquals(Long.valueOf(3), parameters.get("e0f2"));
+
+        parameters.clear();
+        binderClass.getMethod("clear").invoke(binder);
+        binderClass.getMethod("applyTo", JDOQLTypedQuery.class).invoke(binder, query);
+        assertEquals(0, parameters.size());
+    }
+
+    @Test
+    public void testKeysetIterator()
+    throws Exception
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("ks.Item", "package ks;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Item\n{\n    @javax.jdo.annotations.PrimaryKey\n    long id;\n    String name;\n}\n");
+        InMemoryCompiler.Result result = new InMemoryCompiler().option("-AqueryKeyset=true").compile(sources);
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+
+        // The datastore has the instances with keys 1 to 5
+        Class<?> itemClass = result.loadClass("ks.Item");
+        Field idField = itemClass.getDeclaredField("id");
+        idField.setAccessible(true);
+        final Map<Long, Object> items = new TreeMap<Long, Object>();
+        for (long id = 1; id <= 5; id++)
+        {
+            Object item = itemClass.getDeclaredConstructor().newInstance();
+            idField.setLong(item, id);
+            items.put(id, item);
+        }
+
+        // Execute each query against the instances, recording the key that each batch started after
+        final List<Object> lastKeys = new ArrayList<Object>();
+        final int[] evictions = new int[1];
+        final InvocationHandler pmHandler = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object pm, Method method, Object[] args)
+            {
+                if (method.getName().equals("evictAll"))
+                {
+                    evictions[0]++;
+                    return null;
+                }
+                assertEquals("newJDOQLTypedQuery", method.getName());
+                final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+                final int[] range = new int[2];
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {JDOQLTypedQuery.class}, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object query, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("numericParameter"))
+                        {
+                            return new NumericExpressionImpl<Long>(Number.class, (String) args[0], ExpressionType.PARAMETER);
+                        }
+                        else if (method.getName().equals("setParameter"))
+                        {
+                            parameters.put((String) args[0], args[1]);
+                        }
+                        else if (method.getName().equals("range"))
+                        {
+                            range[0] = ((Number) args[0]).intValue();
+                            range[1] = ((Number) args[1]).intValue();
+                        }
+                        else if (method.getName().equals("executeResultList"))
+                        {
+                            Long lastKey = (Long) parameters.get("jdoLastKey");
+                            lastKeys.add(lastKey);
+                            List<Object> rows = new ArrayList<Object>();
+                            for (Map.Entry<Long, Object> entry : items.entrySet())
+                            {
+                                if ((lastKey == null || entry.getKey() > lastKey) && rows.size() < range[1] - range[0])
+                                {
+                                    rows.add(new Object[] {entry.getValue(), entry.getKey()});
+                                }
+                            }
+                            return rows;
+                        }
+                        else if (method.getName().equals("closeAll"))
+                        {
+                            return null;
+                        }
+                        return query;
+                    }
+                });
+            }
+        };
+        PersistenceManager pm = (PersistenceManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {PersistenceManager.class}, pmHandler);
+
+        Class<?> keysetClass = result.loadClass("ks.QItem$Keyset");
+        Iterator<?> iter = (Iterator<?>) keysetClass.getMethod("iterator", PersistenceManager.class, int.class).invoke(null, pm, 2);
+        List<Object> iterated = new ArrayList<Object>();
+        while (iter.hasNext())
+        {
+            iterated.add(iter.next());
+        }
+        assertEquals(new ArrayList<Object>(items.values()), iterated);
+        assertEquals(Arrays.asList(null, 2L, 4L), lastKeys);
+        assertEquals(3, evictions[0]);
+    }
+
+    @Test
+    public void testProjectionOfNullPrimitives()
+    throws Exception
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("proj.Order", "package proj;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "@org.datanucleus.jdo.query.Projection(name=\"Row\", members={\"quantity\", \"price\", \"closed\", \"code\", \"flag\", \"name\"})\n" +
+            "public class Order\n{\n    int quantity;\n    double price;\n    boolean closed;\n    char code;\n    byte flag;\n    String name;\n}\n");
+        InMemoryCompiler.Result result = new InMemoryCompiler().compile(sources);
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+
+        // Null values (e.g from an outer join) give the default of each primitive
+        Class<?> rowClass = result.loadClass("proj.QOrder$Row");
+        Object row = rowClass.getMethod("fromResult", Object.class).invoke(null, (Object) new Object[6]);
+        assertEquals(Integer.valueOf(0), rowClass.getMethod("getQuantity").invoke(row));
+        assertEquals(Double.valueOf(0), rowClass.getMethod("getPrice").invoke(row));
+        assertEquals(Boolean.FALSE, rowClass.getMethod("isClosed").invoke(row));
+        assertEquals(Character.valueOf('\0'), rowClass.getMethod("getCode").invoke(row));
+        assertEquals(Byte.valueOf((byte) 0), rowClass.getMethod("getFlag").invoke(row));
+        assertEquals(null, rowClass.getMethod("getName").invoke(row));
+
+        // Numeric values of another type are converted
+        row = rowClass.getMethod("fromResult", Object.class).invoke(null, (Object) new Object[] {Long.valueOf(3), Float.valueOf(1.5f), Boolean.TRUE, 'x', 2, "a"});
+        assertEquals(Integer.valueOf(3), rowClass.getMethod("getQuantity").invoke(row));
+        assertEquals(Double.valueOf(1.5), rowClass.getMethod("getPrice").invoke(row));
+        assertEquals(Boolean.TRUE, rowClass.getMethod("isClosed").invoke(row));
+        assertEquals(Character.valueOf('x'), rowClass.getMethod("getCode").invoke(row));
+        assertEquals(Byte.valueOf((byte) 2), rowClass.getMethod("getFlag").invoke(row));
+    }
+
+    @Test
+    public void testUpperCasePackage()
+    throws Exception
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put("com.Acme.model.Item", "package com.Acme.model;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Item\n{\n    public enum Status {NEW, SOLD}\n    String name;\n    Status status;\n" +
+            "    com.Acme.Shared.Part part;\n    java.util.List<com.Acme.Shared.Part> parts;\n}\n");
+        sources.put("com.Acme.model.SpecialItem", "package com.Acme.model;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class SpecialItem extends com.Acme.Shared.Part\n{\n    Item item;\n}\n");
+        sources.put("com.Acme.Shared.Part", "package com.Acme.Shared;\n@javax.jdo.annotations.PersistenceCapable\n" +
+            "public class Part\n{\n    long number;\n    com.Acme.model.Item.Status status;\n}\n");
+        InMemoryCompiler.Result result = new InMemoryCompiler().option("-AqueryRegistry=true").option("-AqueryFetchPlans=true").option("-AqueryBulk=true")
+            .compile(sources);
+        assertTrue("Compilation failed : " + result.getMessages(Diagnostic.Kind.ERROR), result.isSuccess());
+
+        String source = result.getGeneratedSource("com.Acme.model.QItem");
+        assertFalse(source, source.contains("import com.Acme;"));
+        assertFalse(source, source.contains("<Acme.model.Item>"));
+        assertFalse(source, source.contains(" Acme.Shared."));
+        assertTrue(source, source.contains("PersistableExpressionImpl<Item>"));
+        assertTrue(source, source.contains("import com.Acme.Shared.QPart;"));
+        source = result.getGeneratedSource("com.Acme.model.QSpecialItem");
+        assertTrue(source, source.contains("extends QPart"));
+
+        Object candidate = getCandidate(result, "com.Acme.model.QSpecialItem");
+        assertNotNull(candidate.getClass().getField("item").get(candidate));
+        assertNotNull(candidate.getClass().getField("status").get(candidate));
+    }
+}
@@ -0,0 +1,205 @@
+/**********************************************************************
+Copyright (c) 2017 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.jdo.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generator of the sources of a synthetic persistable model, for use in compiling with JDOQueryProcessor.
+ * Generates classes "Entity{n}" in the specified package, each with the specified number of fields, where a proportion
+ * of these fields (the relation density) are relations to other classes of the model. Relations are to classes with a
+ * higher number unless the model is cyclic, in which case they wrap around (and the first relation of each class is to
+ * the class itself). Classes can be arranged in inheritance chains, and can have inner (static nested) persistable classes.
+ * The output is deterministic for the same settings.
+ */
+public class SyntheticModel
+{
+    private static final String[] BASIC_TYPES = {"String", "int", "long", "java.util.Date", "double", "boolean", "Integer", "java.math.BigDecimal"};
+
+    private String packageName = "synthetic";
+    private int numberOfClasses = 1;
+    private int fieldsPerClass = 5;
+    private int inheritanceDepth = 0;
+    private double relationDensity = 0.0;
+    private boolean cyclic = false;
+    private int innerClassesPerClass = 0;
+
+    public SyntheticModel packageName(String name)
+    {
+        this.packageName = name;
+        return this;
+    }
+
+    public SyntheticModel classes(int number)
+    {
+        this.numberOfClasses = number;
+        return this;
+    }
+
+    public SyntheticModel fieldsPerClass(int number)
+    {
+        this.fieldsPerClass = number;
+        return this;
+    }
+
+    /**
+     * Mutator for the depth of inheritance, so the number of superclasses above the last class of each chain.
+     * @param depth The depth (0 for no inheritance)
+     * @return This model
+     */
+    public SyntheticModel inheritanceDepth(int depth)
+    {
+        this.inheritanceDepth = depth;
+        return this;
+    }
+
+    /**
+     * Mutator for the proportion of the fields of each class that are relations to persistable classes.
+     * @param density The density (0.0 - 1.0)
+     * @return This model
+     */
+    public SyntheticModel relationDensity(double density)
+    {
+        this.relationDensity = density;
+        return this;
+    }
+
+    public SyntheticModel cyclic(boolean flag)
+    {
+        this.cyclic = flag;
+        return this;
+    }
+
+    public SyntheticModel innerClassesPerClass(int number)
+    {
+        this.innerClassesPerClass = number;
+        return this;
+    }
+
+    public String getPackageName()
+    {
+        return packageName;
+    }
+
+    /**
+     * Accessor for the qualified name of a class of the model.
+     * @param number Number of the class
+     * @return The class name
+     */
+    public String getClassName(int number)
+    {
+        return packageName + ".Entity" + number;
+    }
+
+    /**
+     * Accessor for the qualified name of the Q class of a class of the model.
+     * @param number Number of the class
+     * @return The Q class name
+     */
+    public String getQueryClassName(int number)
+    {
+        return packageName + ".QEntity" + number;
+    }
+
+    /**
+     * Method to generate the sources of the model.
+     * @return Source of each class, keyed by the qualified class name
+     */
+    public Map<String, String> generate()
+    {
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        for (int i = 0; i < numberOfClasses; i++)
+        {
+            sources.put(getClassName(i), generateClass(i));
+        }
+        return sources;
+    }
+
+    private String generateClass(int number)
+    {
+        StringBuilder str = new StringBuilder();
+        str.append("package ").append(packageName).append(";\n\n");
+        str.append("import javax.jdo.annotations.*;\n\n");
+        str.append("@PersistenceCapable\n");
+        str.append("public class Entity").append(number);
+        if (inheritanceDepth > 0 && number % (inheritanceDepth + 1) != 0)
+        {
+            str.append(" extends Entity").append(number - 1);
+        }
+        str.append("\n{\n");
+
+        int numberOfRelations = (int) Math.round(fieldsPerClass * relationDensity);
+        for (int i = 0; i < fieldsPerClass; i++)
+        {
+            String fieldName = "e" + number + "f" + i;
+            if (i < numberOfRelations)
+            {
+                int related = getRelatedClass(number, i);
+                if (related < 0)
+                {
+                    str.append("    String ").append(fieldName).append(";\n");
+                }
+                else if (i % 3 == 2)
+                {
+                    str.append("    java.util.Set<Entity").append(related).append("> ").append(fieldName).append(";\n");
+                }
+                else
+                {
+                    str.append("    Entity").append(related).append(' ').append(fieldName).append(";\n");
+                }
+            }
+            else
+            {
+                if (i == numberOfRelations)
+                {
+                    str.append("    @Index\n");
+                }
+                str.append("    ").append(BASIC_TYPES[i % BASIC_TYPES.length]).append(' ').append(fieldName).append(";\n");
+            }
+        }
+
+        for (int i = 0; i < innerClassesPerClass; i++)
+        {
+            str.append("\n    @PersistenceCapable\n");
+            str.append("    public static class Part").append(i).append("\n    {\n");
+            str.append("        String name;\n");
+            str.append("        long quantity;\n");
+            str.append("        Entity").append(number).append(" owner;\n");
+            str.append("    }\n");
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+
+    /**
+     * Method to return the class that a relation field of a class refers to.
+     * @param number Number of the class
+     * @param relation Number of the relation field in the class
+     * @return Number of the related class, or -1 if there is no class to relate to
+     */
+    private int getRelatedClass(int number, int relation)
+    {
+        if (cyclic)
+        {
+            return (number + relation) % numberOfClasses;
+        }
+        int related = number + 1 + relation;
+        return related < numberOfClasses ? related : -1;
+    }
+}